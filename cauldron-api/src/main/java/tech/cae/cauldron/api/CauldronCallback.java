@@ -23,6 +23,9 @@
  */
 package tech.cae.cauldron.api;
 
+import java.util.List;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
 /**
  *
  * @author peter
@@ -34,5 +37,23 @@ public interface CauldronCallback {
     public void progress(String message, double progress);
 
     public void progress(double progress);
-   
+
+    /**
+     * Submit children of the running task, and a join task that runs once all
+     * the children have finished, if the running task completes. The join is
+     * given the results of the completed children before it runs.
+     *
+     * Only callbacks given to tasks by a worker can fork; others throw.
+     * Callbacks given to tasks outside a worker can submit through
+     * Cauldron.fork() with the id of the task they were given to.
+     *
+     * @param children tasks to run in parallel
+     * @param join task to run after the children
+     * @return id of the join task
+     * @throws CauldronException if the callback cannot fork
+     */
+    public default String fork(List<? extends CauldronTask> children, CauldronJoinTask join) throws CauldronException {
+        throw new CauldronException("fork not supported by this callback");
+    }
+
 }
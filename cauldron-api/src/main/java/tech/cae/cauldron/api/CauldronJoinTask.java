@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron.api;
+
+import java.util.List;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ * Task that joins the children forked by another task with
+ * {@link CauldronCallback#fork(java.util.List, CauldronJoinTask)}.
+ *
+ * Before the task runs, the results of its completed children are passed to
+ * join() in batches, in the order the children were forked. Children that
+ * failed or were cancelled are left out.
+ *
+ * @author peter
+ */
+public abstract class CauldronJoinTask extends CauldronTask {
+
+    /**
+     *
+     * @param results a batch of completed children
+     * @throws CauldronException
+     */
+    public abstract void join(List<CauldronTask> results) throws CauldronException;
+
+}
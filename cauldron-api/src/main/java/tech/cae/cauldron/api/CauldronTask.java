@@ -23,6 +23,8 @@
  */
 package tech.cae.cauldron.api;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import tech.cae.cauldron.api.exceptions.CauldronException;
@@ -36,6 +38,9 @@ public abstract class CauldronTask {
 
     @JsonProperty
     private String id;
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long timeout;
 
     /**
      *
@@ -45,6 +50,40 @@ public abstract class CauldronTask {
         return id;
     }
 
+    /**
+     * Time in milliseconds the task may run before the worker stops it, as set
+     * by setTimeout() or else the default for its type
+     *
+     * @return timeout, or 0 for none
+     */
+    @JsonIgnore
+    public long getTimeout() {
+        return timeout == null ? getDefaultTimeout() : timeout;
+    }
+
+    /**
+     * Timeout in milliseconds for tasks of this type, for types that need one
+     * to override
+     *
+     * @return timeout, or 0 for none
+     */
+    protected long getDefaultTimeout() {
+        return 0L;
+    }
+
+    /**
+     * Set the time in milliseconds this task may run before the worker stops
+     * it, before submitting it
+     *
+     * @param timeout timeout, or 0 for none
+     */
+    public void setTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        this.timeout = timeout;
+    }
+
     /**
      *
      * @param callback
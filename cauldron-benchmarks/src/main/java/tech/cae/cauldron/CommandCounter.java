@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.bson.Document;
+
+/**
+ * Counts the commands a Mongo client sends, by command name
+ *
+ * @author peter
+ */
+class CommandCounter implements CommandListener {
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        counts.computeIfAbsent(event.getCommandName(), name -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+    }
+
+    /**
+     * Counts so far, sorted by command name
+     *
+     * @return
+     */
+    Document snapshot() {
+        Document snapshot = new Document();
+        new TreeMap<>(counts).forEach((name, count) -> snapshot.append(name, count.sum()));
+        return snapshot;
+    }
+
+    /**
+     * Add the counts of one snapshot to another
+     */
+    static Document merge(Document into, Document from) {
+        from.forEach((name, count) -> into.merge(name, count, (a, b) -> ((Number) a).longValue() + ((Number) b).longValue()));
+        return into;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the graph of a DAG, alone and as part of a submit to an in process
+ * backend, for a layered graph where every task depends on every task of the
+ * layer before
+ *
+ * @author peter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DagBenchmark {
+
+    @Param({"10", "100"})
+    int width;
+
+    @Param({"10"})
+    int depth;
+
+    private InProcessMongo mongo;
+    private Cauldron cauldron;
+    private CauldronDAG root;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mongo = new InProcessMongo();
+        cauldron = mongo.cauldron();
+    }
+
+    @Setup(Level.Invocation)
+    public void build() {
+        List<CauldronDAG> layer = new ArrayList<>();
+        for (int i = 0; i < depth; i++) {
+            List<CauldronDAG> next = new ArrayList<>(width);
+            for (int j = 0; j < width; j++) {
+                next.add(CauldronDAG.create(new BenchmarkTask(i + ":" + j, 1))
+                        .after(layer.toArray(new CauldronDAG[0])));
+            }
+            layer = next;
+        }
+        root = CauldronDAG.create(new BenchmarkTask("root", 1)).after(layer.toArray(new CauldronDAG[0]));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mongo.close();
+    }
+
+    @Benchmark
+    public CauldronDAG.Graph graph() {
+        return new CauldronDAG.Graph(root);
+    }
+
+    @Benchmark
+    public DagHandle submit() {
+        return root.submit(cauldron);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ * Hand-off throughput of the distributor: each operation submits a task and
+ * has a worker take one, so the queue stays short and every take is a claim
+ * against an in process MongoDB or the in memory backend
+ *
+ * @author peter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistributorBenchmark {
+
+    @Param({"mongo", "memory"})
+    String backend;
+
+    private InProcessMongo mongo;
+    private Cauldron cauldron;
+    private Distributor distributor;
+
+    @Setup
+    public void setup() throws CauldronException {
+        if ("mongo".equals(backend)) {
+            mongo = new InProcessMongo();
+            cauldron = mongo.cauldron();
+        } else {
+            InProcessMongo.quiet();
+            cauldron = new Cauldron(new InMemoryQueueBackend());
+        }
+        distributor = cauldron.getDistributor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        distributor.pause();
+        cauldron.getChangeMonitor().stop();
+        if (mongo != null) {
+            mongo.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+
+        private static int next = 0;
+        String name;
+        BenchmarkTask task;
+
+        @Setup
+        public void setup() {
+            synchronized (Worker.class) {
+                name = "bench:" + next++;
+            }
+            task = new BenchmarkTask(name, 1);
+        }
+    }
+
+    @Benchmark
+    public CauldronTask handOff(Worker worker) throws InterruptedException {
+        cauldron.submit(worker.task);
+        return distributor.get(worker.name);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public CauldronTask handOffContended(Worker worker) throws InterruptedException {
+        cauldron.submit(worker.task);
+        return distributor.get(worker.name);
+    }
+}
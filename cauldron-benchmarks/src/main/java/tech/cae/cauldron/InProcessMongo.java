@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * In-memory Mongo server in the benchmark JVM, with an oplog so that change
+ * streams work, so benchmarks need neither Docker nor a database and measure
+ * Cauldron rather than the network or disk.
+ *
+ * @author peter
+ */
+public class InProcessMongo implements AutoCloseable {
+
+    // Held so that their levels are not lost if the loggers are collected
+    static final Logger CAULDRON_LOG = Logger.getLogger("tech.cae.cauldron");
+    static final Logger DRIVER_LOG = Logger.getLogger("org.mongodb.driver");
+
+    private final MongoServer server;
+    private final InetSocketAddress address;
+    private final MongoClient client;
+
+    public InProcessMongo() {
+        quiet();
+        this.server = new MongoServer(new MemoryBackend());
+        this.server.enableOplog();
+        this.address = server.bind();
+        this.client = new MongoClient(address.getHostString(), address.getPort());
+    }
+
+    /**
+     * Per call logging in the distributor and driver would dominate the
+     * measurements
+     */
+    static void quiet() {
+        CAULDRON_LOG.setLevel(Level.WARNING);
+        DRIVER_LOG.setLevel(Level.WARNING);
+    }
+
+    /**
+     * Connection string for clients in other JVMs
+     *
+     * @return
+     */
+    public String getUri() {
+        return "mongodb://" + address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * A Cauldron on a fresh collection
+     *
+     * @return
+     */
+    public Cauldron cauldron() {
+        return cauldron(client.getDatabase("cauldron"), "tasks_" + UUID.randomUUID().toString().replace("-", ""));
+    }
+
+    /**
+     * A Cauldron on a collection of this server, through any client
+     *
+     * @param database database of this server
+     * @param queueCollection collection name
+     * @return
+     */
+    public Cauldron cauldron(MongoDatabase database, String queueCollection) {
+        Cauldron cauldron = new Cauldron(database, queueCollection);
+        // The in memory backend ignores partial filters, so would allow only one task without a key
+        MongoCollection<Document> collection = cauldron.getMongoQueue().getCollection();
+        for (Document index : collection.listIndexes()) {
+            if (index.get("key", Document.class).containsKey("dedupKey")) {
+                collection.dropIndex(index.get("key", Document.class));
+            }
+        }
+        collection.createIndex(new Document("dedupKey", 1), new IndexOptions().unique(true).sparse(true));
+        return cauldron;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+        server.shutdownNow();
+    }
+}
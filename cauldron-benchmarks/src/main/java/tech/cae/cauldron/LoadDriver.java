@@ -0,0 +1,420 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoDatabase;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import org.bson.Document;
+import tech.cae.cauldron.api.CauldronStatus;
+
+/**
+ * End to end load and soak test: submits tasks at a fixed rate to a queue
+ * served by worker JVMs, then reports sustained throughput, latency
+ * percentiles and Mongo commands per task.
+ *
+ * Options, as --name=value:
+ * <ul>
+ * <li>mongo: connection string, by default an in process server</li>
+ * <li>rate: tasks submitted per second, default 100</li>
+ * <li>warmup: seconds of submission excluded from the results, default 10</li>
+ * <li>duration: seconds of measured submission, default 60</li>
+ * <li>drain: most seconds to wait for tasks to finish, default 60</li>
+ * <li>interval: seconds between progress lines, default 10</li>
+ * <li>task: task run time in milliseconds, fixed:T, uniform:MIN:MAX,
+ * exponential:MEAN or lognormal:MEDIAN:SIGMA, default fixed:10</li>
+ * <li>shape: single, chain:N, fan:N (a root, N tasks after it and one after
+ * them) or layers:W:D (D layers of W, each task after every task of the layer
+ * before), default single</li>
+ * <li>workers: worker JVMs, default 2</li>
+ * <li>parallelism: worker threads per JVM, default 4</li>
+ * </ul>
+ *
+ * Submit to start is measured from when a task could first start, its
+ * creation or when its last parent finished, to its claim; submit to complete
+ * from its creation to its finish. Both use the timestamps in the queue, so
+ * include no time spent by the driver.
+ *
+ * @author peter
+ */
+public class LoadDriver {
+
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    private String uri;
+    private double rate = 100.0;
+    private long warmup = 10L;
+    private long duration = 60L;
+    private long drain = 60L;
+    private long interval = 10L;
+    private String task = "fixed:10";
+    private String shape = "single";
+    private int workers = 2;
+    private int parallelism = 4;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadDriver driver = new LoadDriver();
+        try {
+            for (String arg : args) {
+                driver.option(arg);
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: LoadDriver [--mongo=URI] [--rate=TASKS_PER_SECOND] [--warmup=S] [--duration=S] [--drain=S]"
+                    + " [--interval=S] [--task=fixed:T|uniform:MIN:MAX|exponential:MEAN|lognormal:MEDIAN:SIGMA]"
+                    + " [--shape=single|chain:N|fan:N|layers:W:D] [--workers=N] [--parallelism=N]");
+            System.exit(1);
+        }
+        driver.run();
+        System.exit(0);
+    }
+
+    private void option(String arg) {
+        String[] pair = arg.startsWith("--") ? arg.substring(2).split("=", 2) : new String[0];
+        if (pair.length != 2) {
+            throw new IllegalArgumentException("Bad option " + arg);
+        }
+        switch (pair[0]) {
+            case "mongo":
+                uri = pair[1];
+                break;
+            case "rate":
+                rate = Double.parseDouble(pair[1]);
+                break;
+            case "warmup":
+                warmup = Long.parseLong(pair[1]);
+                break;
+            case "duration":
+                duration = Long.parseLong(pair[1]);
+                break;
+            case "drain":
+                drain = Long.parseLong(pair[1]);
+                break;
+            case "interval":
+                interval = Long.parseLong(pair[1]);
+                break;
+            case "task":
+                task = pair[1];
+                durations(task, new Random());
+                break;
+            case "shape":
+                shape = pair[1];
+                size(shape);
+                break;
+            case "workers":
+                workers = Integer.parseInt(pair[1]);
+                break;
+            case "parallelism":
+                parallelism = Integer.parseInt(pair[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + arg);
+        }
+        if (rate <= 0.0 || warmup < 0L || duration <= 0L || drain < 0L || interval <= 0L || workers < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Bad value " + arg);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        InProcessMongo.quiet();
+        InProcessMongo server = uri == null ? new InProcessMongo() : null;
+        String connection = server == null ? uri : server.getUri();
+        String collection = "load_" + UUID.randomUUID().toString().replace("-", "");
+        CommandCounter counter = new CommandCounter();
+        MongoClient client = new MongoClient(new MongoClientURI(connection,
+                MongoClientOptions.builder().addCommandListener(counter)));
+        MongoDatabase database = client.getDatabase("cauldron");
+        Cauldron cauldron = server == null ? new Cauldron(database, collection) : server.cauldron(database, collection);
+        System.out.printf(Locale.ROOT, "Load: %s tasks/s of %s as %s, %d worker JVMs of %d threads, %ds warmup, %ds measured%n",
+                rate, task, shape, workers, parallelism, warmup, duration);
+        List<Process> processes = new ArrayList<>();
+        try {
+            for (int i = 0; i < workers; i++) {
+                processes.add(new ProcessBuilder(
+                        System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                        "-cp", System.getProperty("java.class.path"),
+                        LoadWorker.class.getName(), connection, "cauldron", collection, Integer.toString(parallelism))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start());
+            }
+            Window window = submit(cauldron);
+            long deadline = System.currentTimeMillis() + drain * 1000L;
+            while (finished.get() < submitted.get() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100L);
+            }
+            Document ops = CommandCounter.merge(new Document(), counter.snapshot());
+            for (Process process : processes) {
+                CommandCounter.merge(ops, stop(process));
+            }
+            report(cauldron, window, ops);
+        } finally {
+            processes.forEach(Process::destroyForcibly);
+            database.getCollection(collection).drop();
+            database.getCollection(collection + "_logs").drop();
+            database.getCollection(collection + "_archive").drop();
+            database.getCollection(collection + "_workers").drop();
+            client.close();
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Submit at the target rate, catching up after any stall rather than
+     * skipping, for the warmup and measured periods
+     *
+     * @return measured period
+     */
+    private Window submit(Cauldron cauldron) throws InterruptedException {
+        LongSupplier durations = durations(task, new Random());
+        long period = (long) (size(shape) * TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long measure = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measure + TimeUnit.SECONDS.toNanos(duration);
+        long report = start + TimeUnit.SECONDS.toNanos(interval);
+        Window window = new Window();
+        for (long next = start; next < end; next += period) {
+            long now;
+            while ((now = System.nanoTime()) < next) {
+                TimeUnit.NANOSECONDS.sleep(next - now);
+            }
+            if (window.start == null && now >= measure) {
+                window.start = new Date();
+            }
+            for (String id : submit(cauldron, durations)) {
+                submitted.incrementAndGet();
+                cauldron.getCompletion(id).whenComplete((result, ex) -> finished.incrementAndGet());
+            }
+            if (now >= report) {
+                progress(start);
+                report += TimeUnit.SECONDS.toNanos(interval);
+            }
+        }
+        window.end = new Date();
+        if (window.start == null) {
+            window.start = window.end;
+        }
+        return window;
+    }
+
+    private List<String> submit(Cauldron cauldron, LongSupplier durations) {
+        String[] parts = shape.split(":");
+        switch (parts[0]) {
+            case "chain": {
+                CauldronDAG dag = CauldronDAG.create(new LoadTask(durations.getAsLong()));
+                for (int i = 1; i < Integer.parseInt(parts[1]); i++) {
+                    dag = CauldronDAG.create(new LoadTask(durations.getAsLong())).after(dag);
+                }
+                return new ArrayList<>(dag.submit(cauldron).getTaskIds());
+            }
+            case "fan": {
+                CauldronDAG root = CauldronDAG.create(new LoadTask(durations.getAsLong()));
+                CauldronDAG[] middle = new CauldronDAG[Integer.parseInt(parts[1])];
+                for (int i = 0; i < middle.length; i++) {
+                    middle[i] = CauldronDAG.create(new LoadTask(durations.getAsLong())).after(root);
+                }
+                return new ArrayList<>(CauldronDAG.create(new LoadTask(durations.getAsLong())).after(middle)
+                        .submit(cauldron).getTaskIds());
+            }
+            case "layers": {
+                CauldronDAG[] layer = new CauldronDAG[0];
+                for (int i = 0; i < Integer.parseInt(parts[2]); i++) {
+                    CauldronDAG[] next = new CauldronDAG[Integer.parseInt(parts[1])];
+                    for (int j = 0; j < next.length; j++) {
+                        next[j] = CauldronDAG.create(new LoadTask(durations.getAsLong())).after(layer);
+                    }
+                    layer = next;
+                }
+                // Submitting from every node of the last layer would submit the graph once each
+                CauldronDAG sink = CauldronDAG.create(new LoadTask(0L)).after(layer);
+                return new ArrayList<>(sink.submit(cauldron).getTaskIds());
+            }
+            default:
+                return Collections.singletonList(cauldron.submit(new LoadTask(durations.getAsLong())).getId());
+        }
+    }
+
+    private void progress(long start) {
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf(Locale.ROOT, "%6ds submitted %d finished %d in flight %d driver heap %dMB%n",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), submitted.get(), finished.get(),
+                submitted.get() - finished.get(), (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+    }
+
+    /**
+     * Stop a worker JVM and read the commands it sent
+     */
+    private static Document stop(Process process) throws IOException, InterruptedException {
+        process.getOutputStream().close();
+        Document ops = new Document();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.startsWith(LoadWorker.OPS)) {
+                    ops = Document.parse(line.substring(LoadWorker.OPS.length()));
+                }
+            }
+        }
+        process.waitFor(30, TimeUnit.SECONDS);
+        return ops;
+    }
+
+    private void report(Cauldron cauldron, Window window, Document ops) {
+        List<Long> toStart = new ArrayList<>();
+        List<Long> toComplete = new ArrayList<>();
+        long throughput = 0L;
+        long failed = 0L;
+        long unfinished = 0L;
+        long total = 0L;
+        for (Cauldron.TaskMeta meta : cauldron.getTasksMetaData()) {
+            total++;
+            if (!meta.getStatus().isFinished()) {
+                unfinished++;
+                continue;
+            }
+            if (meta.getStatus() != CauldronStatus.Completed) {
+                failed++;
+            }
+            if (!meta.getFinished().before(window.start) && meta.getFinished().before(window.end)) {
+                throughput++;
+            }
+            if (meta.getCreated().before(window.start) || !meta.getCreated().before(window.end)) {
+                continue;
+            }
+            Date ready = meta.getUnblocked() == null ? meta.getCreated() : meta.getUnblocked();
+            if (meta.getClaimed() != null) {
+                toStart.add(meta.getClaimed().getTime() - ready.getTime());
+            }
+            toComplete.add(meta.getFinished().getTime() - meta.getCreated().getTime());
+        }
+        double seconds = Math.max(1L, window.end.getTime() - window.start.getTime()) / 1000.0;
+        System.out.printf(Locale.ROOT, "Tasks: %d submitted, %d failed or cancelled, %d unfinished%n", total, failed, unfinished);
+        System.out.printf(Locale.ROOT, "Throughput: %.1f tasks/s sustained, %.1f tasks/s target%n", throughput / seconds, rate);
+        System.out.println("Submit to start (ms): " + percentiles(toStart));
+        System.out.println("Submit to complete (ms): " + percentiles(toComplete));
+        double tasks = Math.max(1L, total);
+        long commands = ops.values().stream().mapToLong(count -> ((Number) count).longValue()).sum();
+        System.out.printf(Locale.ROOT, "Mongo commands per task: %.2f%n", commands / tasks);
+        ops.forEach((name, count) -> System.out.printf(Locale.ROOT, "  %-16s %.2f%n", name, ((Number) count).longValue() / tasks));
+    }
+
+    private static String percentiles(List<Long> values) {
+        if (values.isEmpty()) {
+            return "none";
+        }
+        Collections.sort(values);
+        StringBuilder builder = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            int rank = (int) Math.ceil(values.size() * percentile / 100.0);
+            builder.append(String.format(Locale.ROOT, "p%s %d, ", percentile % 1.0 == 0.0 ? Long.toString((long) percentile)
+                    : Double.toString(percentile), values.get(Math.max(0, rank - 1))));
+        }
+        return builder.append("max ").append(values.get(values.size() - 1)).toString();
+    }
+
+    /**
+     * Run time generator for a task option
+     */
+    static LongSupplier durations(String spec, Random random) {
+        String[] parts = spec.split(":");
+        try {
+            switch (parts[0]) {
+                case "fixed": {
+                    long millis = Long.parseLong(parts[1]);
+                    return () -> millis;
+                }
+                case "uniform": {
+                    long min = Long.parseLong(parts[1]);
+                    long max = Long.parseLong(parts[2]);
+                    return () -> min + (long) (random.nextDouble() * (max - min + 1));
+                }
+                case "exponential": {
+                    double mean = Double.parseDouble(parts[1]);
+                    return () -> Math.round(-mean * Math.log(1.0 - random.nextDouble()));
+                }
+                case "lognormal": {
+                    double median = Double.parseDouble(parts[1]);
+                    double sigma = Double.parseDouble(parts[2]);
+                    return () -> Math.round(median * Math.exp(sigma * random.nextGaussian()));
+                }
+                default:
+                    break;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Bad task run time " + spec);
+    }
+
+    /**
+     * Number of tasks in a shape option
+     */
+    static int size(String shape) {
+        String[] parts = shape.split(":");
+        try {
+            switch (parts[0]) {
+                case "single":
+                    return 1;
+                case "chain":
+                    return Integer.parseInt(parts[1]);
+                case "fan":
+                    return Integer.parseInt(parts[1]) + 2;
+                case "layers":
+                    return Integer.parseInt(parts[1]) * Integer.parseInt(parts[2]) + 1;
+                default:
+                    break;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Bad shape " + shape);
+    }
+
+    private static final class Window {
+
+        Date start;
+        Date end;
+    }
+}
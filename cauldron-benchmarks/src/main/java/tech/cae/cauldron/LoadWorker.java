@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+import tech.cae.cauldron.worker.CauldronWorker;
+
+/**
+ * Worker JVM started by the LoadDriver. Runs tasks until its standard input
+ * is closed, then prints the Mongo commands it sent as a line of JSON
+ * prefixed by {@value #OPS}.
+ *
+ * Arguments are the connection string, database, collection and number of
+ * worker threads.
+ *
+ * @author peter
+ */
+public class LoadWorker {
+
+    static final String OPS = "ops ";
+
+    public static void main(String[] args) throws IOException, CauldronException {
+        if (args.length != 4) {
+            System.err.println("Usage: LoadWorker <uri> <database> <collection> <parallelism>");
+            System.exit(1);
+        }
+        InProcessMongo.quiet();
+        CommandCounter counter = new CommandCounter();
+        MongoClient client = new MongoClient(new MongoClientURI(args[0],
+                MongoClientOptions.builder().addCommandListener(counter)));
+        Cauldron cauldron = new Cauldron(client.getDatabase(args[1]), args[2]);
+        CauldronWorker worker = new CauldronWorker(cauldron, Integer.parseInt(args[3]));
+        // The driver closes standard input to stop, or by exiting
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        while (in.readLine() != null) {
+        }
+        worker.shutdown(false);
+        System.out.println(OPS + counter.snapshot().toJson());
+        System.out.flush();
+        // Worker threads may be blocked waiting for tasks
+        System.exit(0);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatch of a status change event from the change stream to the registered
+ * listeners, without the stream itself
+ *
+ * @author peter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatusChangeMonitorBenchmark {
+
+    @Param({"1", "16"})
+    int listeners;
+
+    private InProcessMongo mongo;
+    private StatusChangeMonitor monitor;
+    private ChangeStreamDocument<Document> change;
+    private final LongAdder seen = new LongAdder();
+
+    @Setup
+    public void setup() {
+        mongo = new InProcessMongo();
+        Cauldron cauldron = mongo.cauldron();
+        monitor = new StatusChangeMonitor(cauldron.getMongoQueue(), cauldron);
+        for (int i = 0; i < listeners; i++) {
+            monitor.addListener((task, status) -> seen.increment());
+        }
+        change = new ChangeStreamDocument<>(OperationType.UPDATE,
+                new BsonDocument(),
+                null,
+                null,
+                null,
+                new BsonDocument("_id", new BsonObjectId(new ObjectId())),
+                null,
+                new UpdateDescription(Collections.emptyList(), new BsonDocument("status", new BsonString("Running"))),
+                null,
+                null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        monitor.stop();
+        mongo.close();
+    }
+
+    @Benchmark
+    public void dispatch() {
+        MongoQueueCore.changed(change, monitor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void dispatchContended() {
+        MongoQueueCore.changed(change, monitor);
+    }
+}
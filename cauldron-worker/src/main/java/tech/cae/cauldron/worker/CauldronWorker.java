@@ -23,14 +23,15 @@
  */
 package tech.cae.cauldron.worker;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tech.cae.cauldron.Cauldron;
+import tech.cae.cauldron.WorkerRegistry;
 import tech.cae.cauldron.api.exceptions.CauldronException;
 
 /**
@@ -42,20 +43,36 @@ public class CauldronWorker {
     private final ExecutorService service;
     private final String name;
     private final List<CauldronWorkerRunnable> running;
+    private final WorkerRegistry registry;
 
     public CauldronWorker() throws CauldronException {
         this(Cauldron.get(), Runtime.getRuntime().availableProcessors());
     }
 
     public CauldronWorker(Cauldron cauldron, int parallelism) throws CauldronException {
-        this.service = Executors.newFixedThreadPool(parallelism);
+        // Not fixed, as a thread abandoned to a task that ignored its timeout is replaced
+        this.service = Executors.newCachedThreadPool();
         this.name = UUID.randomUUID().toString();
-        this.running = new ArrayList<>();
+        this.running = new CopyOnWriteArrayList<>();
         for (int i = 0; i < parallelism; i++) {
             CauldronWorkerRunnable runner = new CauldronWorkerRunnable(cauldron, name + ":" + Integer.toString(i + 1));
+            runner.setReplacer(this::replace);
             this.service.submit(runner);
             this.running.add(runner);
         }
+        this.registry = cauldron.getWorkerRegistry();
+        if (registry != null) {
+            registry.register(name, parallelism, cauldron.getDistributor().getTypes());
+        }
+    }
+
+    /**
+     * Node name of this worker, which prefixes the names of its threads
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
     }
 
     public static void main(String[] args) {
@@ -69,8 +86,28 @@ public class CauldronWorker {
         }
     }
 
-    public void shutdown(boolean force) {
+    /**
+     * Set what happens to tasks that run past their timeout
+     *
+     * @param timeoutPolicy
+     */
+    public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy) {
+        this.running.forEach(runner -> runner.setTimeoutPolicy(timeoutPolicy));
+    }
+
+    private synchronized void replace(CauldronWorkerRunnable abandoned) {
+        if (running.remove(abandoned) && !service.isShutdown()) {
+            CauldronWorkerRunnable replacement = abandoned.replacement();
+            running.add(replacement);
+            service.submit(replacement);
+        }
+    }
+
+    public synchronized void shutdown(boolean force) {
         this.running.forEach(runner -> runner.shutdown());
+        if (registry != null) {
+            registry.unregister(name);
+        }
         if (force) {
             this.service.shutdownNow();
         } else {
@@ -25,9 +25,24 @@ package tech.cae.cauldron.worker;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import tech.cae.cauldron.Cauldron;
+import tech.cae.cauldron.CauldronMetrics;
 import tech.cae.cauldron.Distributor;
+import tech.cae.cauldron.LatencyHistogram;
 import tech.cae.cauldron.api.CauldronCallback;
+import tech.cae.cauldron.api.CauldronJoinTask;
 import tech.cae.cauldron.api.CauldronStatus;
 import tech.cae.cauldron.api.CauldronTask;
 import tech.cae.cauldron.api.exceptions.CauldronException;
@@ -38,10 +53,33 @@ import tech.cae.cauldron.api.exceptions.CauldronException;
  */
 public class CauldronWorkerRunnable implements Runnable {
 
+
+    private static final int JOIN_BATCH_SIZE = 100;
+    private static final long FLUSH_INTERVAL = 1000;
+    // One daemon thread writes the logs and progress of every running task, off the computing threads
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cauldron-callback-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // One daemon thread stops tasks that run past their timeout
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cauldron-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long ABANDON_GRACE = 10000;
+    private static final Logger LOG = Logger.getLogger(CauldronWorkerRunnable.class.getName());
+    private static final CauldronMetrics METRICS = CauldronMetrics.get();
+
     private final Cauldron cauldron;
     private final String name;
     private final Distributor distributor;
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
+    private int logBufferSize = 4096;
+    private LogOverflowPolicy logOverflowPolicy = LogOverflowPolicy.Drop;
+    private TimeoutPolicy timeoutPolicy = TimeoutPolicy.Fail;
+    private Consumer<CauldronWorkerRunnable> replacer;
 
     public CauldronWorkerRunnable(Cauldron cauldron, Distributor distributor, String name) {
         this.cauldron = cauldron;
@@ -53,20 +91,102 @@ public class CauldronWorkerRunnable implements Runnable {
         this(cauldron, cauldron.getDistributor(), name);
     }
 
+    /**
+     * Set the number of log lines a task can write ahead of the background
+     * flush, for tasks started after the call
+     *
+     * @param logBufferSize
+     */
+    public void setLogBufferSize(int logBufferSize) {
+        if (logBufferSize < 1) {
+            throw new IllegalArgumentException("logBufferSize must be positive");
+        }
+        this.logBufferSize = logBufferSize;
+    }
+
+    /**
+     * Set what happens to log lines written while the buffer is full, for
+     * tasks started after the call
+     *
+     * @param logOverflowPolicy
+     */
+    public void setLogOverflowPolicy(LogOverflowPolicy logOverflowPolicy) {
+        this.logOverflowPolicy = Objects.requireNonNull(logOverflowPolicy);
+    }
+
+    /**
+     * Set what happens to tasks that run past their timeout, for tasks started
+     * after the call
+     *
+     * @param timeoutPolicy
+     */
+    public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy) {
+        this.timeoutPolicy = Objects.requireNonNull(timeoutPolicy);
+    }
+
+    /**
+     * Set what starts a new runnable in place of this one, if this one is
+     * abandoned because a task ignored being stopped at its timeout
+     *
+     * @param replacer
+     */
+    void setReplacer(Consumer<CauldronWorkerRunnable> replacer) {
+        this.replacer = replacer;
+    }
+
+    /**
+     * A runnable with the same name and settings as this one
+     *
+     * @return
+     */
+    CauldronWorkerRunnable replacement() {
+        CauldronWorkerRunnable replacement = new CauldronWorkerRunnable(cauldron, distributor, name);
+        replacement.logBufferSize = logBufferSize;
+        replacement.logOverflowPolicy = logOverflowPolicy;
+        replacement.timeoutPolicy = timeoutPolicy;
+        replacement.replacer = replacer;
+        return replacement;
+    }
+
     @Override
     @SuppressWarnings({"UseSpecificCatch", "CallToPrintStackTrace"})
     public void run() {
         while (!cancelled) {
             try {
                 CauldronTask task = distributor.get(name);
-                CauldronCallback callback = new WorkerCallback(cauldron, task.getId(), name);
+                String type = task.getClass().getName();
+                WorkerCallback callback = new WorkerCallback(cauldron, task.getId(), name, logBufferSize, logOverflowPolicy,
+                        METRICS.histogram(CauldronMetrics.PROGRESS_LATENCY, type));
+                Execution execution = new Execution(task, callback, Thread.currentThread(), timeoutPolicy);
+                long timeout = task.getTimeout();
+                ScheduledFuture<?> watchdog = timeout > 0
+                        ? WATCHDOG.schedule(() -> expire(execution, timeout), timeout, TimeUnit.MILLISECONDS)
+                        : null;
+                long start = System.nanoTime();
                 try {
+                    if (task instanceof CauldronJoinTask) {
+                        cauldron.join((CauldronJoinTask) task, JOIN_BATCH_SIZE);
+                    }
                     task.run(callback);
-                    callback.progress(1.0);
-                    cauldron.completed(task, CauldronStatus.Completed);
+                    METRICS.histogram(CauldronMetrics.RUN_TIME, type).recordSince(start);
+                    // Unless the watchdog has already given up on the task
+                    if (execution.finish()) {
+                        callback.progress(1.0);
+                        callback.close();
+                        cauldron.completed(task, CauldronStatus.Completed);
+                    }
                 } catch (Throwable ex) {
-                    callback.progress(ex.getMessage(), 1.0);
-                    cauldron.completed(task, CauldronStatus.Failed);
+                    METRICS.histogram(CauldronMetrics.RUN_TIME, type).recordSince(start);
+                    if (execution.finish()) {
+                        callback.progress(ex.getMessage(), 1.0);
+                        callback.close();
+                        cauldron.failed(task, ex);
+                    }
+                } finally {
+                    if (watchdog != null) {
+                        watchdog.cancel(false);
+                    }
+                    execution.returned();
                 }
             } catch (Throwable ex) {
                 ex.printStackTrace();
@@ -74,54 +194,232 @@ public class CauldronWorkerRunnable implements Runnable {
         }
     }
 
+    /**
+     * Give up on a task that has run past its timeout: stop renewing its claim,
+     * fail or release it, either way retried as its retry policy allows, and
+     * interrupt it. If it is still running after a
+     * grace period, abandon its thread to it and start a replacement.
+     */
+    private void expire(Execution execution, long timeout) {
+        if (!execution.finish()) {
+            return;
+        }
+        String id = execution.task.getId();
+        LOG.log(Level.WARNING, "Task {0} timed out after {1} ms", new Object[]{id, timeout});
+        try {
+            String message = "Timed out after " + timeout + " ms";
+            if (execution.policy == TimeoutPolicy.Requeue) {
+                // A claim that lapses now is queued again by the next claim
+                execution.callback.expire(message, 0);
+            } else {
+                execution.callback.expire(message, WorkerCallback.LEASE);
+                cauldron.failed(execution.task, new TimeoutException(message));
+            }
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to give up on " + id + ", its claim will lapse", ex);
+        }
+        if (execution.interrupt()) {
+            WATCHDOG.schedule(() -> {
+                if (execution.running() && !cancelled) {
+                    LOG.log(Level.WARNING, "Task {0} ignored being stopped, abandoning its thread", id);
+                    cancelled = true;
+                    if (replacer != null) {
+                        replacer.accept(this);
+                    }
+                }
+            }, ABANDON_GRACE, TimeUnit.MILLISECONDS);
+        }
+    }
+
     public void shutdown() {
         this.cancelled = true;
     }
 
-    class WorkerCallback implements CauldronCallback {
+    /**
+     * A task being run, which either the runnable or the watchdog finishes
+     */
+    private static final class Execution {
+
+        final CauldronTask task;
+        final WorkerCallback callback;
+        final Thread thread;
+        final TimeoutPolicy policy;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private boolean returned;
+
+        Execution(CauldronTask task, WorkerCallback callback, Thread thread, TimeoutPolicy policy) {
+            this.task = task;
+            this.callback = callback;
+            this.thread = thread;
+            this.policy = policy;
+        }
+
+        /**
+         * @return true for the first caller only, who acknowledges the task
+         */
+        boolean finish() {
+            return finished.compareAndSet(false, true);
+        }
+
+        /**
+         * Interrupt the task, unless it has already returned, when the
+         * interrupt would hit whatever the thread does next
+         *
+         * @return true if interrupted
+         */
+        synchronized boolean interrupt() {
+            if (returned) {
+                return false;
+            }
+            thread.interrupt();
+            return true;
+        }
+
+        synchronized boolean running() {
+            return !returned;
+        }
+
+        synchronized void returned() {
+            returned = true;
+            // Clear an interrupt meant for the task
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Callback whose log and progress calls never wait for the database.
+     *
+     * Lines go into a bounded ring buffer and progress is published with a
+     * volatile write. Both are written by the shared flusher every second, or
+     * sooner when the buffer is half full, and finally by close() on the task
+     * thread.
+     */
+    static class WorkerCallback implements CauldronCallback {
+
+        // Seconds a claim lasts from each write
+        static final int LEASE = 1000;
 
         private final Cauldron cauldron;
         private final String id;
-        private long lastLog;
-        private double progress;
-        private final List<String> logs;
         private final String name;
+        private final LogBuffer logs;
+        private final LogOverflowPolicy overflow;
+        private final AtomicLong dropped;
+        private final AtomicBoolean flushRequested;
+        private final ScheduledFuture<?> flushes;
+        private final LatencyHistogram writes;
+        private volatile double progress;
+        private volatile boolean closed;
+        private double flushedProgress;
 
-        public WorkerCallback(Cauldron cauldron, String id, String name) {
+        WorkerCallback(Cauldron cauldron, String id, String name, int logBufferSize, LogOverflowPolicy overflow, LatencyHistogram writes) {
             this.cauldron = cauldron;
             this.id = id;
-            this.lastLog = 0L;
-            this.progress = -1.0;
-            this.logs = new ArrayList<>();
             this.name = name;
+            this.logs = new LogBuffer(logBufferSize);
+            this.overflow = overflow;
+            this.dropped = new AtomicLong();
+            this.flushRequested = new AtomicBoolean();
+            this.progress = -1.0;
+            // Nothing flushed yet, so the first flush always writes and marks the task started
+            this.flushedProgress = Double.NaN;
+            this.closed = false;
+            this.writes = writes;
+            this.flushes = FLUSHER.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            requestFlush();
         }
 
         @Override
         public void log(String message) {
-            logs.add(message);
-            log(false);
+            if (message == null) {
+                return;
+            }
+            while (!logs.offer(message)) {
+                requestFlush();
+                if (overflow == LogOverflowPolicy.Drop) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(100_000L);
+            }
+            if (logs.size() >= logs.capacity() / 2) {
+                requestFlush();
+            }
         }
 
         @Override
         public void progress(String message, double progress) {
-            if (message != null) {
-                logs.add(message);
-            }
+            log(message);
             this.progress = progress;
-            log(progress >= 1.0);
         }
 
         @Override
         public void progress(double progress) {
             this.progress = progress;
-            log(progress >= 1.0);
         }
 
-        private void log(boolean force) {
-            if (force || System.currentTimeMillis() - lastLog > 1000) {
-                cauldron.progress(id, logs, progress, 1000, name);
-                logs.clear();
-                lastLog = System.currentTimeMillis();
+        @Override
+        public String fork(List<? extends CauldronTask> children, CauldronJoinTask join) {
+            return cauldron.fork(id, children, join);
+        }
+
+        private void requestFlush() {
+            if (flushRequested.compareAndSet(false, true)) {
+                FLUSHER.execute(this::flush);
+            }
+        }
+
+        /**
+         * Stop background flushing and write whatever is left
+         */
+        synchronized void close() {
+            closed = true;
+            flushes.cancel(false);
+            write(LEASE);
+        }
+
+        /**
+         * Stop background flushing, so the claim is no longer renewed, and
+         * write whatever is left and a last line, with a claim lasting the
+         * given time
+         *
+         * @param message last line
+         * @param resetDuration seconds until the claim lapses
+         */
+        synchronized void expire(String message, int resetDuration) {
+            closed = true;
+            flushes.cancel(false);
+            logs.offer(message);
+            write(resetDuration);
+        }
+
+        private void flush() {
+            flushRequested.set(false);
+            // Writing progress marks the task running, so nothing may be written once it is acknowledged
+            synchronized (this) {
+                if (!closed) {
+                    write(LEASE);
+                }
+            }
+        }
+
+        private synchronized void write(int resetDuration) {
+            try {
+                List<String> lines = new ArrayList<>();
+                logs.drain(lines);
+                long lost = dropped.getAndSet(0L);
+                if (lost > 0) {
+                    lines.add(lost + " log lines dropped");
+                }
+                double current = progress;
+                if (!lines.isEmpty() || Double.compare(current, flushedProgress) != 0 || resetDuration != LEASE) {
+                    long start = System.nanoTime();
+                    cauldron.progress(id, lines, current, resetDuration, name);
+                    writes.recordSince(start);
+                    flushedProgress = current;
+                }
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Failed to write progress of " + id, ex);
             }
         }
 
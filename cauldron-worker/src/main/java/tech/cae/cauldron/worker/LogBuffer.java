@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron.worker;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring buffer of log lines, written by any number of task threads
+ * without locking and drained by a single flushing thread.
+ *
+ * Writers claim a slot by advancing the tail, then publish their line into
+ * it. The reader takes published lines in order, stopping at a claimed slot
+ * whose line is not yet published, and frees slots by advancing the head.
+ *
+ * @author peter
+ */
+final class LogBuffer {
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0L;
+
+    /**
+     *
+     * @param capacity rounded up to a power of two
+     */
+    LogBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        size = size < capacity ? size << 1 : size;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Number of lines claimed but not yet drained
+     */
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Add a line if there is room
+     *
+     * @param line not null
+     * @return false if the buffer is full
+     */
+    boolean offer(String line) {
+        while (true) {
+            long position = tail.get();
+            if (position - head >= slots.length()) {
+                return false;
+            }
+            if (tail.compareAndSet(position, position + 1)) {
+                slots.lazySet((int) position & mask, line);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move published lines into a list, from the flushing thread only
+     *
+     * @param lines receives the lines in order
+     * @return number of lines drained
+     */
+    int drain(List<String> lines) {
+        long position = head;
+        int drained = 0;
+        while (true) {
+            int index = (int) position & mask;
+            String line = slots.get(index);
+            if (line == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            lines.add(line);
+            position++;
+            drained++;
+        }
+        // Publishing the new head after clearing the slots lets writers reuse them
+        head = position;
+        return drained;
+    }
+}
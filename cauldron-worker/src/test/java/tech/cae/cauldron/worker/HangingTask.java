@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron.worker;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.concurrent.atomic.AtomicInteger;
+import tech.cae.cauldron.api.CauldronCallback;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ * Task that hangs, until interrupted, on its first runs
+ *
+ * @author peter
+ */
+public class HangingTask extends CauldronTask {
+
+    static final AtomicInteger RUNS = new AtomicInteger();
+
+    @JsonProperty
+    private int hangs;
+
+    public HangingTask() {
+    }
+
+    public HangingTask(int hangs) {
+        this.hangs = hangs;
+    }
+
+    @Override
+    public void run(CauldronCallback callback) throws CauldronException {
+        if (RUNS.incrementAndGet() <= hangs) {
+            try {
+                while (true) {
+                    callback.log("Still going");
+                    Thread.sleep(50L);
+                }
+            } catch (InterruptedException ex) {
+                throw new CauldronException("Interrupted", ex);
+            }
+        }
+    }
+
+}
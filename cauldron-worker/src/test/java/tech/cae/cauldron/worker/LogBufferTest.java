@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron.worker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author peter
+ */
+public class LogBufferTest {
+
+    @Test
+    public void testFull() {
+        LogBuffer buffer = new LogBuffer(3);
+        Assert.assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(buffer.offer("line " + i));
+        }
+        Assert.assertFalse(buffer.offer("line 4"));
+        List<String> lines = new ArrayList<>();
+        Assert.assertEquals(4, buffer.drain(lines));
+        Assert.assertEquals("line 0", lines.get(0));
+        Assert.assertTrue(buffer.offer("line 4"));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        LogBuffer buffer = new LogBuffer(64);
+        int writers = 4;
+        int perWriter = 20000;
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            String prefix = Integer.toString(w);
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    while (!buffer.offer(prefix + ":" + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        List<String> lines = new ArrayList<>();
+        while (lines.size() < writers * perWriter) {
+            buffer.drain(lines);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Every line arrives once, and each writer's lines arrive in order
+        Map<String, Integer> next = new HashMap<>();
+        for (String line : lines) {
+            String[] parts = line.split(":");
+            int expected = next.getOrDefault(parts[0], 0);
+            Assert.assertEquals(expected, Integer.parseInt(parts[1]));
+            next.put(parts[0], expected + 1);
+        }
+        Assert.assertEquals(writers, next.size());
+    }
+}
@@ -20,7 +20,7 @@ public class TestTypes extends CauldronTaskTypeProvider {
 
     @Override
     public Collection<Class<? extends CauldronTask>> getTaskTypes() {
-        return Arrays.asList(AddingTask.class);
+        return Arrays.asList(AddingTask.class, HangingTask.class);
     }
 
 }
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron.worker;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import tech.cae.cauldron.Cauldron;
+import tech.cae.cauldron.InMemoryQueueBackend;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class TimeoutTest {
+
+    @Before
+    public void reset() {
+        HangingTask.RUNS.set(0);
+    }
+
+    @Test
+    public void testFail() throws CauldronException, InterruptedException, ExecutionException, TimeoutException {
+        Cauldron cauldron = new Cauldron(new InMemoryQueueBackend());
+        CauldronWorker worker = new CauldronWorker(cauldron, 1);
+        try {
+            HangingTask task = new HangingTask(1);
+            task.setTimeout(200L);
+            String id = cauldron.submit(task).getId();
+            cauldron.getCompletion(id).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(CauldronStatus.Failed, cauldron.getTaskMeta(id).getStatus());
+
+            // The thread is free for the next task
+            String next = cauldron.submit(new HangingTask(0)).getId();
+            cauldron.getCompletion(next).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(CauldronStatus.Completed, cauldron.getTaskMeta(next).getStatus());
+        } finally {
+            worker.shutdown(true);
+        }
+    }
+
+    @Test
+    public void testRequeue() throws CauldronException, InterruptedException, ExecutionException, TimeoutException {
+        Cauldron cauldron = new Cauldron(new InMemoryQueueBackend());
+        CauldronWorker worker = new CauldronWorker(cauldron, 1);
+        worker.setTimeoutPolicy(TimeoutPolicy.Requeue);
+        try {
+            HangingTask task = new HangingTask(1);
+            task.setTimeout(200L);
+            String id = cauldron.submit(task).getId();
+            cauldron.getCompletion(id).get(10, TimeUnit.SECONDS);
+            Cauldron.TaskMeta meta = cauldron.getTaskMeta(id);
+            Assert.assertEquals(CauldronStatus.Completed, meta.getStatus());
+            Assert.assertEquals(1, meta.getAttempt());
+            Assert.assertEquals(2, HangingTask.RUNS.get());
+        } finally {
+            worker.shutdown(true);
+        }
+    }
+}
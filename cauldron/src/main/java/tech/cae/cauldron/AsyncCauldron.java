@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import org.reactivestreams.Publisher;
+import tech.cae.cauldron.api.CauldronConfiguration;
+import tech.cae.cauldron.api.CauldronConfigurationProvider;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ * Non-blocking client, built on the reactive streams driver. Every call
+ * returns immediately with a CompletableFuture, or a Publisher for results
+ * that are streamed, so many tasks can be submitted and tracked without a
+ * thread per call.
+ *
+ * Tasks submitted here are stored exactly as by {@link Cauldron}, and can be
+ * claimed and acknowledged through either.
+ *
+ * @author peter
+ */
+public class AsyncCauldron {
+
+    private static AsyncCauldron INSTANCE;
+
+    private final TaskSerializer serializer;
+    private final AsyncQueueCore queue;
+    private final ConcurrentMap<String, RetryPolicy> retryPolicies = new ConcurrentHashMap<>();
+    private volatile RetryPolicy defaultRetryPolicy;
+
+    public static synchronized AsyncCauldron get() {
+        if (INSTANCE == null) {
+            INSTANCE = new AsyncCauldron();
+        }
+        return INSTANCE;
+    }
+
+    AsyncCauldron() {
+        this(CauldronConfigurationProvider.get());
+    }
+
+    AsyncCauldron(CauldronConfiguration configuration) {
+        this((configuration.getDbUri() != null
+                ? MongoClients.create(configuration.getDbUri())
+                : MongoClients.create("mongodb://" + configuration.getDbHost() + ":" + configuration.getDbPort()))
+                .getDatabase(configuration.getDbName()),
+                configuration.getDbCollection());
+    }
+
+    AsyncCauldron(MongoDatabase database, String queueCollection) {
+        this.serializer = new TaskSerializer();
+        this.queue = new AsyncQueueCore(database.getCollection(queueCollection),
+                database.getCollection(queueCollection + "_logs"),
+                database.getCollection(queueCollection + "_archive"));
+    }
+
+    public <T extends CauldronTask> CompletableFuture<Cauldron.SubmitResponse> submit(T task) {
+        return submit(task, 0, Arrays.asList());
+    }
+
+    /**
+     * Submit a task at most once for a given key, see
+     * {@link Cauldron#submit(CauldronTask, String)}
+     *
+     * @param <T>
+     * @param task Task to submit
+     * @param key Idempotency key, or null to always submit
+     * @return
+     */
+    public <T extends CauldronTask> CompletableFuture<Cauldron.SubmitResponse> submit(T task, String key) {
+        return queue.send(serializer.serialize(task), new Date(), 0.0, Arrays.asList(), key)
+                .thenApply(Cauldron.SubmitResponse::new);
+    }
+
+    <T extends CauldronTask> CompletableFuture<Cauldron.SubmitResponse> submit(T task, long delay, List<String> parents) {
+        return queue.send(serializer.serialize(task), Date.from(Instant.now().plusMillis(delay)), 0.0, parents, null)
+                .thenApply(Cauldron.SubmitResponse::new);
+    }
+
+    public <T extends CauldronTask> CompletableFuture<List<Cauldron.SubmitResponse>> submitMulti(List<T> tasks) {
+        return queue.sendMulti(tasks.stream().map(serializer::serialize).collect(Collectors.toList()), new Date(), 0.0)
+                .thenApply(ids -> ids.stream().map(Cauldron.SubmitResponse::new).collect(Collectors.toList()));
+    }
+
+    /**
+     * Get a task by id. Completes exceptionally with a CauldronException if
+     * there is no such task.
+     *
+     * @param id Task id
+     * @return
+     */
+    public CompletableFuture<CauldronTask> getTask(String id) {
+        return queue.find(id, new Document("payload", 1)).thenApply(message -> {
+            if (message == null) {
+                throw new CompletionException(new CauldronException("No such task " + id));
+            }
+            Document payload = message.get("payload", Document.class);
+            payload.put("id", message.getObjectId("_id").toHexString());
+            return deserialize(payload);
+        });
+    }
+
+    /**
+     * Get progress information for a task. Completes with null if there is no
+     * such task.
+     *
+     * @param id Task id
+     * @return
+     */
+    public CompletableFuture<Cauldron.TaskMeta> getTaskMeta(String id) {
+        return queue.find(id, Cauldron.META_PROJECTION).thenApply(Cauldron::deserializeMeta);
+    }
+
+    /**
+     * Stream metadata for tasks matching a query
+     *
+     * @param query Task query
+     * @return
+     */
+    public Publisher<Cauldron.TaskMeta> getTasksMetaData(TaskQuery query) {
+        return Publishers.map(queue.getCollection().find(query.toFilter())
+                .sort(query.toSort())
+                .limit(query.getLimit())
+                .batchSize(query.getBatchSize())
+                .projection(Cauldron.META_PROJECTION), Cauldron::deserializeMeta);
+    }
+
+    public <T extends CauldronTask> CompletableFuture<Void> completed(T task, CauldronStatus status) {
+        return queue.ack(serializer.serialize(task), status.toString());
+    }
+
+    public CompletableFuture<Void> progress(String id, Collection<String> log, double progress, int resetDuration, String worker) {
+        return queue.progress(id, log, progress, resetDuration, worker);
+    }
+
+    /**
+     * Set how long the tasks unblocked by a completed task are reserved for
+     * workers on the same node as the worker that ran it, so that files it
+     * wrote are still in the local cache when they run. Worker names are
+     * expected to be of the form node:thread.
+     *
+     * @param window Window in milliseconds, or 0 to let any worker claim
+     * unblocked tasks immediately
+     */
+    public void setAffinityWindow(long window) {
+        queue.setAffinityWindow(window);
+    }
+
+    /**
+     * Set how tasks of every type without a retry policy of their own are
+     * retried when their claim lapses, see
+     * {@link Cauldron#setRetryPolicy(RetryPolicy)}. Clients sharing a queue
+     * should be given the same policies.
+     *
+     * @param policy Retry policy, or null to queue them again without limit
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        defaultRetryPolicy = policy;
+        queue.setRetryPolicies(this::getRetryPolicy);
+    }
+
+    /**
+     * Set how tasks of a type are retried when their claim lapses
+     *
+     * @param type Task type
+     * @param policy Retry policy, or null for the default policy
+     */
+    public void setRetryPolicy(Class<? extends CauldronTask> type, RetryPolicy policy) {
+        if (policy == null) {
+            retryPolicies.remove(type.getName());
+        } else {
+            retryPolicies.put(type.getName(), policy);
+        }
+        queue.setRetryPolicies(this::getRetryPolicy);
+    }
+
+    RetryPolicy getRetryPolicy(String type) {
+        RetryPolicy policy = retryPolicies.get(type);
+        return policy == null ? defaultRetryPolicy : policy;
+    }
+
+    /**
+     * Make a single attempt to claim a queued task of one of the given types.
+     *
+     * @param types Task types the caller can run
+     * @param resetDuration Seconds before the task is considered abandoned
+     * unless progress is reported
+     * @param worker Name of the claiming worker
+     * @return the claimed task, or null if none are queued
+     */
+    public CompletableFuture<CauldronTask> claim(Set<Class<? extends CauldronTask>> types, int resetDuration, String worker) {
+        Document query = new Document("type", new Document("$in", types.stream().map(Class::getName).collect(Collectors.toList())));
+        return queue.get(query, resetDuration, worker)
+                .thenApply(doc -> doc == null ? null : deserialize(doc));
+    }
+
+    private CauldronTask deserialize(Document document) {
+        try {
+            return serializer.deserialize(document);
+        } catch (CauldronException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Non-blocking counterpart of MongoQueueCore on the reactive streams driver.
+ * It uses the same queries and updates, so messages written by either can be
+ * read and acknowledged by the other.
+ *
+ * @author peter
+ */
+final class AsyncQueueCore {
+
+    private static final Logger LOG = Logger.getLogger(AsyncQueueCore.class.getName());
+
+    private final MongoCollection<Document> collection;
+    private final MongoCollection<Document> logs;
+    private final MongoCollection<Document> archive;
+    private volatile long affinityWindow = MongoQueueCore.DEFAULT_AFFINITY_WINDOW;
+    private volatile Function<String, RetryPolicy> retryPolicies;
+
+    AsyncQueueCore(final MongoCollection<Document> collection, final MongoCollection<Document> logs, final MongoCollection<Document> archive) {
+        this.collection = Objects.requireNonNull(collection);
+        this.logs = Objects.requireNonNull(logs);
+        this.archive = Objects.requireNonNull(archive);
+    }
+
+    void setAffinityWindow(final long affinityWindow) {
+        if (affinityWindow < 0) {
+            throw new IllegalArgumentException("affinityWindow must not be negative");
+        }
+        this.affinityWindow = affinityWindow;
+    }
+
+    void setRetryPolicies(final Function<String, RetryPolicy> policies) {
+        this.retryPolicies = policies;
+    }
+
+    /**
+     * Make a single attempt to claim a queued message, after resetting any
+     * whose reset timestamp has passed
+     *
+     * @return message, or null if none are queued
+     */
+    CompletableFuture<Document> get(final Document query, final int resetDuration, final String worker) {
+        Objects.requireNonNull(query);
+        return reset(MongoQueueCore.resetQuery(new Date()))
+                .thenCompose(reset -> Publishers.first(collection.findOneAndUpdate(
+                MongoQueueCore.claimQuery(query, new Date(), worker),
+                MongoQueueCore.claimUpdate(resetDuration, worker),
+                MongoQueueCore.claimOptions())))
+                .thenApply(message -> message == null ? null : MongoQueueCore.claimed(message));
+    }
+
+    CompletableFuture<Void> ack(final Document message, final String status) {
+        Objects.requireNonNull(message);
+        final String id = message.getString("id");
+        return Publishers.first(collection.findOneAndUpdate(new Document("_id", new ObjectId(id)), MongoQueueCore.ackUpdate(message, status), MongoQueueCore.ackOptions()))
+                .thenCompose(before -> finished(id, status, before));
+    }
+
+    /**
+     * Count a finished message towards its join, and release or cancel its
+     * dependents
+     */
+    private CompletableFuture<Void> finished(final String id, final String status, final Document before) {
+        final List<String> acked = Arrays.asList(id);
+        final ObjectId join = MongoQueueCore.joinToCount(before);
+        final CompletableFuture<Void> counted = join == null
+                ? CompletableFuture.completedFuture(null)
+                : Publishers.done(collection.updateOne(new Document("_id", join), MongoQueueCore.JOIN_COUNT_UPDATE));
+        return counted
+                .thenCompose(done -> "completed".equals(status)
+                ? Publishers.done(collection.updateMany(MongoQueueCore.dependentsQuery(MongoQueueCore.PARENTS, acked), MongoQueueCore.releaseUpdate(MongoQueueCore.PARENTS, acked, before, affinityWindow)))
+                : cancelDependents(acked))
+                .thenCompose(done -> Publishers.done(collection.updateMany(MongoQueueCore.dependentsQuery(MongoQueueCore.ANY_PARENTS, acked), MongoQueueCore.releaseUpdate(MongoQueueCore.ANY_PARENTS, acked, before, affinityWindow))))
+                .thenCompose(done -> Publishers.done(collection.updateMany(MongoQueueCore.UNBLOCK_QUERY, MongoQueueCore.UNBLOCK_UPDATE, new UpdateOptions().upsert(false))));
+    }
+
+    /**
+     * Queue again running messages whose claims have lapsed, after the
+     * backoff of their retry policy, or fail those that have had all their
+     * attempts, one at a time as MongoQueueCore does. Without retry policies
+     * they are all queued again in one update.
+     */
+    private CompletableFuture<Void> reset(final Document query) {
+        final Function<String, RetryPolicy> policies = retryPolicies;
+        if (policies == null) {
+            return Publishers.done(collection.updateMany(query, MongoQueueCore.RESET_UPDATE, new UpdateOptions().upsert(false)));
+        }
+        return Publishers.toList(collection.find(query).projection(new Document("payload.type", 1).append("attempt", 1)))
+                .thenCompose(lapsed -> {
+                    CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+                    for (Document message : lapsed) {
+                        done = done.thenCompose(previous -> reset(query, message, policies));
+                    }
+                    return done;
+                });
+    }
+
+    private CompletableFuture<Void> reset(final Document query, final Document lapsed, final Function<String, RetryPolicy> policies) {
+        final ObjectId id = lapsed.getObjectId("_id");
+        final int attempt = lapsed.getInteger("attempt", 0);
+        final RetryPolicy policy = policies.apply(lapsed.get("payload", Document.class).getString("type"));
+        // Unless claimed again, extended or finished since it was found
+        final Document filter = new Document(query).append("_id", id).append("attempt", attempt);
+        if (policy == null) {
+            return Publishers.done(collection.updateOne(filter, MongoQueueCore.RESET_UPDATE));
+        }
+        if (policy.canRetry(attempt)) {
+            final Date earliestGet = new Date(System.currentTimeMillis() + policy.getBackoff(attempt));
+            return Publishers.done(collection.updateOne(filter, MongoQueueCore.retryUpdate(earliestGet)));
+        }
+        return Publishers.first(collection.findOneAndUpdate(filter, MongoQueueCore.failUpdate(), MongoQueueCore.ackOptions()))
+                .thenCompose(before -> {
+                    if (before == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    LOG.log(Level.WARNING, "Failing {0} after {1} attempts", new Object[]{id.toHexString(), attempt + 1});
+                    return finished(id.toHexString(), "failed", before);
+                });
+    }
+
+    /**
+     * Cancel the blocked dependents of the given messages transitively, a
+     * bounded batch of ids at a time, as MongoQueueCore does
+     */
+    private CompletableFuture<Void> cancelDependents(final List<String> frontier) {
+        if (frontier.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final List<String> batch = frontier.subList(0, Math.min(frontier.size(), MongoQueueCore.CASCADE_BATCH_SIZE));
+        final List<String> rest = frontier.subList(batch.size(), frontier.size());
+        return Publishers.toList(collection.find(MongoQueueCore.dependentsQuery(MongoQueueCore.PARENTS, batch).append("status", "blocked"))
+                .projection(new Document("_id", 1))
+                .batchSize(MongoQueueCore.CASCADE_BATCH_SIZE))
+                .thenCompose(found -> {
+                    if (found.isEmpty()) {
+                        return cancelDependents(rest);
+                    }
+                    final List<ObjectId> dependents = found.stream().map(dependent -> dependent.getObjectId("_id")).collect(Collectors.toList());
+                    final List<String> cancelled = dependents.stream().map(ObjectId::toHexString).collect(Collectors.toList());
+                    final List<String> next = new ArrayList<>(rest);
+                    next.addAll(cancelled);
+                    return Publishers.done(collection.updateMany(MongoQueueCore.cancelQuery(dependents), MongoQueueCore.cancelUpdate()))
+                            .thenCompose(done -> Publishers.done(collection.updateMany(MongoQueueCore.dependentsQuery(MongoQueueCore.ANY_PARENTS, cancelled), MongoQueueCore.releaseUpdate(MongoQueueCore.ANY_PARENTS, cancelled))))
+                            .thenCompose(done -> cancelDependents(next));
+                });
+    }
+
+    CompletableFuture<String> send(final Document payload, final Date earliestGet, final double priority, final List<String> parents, final String key) {
+        Objects.requireNonNull(payload);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+        final Document message = MongoQueueCore.message(payload, earliestGet, priority, parents);
+        if (key != null) {
+            message.append("dedupKey", key);
+        }
+        if (key == null) {
+            return Publishers.done(collection.insertOne(message)).thenApply(inserted -> message.getObjectId("_id").toHexString());
+        }
+        // Keys of archived messages stay taken
+        return findByKey(archive, key).thenCompose(archived -> archived != null
+                ? CompletableFuture.completedFuture(archived)
+                : insertKeyed(message, key, true));
+    }
+
+    /**
+     * Insert a message with a deduplication key, or complete with the id of
+     * the message that holds the key
+     *
+     * @param retry whether to insert once more if the message holding the key
+     * has gone since
+     */
+    private CompletableFuture<String> insertKeyed(final Document message, final String key, final boolean retry) {
+        final CompletableFuture<String> sent = new CompletableFuture<>();
+        Publishers.done(collection.insertOne(message)).whenComplete((inserted, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                sent.complete(message.getObjectId("_id").toHexString());
+            } else if (retry && cause instanceof MongoWriteException
+                    && ((MongoWriteException) cause).getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                // Already sent, so return the id of the existing message, which may have been archived since
+                findByKey(collection, key)
+                        .thenCompose(existing -> existing != null ? CompletableFuture.completedFuture(existing) : findByKey(archive, key))
+                        .thenCompose(existing -> existing != null
+                        ? CompletableFuture.completedFuture(existing)
+                        // Removed since, so the key is free again: insert once more, failing if it is taken again
+                        : insertKeyed(message, key, false))
+                        .whenComplete((id, findError) -> {
+                            if (findError != null) {
+                                sent.completeExceptionally(findError instanceof CompletionException ? findError.getCause() : findError);
+                            } else {
+                                sent.complete(id);
+                            }
+                        });
+            } else {
+                sent.completeExceptionally(cause);
+            }
+        });
+        return sent;
+    }
+
+    private static CompletableFuture<String> findByKey(final MongoCollection<Document> collection, final String key) {
+        return Publishers.first(collection.find(new Document("dedupKey", key)).projection(new Document("_id", 1)).first())
+                .thenApply(found -> found == null ? null : found.getObjectId("_id").toHexString());
+    }
+
+    CompletableFuture<List<String>> sendMulti(final List<Document> payloads, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(payloads);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+        final List<Document> messages = payloads.stream()
+                .map(payload -> MongoQueueCore.message(payload, earliestGet, priority, Collections.emptyList()))
+                .collect(Collectors.toList());
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        return Publishers.done(collection.insertMany(messages))
+                .thenApply(inserted -> messages.stream().map(message -> message.getObjectId("_id").toHexString()).collect(Collectors.toList()));
+    }
+
+    CompletableFuture<Void> progress(final String id, final Collection<String> log, final double progress, final int resetDuration, final String worker) {
+        final Document chunk = TaskLogStore.chunk(id, log);
+        final CompletableFuture<Void> logged = chunk == null
+                ? CompletableFuture.completedFuture(null)
+                : Publishers.first(collection.findOneAndUpdate(Filters.eq("_id", new ObjectId(id)), TaskLogStore.numberUpdate(chunk), TaskLogStore.numberOptions()))
+                        .thenCompose(before -> Publishers.done(logs.insertOne(TaskLogStore.numbered(chunk, before))));
+        return logged.thenCombine(Publishers.done(collection.updateOne(MongoQueueCore.progressQuery(id, worker),
+                MongoQueueCore.progressUpdate(progress, resetDuration))), (a, b) -> null);
+    }
+
+    /**
+     * Find a message in the queue collection, or else in the archive
+     */
+    CompletableFuture<Document> find(final String id, final Document projection) {
+        final Document query = new Document("_id", new ObjectId(id));
+        return Publishers.first(collection.find(query).projection(projection).first())
+                .thenCompose(message -> message != null
+                ? CompletableFuture.completedFuture(message)
+                : Publishers.first(archive.find(query).projection(projection).first()));
+    }
+
+    MongoCollection<Document> getCollection() {
+        return collection;
+    }
+}
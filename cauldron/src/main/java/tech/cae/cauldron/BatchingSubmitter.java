@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import tech.cae.cauldron.api.CauldronTask;
+
+/**
+ * Gathers tasks submitted concurrently from many threads into batches, each
+ * sent with a single insertMany. A batch is sent once it reaches the maximum
+ * size, or once its first task has waited for the linger time, whichever
+ * comes first.
+ *
+ * Tasks are serialized on the submitting thread, so a task that cannot be
+ * serialized fails immediately rather than failing its batch.
+ *
+ * @author peter
+ */
+public class BatchingSubmitter implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(BatchingSubmitter.class.getName());
+
+    private final Cauldron cauldron;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    BatchingSubmitter(Cauldron cauldron, int maxBatchSize, long lingerMillis) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("lingerMillis must not be negative");
+        }
+        this.cauldron = cauldron;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.flusher = new Thread(this::run, "cauldron-batching-submitter");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public <T extends CauldronTask> CompletableFuture<Cauldron.SubmitResponse> submit(T task) {
+        return submit(task, null);
+    }
+
+    /**
+     * Submit a task at most once for a given key, see
+     * {@link Cauldron#submit(CauldronTask, String)}
+     *
+     * @param <T>
+     * @param task Task to submit
+     * @param key Idempotency key, or null to always submit
+     * @return
+     */
+    public <T extends CauldronTask> CompletableFuture<Cauldron.SubmitResponse> submit(T task, String key) {
+        CompletableFuture<Cauldron.SubmitResponse> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("Submitter is closed"));
+            return future;
+        }
+        try {
+            pending.add(new Pending(cauldron.serialize(task), key, future));
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        while (!closed || !pending.isEmpty()) {
+            try {
+                Pending first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    // Take whatever has already arrived without waiting, then wait out the linger time
+                    if (pending.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ex) {
+                closed = true;
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch = new ArrayList<>(maxBatchSize);
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        try {
+            List<String> ids = cauldron.getBackend().sendMulti(
+                    batch.stream().map(p -> p.payload).collect(Collectors.toList()),
+                    batch.stream().map(p -> p.key).collect(Collectors.toList()),
+                    new Date(), 0.0);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(new Cauldron.SubmitResponse(ids.get(i)));
+            }
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to submit batch of " + batch.size() + " tasks", ex);
+            batch.forEach(p -> p.future.completeExceptionally(ex));
+        }
+    }
+
+    /**
+     * Send any tasks already submitted, then stop
+     *
+     * @throws InterruptedException
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        flusher.join();
+        // Anything that raced with closing is failed rather than left incomplete
+        List<Pending> late = new ArrayList<>();
+        pending.drainTo(late);
+        late.forEach(p -> p.future.completeExceptionally(new IllegalStateException("Submitter is closed")));
+    }
+
+    private static class Pending {
+
+        private final Document payload;
+        private final String key;
+        private final CompletableFuture<Cauldron.SubmitResponse> future;
+
+        Pending(Document payload, String key, CompletableFuture<Cauldron.SubmitResponse> future) {
+            this.payload = payload;
+            this.key = key;
+            this.future = future;
+        }
+    }
+}
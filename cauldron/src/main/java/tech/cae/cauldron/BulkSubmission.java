@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ * Submits tasks from an Iterator or Stream in bounded chunks, so that any
+ * number of tasks can be submitted in constant memory.
+ *
+ * The next chunk is serialized on the calling thread while earlier chunks are
+ * being inserted, with at most a fixed number of inserts in flight, so no more
+ * than (maxInFlight + 1) * chunkSize tasks are held at once.
+ *
+ * @author peter
+ * @param <T>
+ */
+public class BulkSubmission<T extends CauldronTask> {
+
+    static final int DEFAULT_CHUNK_SIZE = 1000;
+    static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    private final Cauldron cauldron;
+    private final Iterator<T> tasks;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private ToDoubleFunction<? super T> priority = task -> 0.0;
+    private ToLongFunction<? super T> delay = task -> 0L;
+    private Function<? super T, String> key = task -> null;
+    private Consumer<List<Cauldron.SubmitResponse>> onChunk = chunk -> {
+    };
+
+    BulkSubmission(Cauldron cauldron, Iterator<T> tasks) {
+        this.cauldron = cauldron;
+        this.tasks = Objects.requireNonNull(tasks);
+    }
+
+    /**
+     * Number of tasks inserted per round trip
+     *
+     * @param chunkSize
+     * @return this submission
+     */
+    public BulkSubmission<T> chunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Maximum number of chunks being inserted while the next is serialized
+     *
+     * @param maxInFlight
+     * @return this submission
+     */
+    public BulkSubmission<T> maxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Priority of each task, 0 is higher priority than 1
+     *
+     * @param priority
+     * @return this submission
+     */
+    public BulkSubmission<T> priority(ToDoubleFunction<? super T> priority) {
+        this.priority = Objects.requireNonNull(priority);
+        return this;
+    }
+
+    /**
+     * Delay in milliseconds before each task can be claimed
+     *
+     * @param delay
+     * @return this submission
+     */
+    public BulkSubmission<T> delay(ToLongFunction<? super T> delay) {
+        this.delay = Objects.requireNonNull(delay);
+        return this;
+    }
+
+    /**
+     * Idempotency key of each task, or null, see
+     * {@link Cauldron#submit(CauldronTask, String)}
+     *
+     * @param key
+     * @return this submission
+     */
+    public BulkSubmission<T> key(Function<? super T, String> key) {
+        this.key = Objects.requireNonNull(key);
+        return this;
+    }
+
+    /**
+     * Called on the submitting thread with the responses for each chunk once
+     * it has been inserted, in submission order
+     *
+     * @param onChunk
+     * @return this submission
+     */
+    public BulkSubmission<T> onChunk(Consumer<List<Cauldron.SubmitResponse>> onChunk) {
+        this.onChunk = Objects.requireNonNull(onChunk);
+        return this;
+    }
+
+    /**
+     * Submit all remaining tasks
+     *
+     * @return number of tasks submitted
+     * @throws CauldronException if a chunk fails to insert, after which no
+     * further chunks are submitted
+     */
+    public long submit() throws CauldronException {
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "cauldron-bulk-submission");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<List<String>>> inFlight = new ArrayDeque<>();
+        long submitted = 0;
+        try {
+            while (tasks.hasNext()) {
+                List<Document> chunk = nextChunk();
+                if (inFlight.size() >= maxInFlight) {
+                    submitted += complete(inFlight.removeFirst());
+                }
+                inFlight.addLast(executor.submit(() -> cauldron.getBackend().sendMessages(chunk)));
+            }
+            while (!inFlight.isEmpty()) {
+                submitted += complete(inFlight.removeFirst());
+            }
+            return submitted;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CauldronException("Interrupted after submitting " + submitted + " tasks", ex);
+        } catch (ExecutionException ex) {
+            throw new CauldronException("Failed after submitting " + submitted + " tasks", ex.getCause());
+        } finally {
+            // Let inserts already sent finish, but send nothing more
+            inFlight.forEach(future -> future.cancel(false));
+            executor.shutdown();
+        }
+    }
+
+    private List<Document> nextChunk() {
+        List<Document> chunk = new ArrayList<>(chunkSize);
+        long now = System.currentTimeMillis();
+        while (chunk.size() < chunkSize && tasks.hasNext()) {
+            T task = tasks.next();
+            double taskPriority = priority.applyAsDouble(task);
+            if (Double.isNaN(taskPriority)) {
+                throw new IllegalArgumentException("priority was NaN");
+            }
+            Document message = MongoQueueCore.message(cauldron.serialize(task), new Date(now + delay.applyAsLong(task)), taskPriority, Arrays.asList());
+            String taskKey = key.apply(task);
+            if (taskKey != null) {
+                message.append("dedupKey", taskKey);
+            }
+            chunk.add(message);
+        }
+        return chunk;
+    }
+
+    private int complete(Future<List<String>> future) throws InterruptedException, ExecutionException {
+        List<String> ids = future.get();
+        onChunk.accept(ids.stream().map(Cauldron.SubmitResponse::new).collect(Collectors.toList()));
+        return ids.size();
+    }
+}
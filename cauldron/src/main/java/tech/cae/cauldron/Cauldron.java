@@ -24,30 +24,32 @@
 package tech.cae.cauldron;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import org.bson.BsonArray;
-import org.bson.BsonObjectId;
-import org.bson.BsonString;
+import java.util.stream.Stream;
 import org.bson.Document;
-import org.bson.types.ObjectId;
 import tech.cae.cauldron.api.CauldronConfiguration;
 import tech.cae.cauldron.api.CauldronConfigurationProvider;
+import tech.cae.cauldron.api.CauldronJoinTask;
 import tech.cae.cauldron.api.CauldronStatus;
 import tech.cae.cauldron.api.CauldronTask;
 import tech.cae.cauldron.api.CauldronTaskTypeProvider;
@@ -60,13 +62,30 @@ import tech.cae.cauldron.api.exceptions.CauldronException;
 public class Cauldron {
 
     private static final Logger LOG = Logger.getLogger(Cauldron.class.getName());
+    static final Document META_PROJECTION = new Document("payload.type", 1)
+            .append("status", 1)
+            .append("priority", 1)
+            .append("progress", 1)
+            .append("created", 1)
+            .append("resetTimestamp", 1)
+            .append("attempt", 1)
+            .append("worker", 1)
+            .append("unblocked", 1)
+            .append("claimed", 1)
+            .append("started", 1)
+            .append("finished", 1);
+    private static final long DEFAULT_STATS_TTL = 5000L;
     private static Cauldron INSTANCE;
 
-    private final ObjectMapper mapper;
+    private final TaskSerializer serializer;
+    private final QueueBackend backend;
     private final MongoQueueCore queue;
-    private final MongoCollection<Document> collection;
+    private final WorkerRegistry workers;
     private Distributor distributor;
     private StatusChangeMonitor changeMonitor;
+    private final QueueStatsCache statsCache;
+    private final ConcurrentMap<String, RetryPolicy> retryPolicies = new ConcurrentHashMap<>();
+    private volatile RetryPolicy defaultRetryPolicy;
 
     public static Cauldron get() {
         if (INSTANCE == null) {
@@ -88,34 +107,50 @@ public class Cauldron {
     }
 
     Cauldron(MongoDatabase database, String queueCollection) {
-        this.mapper = new ObjectMapper();
-        this.collection = database.getCollection(queueCollection);
-        this.queue = new MongoQueueCore(collection);
+        this.serializer = new TaskSerializer();
+        this.queue = new MongoQueueCore(database, queueCollection);
+        this.backend = queue;
         this.queue.ensureGetIndex();
+        this.queue.ensureListIndex();
+        this.queue.ensureKeyIndex();
+        this.queue.ensureDependencyIndex();
+        this.queue.ensureGroupIndex();
+        this.queue.ensureNodeIndex();
+        this.queue.ensureLogIndex();
+        this.workers = new WorkerRegistry(queue, database, queueCollection + "_workers");
+        this.workers.ensureIndex();
+        this.statsCache = new QueueStatsCache(this::computeQueueStats, DEFAULT_STATS_TTL);
+    }
+
+    /**
+     * Create a Cauldron on another queue backend. Everything but the worker
+     * registry works on any backend.
+     *
+     * @param backend Queue backend, e.g. an {@link InMemoryQueueBackend}
+     */
+    public Cauldron(QueueBackend backend) {
+        this.serializer = new TaskSerializer();
+        this.backend = Objects.requireNonNull(backend);
+        this.queue = null;
+        this.workers = null;
+        this.statsCache = new QueueStatsCache(this::computeQueueStats, DEFAULT_STATS_TTL);
+    }
+
+    private QueueStats computeQueueStats() {
+        Date now = new Date();
+        return QueueStats.fromAggregation(now, backend.stats(now));
     }
 
     <T extends CauldronTask> Document serialize(T object) {
-        JsonNode node = mapper.valueToTree(object);
-        return mapper.convertValue(node, Document.class);
+        return serializer.serialize(object);
     }
 
     CauldronTask deserialize(Document document) throws CauldronException {
-        Class<? extends CauldronTask> type = getTaskType(document);
-        return mapper.convertValue(document, type);
+        return serializer.deserialize(document);
     }
 
     Class<? extends CauldronTask> getTaskType(Document document) throws CauldronException {
-        String taskType = document.getString("type");
-        if (taskType == null) {
-            throw new CauldronException("No task type specified");
-        }
-        try {
-            return Thread.currentThread().getContextClassLoader().loadClass(taskType).asSubclass(CauldronTask.class);
-        } catch (ClassNotFoundException ex) {
-            throw new CauldronException("Could not find specified task type " + taskType);
-        } catch (ClassCastException ex) {
-            throw new CauldronException("Task type " + taskType + " does not extend CauldronTask");
-        }
+        return serializer.getTaskType(document);
     }
 
     public Distributor getDistributor() throws CauldronException {
@@ -125,15 +160,36 @@ public class Cauldron {
         return distributor;
     }
 
+    /**
+     * Get the registry of worker nodes, through which workers send heartbeats
+     * so that the tasks of a dead node are queued again quickly
+     *
+     * @return the registry, or null on backends other than MongoDB, whose
+     * workers share the process of the queue
+     */
+    public WorkerRegistry getWorkerRegistry() {
+        return workers;
+    }
+
     StatusChangeMonitor getChangeMonitor() {
         if (changeMonitor == null) {
-            changeMonitor = new StatusChangeMonitor(collection, this);
+            changeMonitor = new StatusChangeMonitor(backend, this);
             changeMonitor.start();
         }
         return changeMonitor;
     }
 
+    QueueBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * The MongoDB backend, for tests of its own behaviour
+     */
     MongoQueueCore getMongoQueue() {
+        if (queue == null) {
+            throw new UnsupportedOperationException("Only supported by the MongoDB queue backend");
+        }
         return queue;
     }
 
@@ -141,26 +197,154 @@ public class Cauldron {
         return submit(task, 0, Arrays.asList());
     }
 
+    /**
+     * Submit a task at most once for a given key. If a task has already been
+     * submitted with the same key, nothing is submitted and the id of the
+     * existing task is returned, so a submission can safely be retried.
+     *
+     * @param <T>
+     * @param task Task to submit
+     * @param key Idempotency key, or null to always submit
+     * @return
+     */
+    public <T extends CauldronTask> SubmitResponse submit(T task, String key) {
+        return new SubmitResponse(backend.send(serialize(task), new Date(), 0.0, Arrays.asList(), key));
+    }
+
     <T extends CauldronTask> SubmitResponse submit(T task, long delay, List<String> parents) {
-        return new SubmitResponse(queue.send(serialize(task), Date.from(Instant.now().plusMillis(delay)), 0.0, parents));
+        return new SubmitResponse(backend.send(serialize(task), Date.from(Instant.now().plusMillis(delay)), 0.0, parents, null));
     }
 
+    /**
+     * Queue a task again now, whatever its status, with its attempts counted
+     * from 0 again
+     *
+     * @param <T>
+     * @param id Task id
+     * @return
+     * @throws CauldronException
+     */
     public <T extends CauldronTask> SubmitResponse resubmit(String id) throws CauldronException {
-        Iterator<Document> it = collection.find(new Document("_id", new ObjectId(id))).iterator();
-        if (it.hasNext()) {
-            Document message = it.next();
-            return new SubmitResponse(queue.requeue(message, new Date(), 0.0));
+        Document message = find(id, new Document("payload", 1).append("priority", 1));
+        if (message != null) {
+            Document payload = message.get("payload", Document.class);
+            payload.put("id", id);
+            return new SubmitResponse(backend.requeue(payload, new Date(), message.getDouble("priority")));
         }
         throw new CauldronException("No such task");
     }
 
     public <T extends CauldronTask> List<SubmitResponse> submitMulti(List<T> tasks) {
-        return queue.sendMulti(
+        return backend.sendMulti(
+                tasks.stream().map(task -> serialize(task))
+                        .collect(Collectors.toList()), null, new Date(), 0.0).stream()
+                .map(id -> new SubmitResponse(id)).collect(Collectors.toList());
+    }
+
+    /**
+     * Submit tasks in one round trip, each at most once for its key. Tasks
+     * whose key has already been submitted are not submitted again, and the
+     * id of the existing task is returned in their place.
+     *
+     * @param <T>
+     * @param tasks Tasks to submit
+     * @param keys Idempotency keys in the same order as the tasks, with null
+     * for tasks that should always be submitted
+     * @return
+     */
+    public <T extends CauldronTask> List<SubmitResponse> submitMulti(List<T> tasks, List<String> keys) {
+        return backend.sendMulti(
                 tasks.stream().map(task -> serialize(task))
-                        .collect(Collectors.toList()), new Date(), 0.0).stream()
+                        .collect(Collectors.toList()), keys, new Date(), 0.0).stream()
                 .map(id -> new SubmitResponse(id)).collect(Collectors.toList());
     }
 
+    /**
+     * Prepare to submit tasks from an iterator in bounded chunks. Configure
+     * priority, delay, chunk size and progress on the returned submission, and
+     * then call {@link BulkSubmission#submit()}.
+     *
+     * @param <T>
+     * @param tasks Tasks to submit, consumed lazily
+     * @return
+     */
+    public <T extends CauldronTask> BulkSubmission<T> bulk(Iterator<T> tasks) {
+        return new BulkSubmission<>(this, tasks);
+    }
+
+    public <T extends CauldronTask> BulkSubmission<T> bulk(Stream<T> tasks) {
+        return new BulkSubmission<>(this, tasks.iterator());
+    }
+
+    /**
+     * Submit tasks from an iterator in bounded chunks, without holding them
+     * all in memory
+     *
+     * @param <T>
+     * @param tasks Tasks to submit, consumed lazily
+     * @return number of tasks submitted
+     * @throws CauldronException
+     */
+    public <T extends CauldronTask> long submitAll(Iterator<T> tasks) throws CauldronException {
+        return bulk(tasks).submit();
+    }
+
+    public <T extends CauldronTask> long submitStream(Stream<T> tasks) throws CauldronException {
+        return bulk(tasks).submit();
+    }
+
+    /**
+     * Create a submitter that gathers tasks submitted concurrently into
+     * batches, each sent in one round trip
+     *
+     * @param maxBatchSize Maximum number of tasks per batch
+     * @param lingerMillis Maximum time a task waits for its batch to fill
+     * @return
+     */
+    public BatchingSubmitter createBatchingSubmitter(int maxBatchSize, long lingerMillis) {
+        return new BatchingSubmitter(this, maxBatchSize, lingerMillis);
+    }
+
+    /**
+     * Submit children of a running task, and a join task that runs once all
+     * the children have finished, if the running task completes
+     *
+     * @param parent Id of the running task
+     * @param children Tasks to run in parallel
+     * @param join Task to run after the children
+     * @return Id of the join task
+     */
+    public String fork(String parent, List<? extends CauldronTask> children, CauldronJoinTask join) {
+        return backend.fork(parent,
+                children.stream().map(task -> serialize(task)).collect(Collectors.toList()),
+                serialize(join), 0.0);
+    }
+
+    /**
+     * Pass the results of the completed children of a join task to it, in
+     * batches in the order they were forked. Children already moved to the
+     * archive are read from there.
+     *
+     * @param join Join task, as claimed from the queue
+     * @param batchSize Maximum number of results per batch
+     * @throws CauldronException
+     */
+    public void join(CauldronJoinTask join, int batchSize) throws CauldronException {
+        List<CauldronTask> batch = new ArrayList<>(batchSize);
+        for (Document child : backend.joined(join.getId(), batchSize)) {
+            Document payload = child.get("payload", Document.class);
+            payload.put("id", child.getObjectId("_id").toHexString());
+            batch.add(deserialize(payload));
+            if (batch.size() >= batchSize) {
+                join.join(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            join.join(batch);
+        }
+    }
+
     /**
      *
      * @param <T>
@@ -168,14 +352,39 @@ public class Cauldron {
      * @param status
      */
     public <T extends CauldronTask> void completed(T task, CauldronStatus status) {
-        queue.ack(serialize(task), status.toString());
+        backend.ack(serialize(task), status.toString());
+    }
+
+    /**
+     * Fail a claimed task, or queue it again after a backoff if the retry
+     * policy for its type allows another attempt for the cause
+     *
+     * @param <T>
+     * @param task Task, as claimed from the queue
+     * @param cause Exception thrown by the task
+     * @return true if the task was queued again
+     */
+    public <T extends CauldronTask> boolean failed(T task, Throwable cause) {
+        RetryPolicy policy = getRetryPolicy(task.getClass().getName());
+        if (policy != null && policy.isRetryable(cause)) {
+            Document message = backend.find(task.getId(), new Document("attempt", 1));
+            int attempt = message == null ? 0 : message.getInteger("attempt", 0);
+            if (policy.canRetry(attempt)) {
+                // Not failed instead if refused, as the task is no longer this worker's to finish
+                return backend.retry(serialize(task), new Date(System.currentTimeMillis() + policy.getBackoff(attempt)));
+            }
+            LOG.log(Level.WARNING, "Failing {0} after {1} attempts", new Object[]{task.getId(), attempt + 1});
+        }
+        completed(task, CauldronStatus.Failed);
+        return false;
     }
 
     public void progress(String id, Collection<String> log, double progress, int resetDuration, String worker) {
-        queue.progress(id, log, progress, resetDuration, worker);
+        backend.appendLog(id, log);
+        backend.progress(id, progress, resetDuration, worker);
     }
 
-    public class SubmitResponse {
+    public static class SubmitResponse {
 
         private final String id;
 
@@ -195,9 +404,8 @@ public class Cauldron {
      * @throws tech.cae.cauldron.api.exceptions.CauldronException
      */
     public CauldronTask getTask(String id) throws CauldronException {
-        Iterator<Document> it = collection.find(new Document("_id", new ObjectId(id))).iterator();
-        if (it.hasNext()) {
-            Document message = it.next();
+        Document message = find(id, new Document("payload", 1));
+        if (message != null) {
             Document payload = message.get("payload", Document.class);
             payload.put("id", message.getObjectId("_id").toHexString());
             return deserialize(payload);
@@ -212,10 +420,72 @@ public class Cauldron {
      * @return
      */
     public TaskMeta getTaskMeta(String id) {
-        return deserializeMeta(collection.find(new Document("_id", new ObjectId(id))).first());
+        return deserializeMeta(find(id, META_PROJECTION));
+    }
+
+    /**
+     * Find a task in the queue, or else in the archive
+     */
+    private Document find(String id, Document projection) {
+        List<Document> messages = backend.findAll(Collections.singletonList(id), projection);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Set how long finished tasks are kept in the queue collection, and
+     * whether they are then archived or deleted. Archived tasks can still be
+     * read by id, but are not included when listing tasks.
+     *
+     * @param policy Retention policy, or null to keep finished tasks
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        backend.setRetentionPolicy(policy);
     }
 
-    private TaskMeta deserializeMeta(Document message) {
+    /**
+     * Set how tasks of every type without a retry policy of their own are
+     * retried after they fail or their claim lapses
+     *
+     * @param policy Retry policy, or null to fail tasks when they fail and
+     * queue them again without limit when their claim lapses
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        defaultRetryPolicy = policy;
+        backend.setRetryPolicies(this::getRetryPolicy);
+    }
+
+    /**
+     * Set how tasks of a type are retried after they fail or their claim
+     * lapses
+     *
+     * @param type Task type
+     * @param policy Retry policy, or null for the default policy
+     */
+    public void setRetryPolicy(Class<? extends CauldronTask> type, RetryPolicy policy) {
+        if (policy == null) {
+            retryPolicies.remove(type.getName());
+        } else {
+            retryPolicies.put(type.getName(), policy);
+        }
+        backend.setRetryPolicies(this::getRetryPolicy);
+    }
+
+    /**
+     * Get the retry policy for tasks of a type
+     *
+     * @param type Task type
+     * @return its own policy, else the default, or null if neither is set
+     */
+    public RetryPolicy getRetryPolicy(Class<? extends CauldronTask> type) {
+        return getRetryPolicy(type.getName());
+    }
+
+    RetryPolicy getRetryPolicy(String type) {
+        RetryPolicy policy = retryPolicies.get(type);
+        return policy == null ? defaultRetryPolicy : policy;
+    }
+
+    static TaskMeta deserializeMeta(Document message) {
         if (message == null) {
             return null;
         }
@@ -228,6 +498,11 @@ public class Cauldron {
         meta.setResetTimestamp(message.getDate("resetTimestamp"));
         meta.setStatus(message.getString("status"));
         meta.setAttempt(message.getInteger("attempt"));
+        meta.setWorker(message.getString("worker"));
+        meta.setUnblocked(message.getDate("unblocked"));
+        meta.setClaimed(message.getDate("claimed"));
+        meta.setStarted(message.getDate("started"));
+        meta.setFinished(message.getDate("finished"));
         return meta;
     }
 
@@ -250,11 +525,41 @@ public class Cauldron {
     }
 
     public List<String> getTaskLogs(String id) {
-        Document message = collection.find(new Document("_id", new ObjectId(id))).first();
-        if (message == null) {
-            return Arrays.asList();
-        }
-        return message.getList("log", String.class, Arrays.asList());
+        return backend.readLog(id, 0, 0);
+    }
+
+    /**
+     * Get a range of log lines for a task
+     *
+     * @param id Task id
+     * @param offset Number of lines to skip
+     * @param limit Maximum number of lines, 0 for no limit
+     * @return
+     */
+    public List<String> getTaskLogs(String id, int offset, int limit) {
+        return backend.readLog(id, offset, limit);
+    }
+
+    /**
+     * Stream log lines for a task, fetching them from the server in batches
+     *
+     * @param id Task id
+     * @return
+     */
+    public Iterable<String> streamTaskLogs(String id) {
+        return backend.streamLog(id);
+    }
+
+    /**
+     * Pass the log lines of a task to a consumer, and continue to pass new
+     * lines as they are written until the returned handle is closed.
+     *
+     * @param id Task id
+     * @param consumer Receives each line in order, on a background thread
+     * @return
+     */
+    public AutoCloseable followTaskLogs(String id, Consumer<String> consumer) {
+        return backend.followLog(id, consumer);
     }
 
     public Iterable<TaskMeta> getTasksMetaData() {
@@ -274,18 +579,22 @@ public class Cauldron {
     }
 
     public Iterable<TaskMeta> getTasksMetaData(List<String> statuses, Map<String, String> payloadQuery) {
-        Document query = statuses == null || statuses.isEmpty()
-                ? new Document()
-                : (statuses.size() == 1
-                ? new Document("status", statuses.get(0))
-                : new Document("status", new Document("$in", new BsonArray(statuses.stream().map(s -> new BsonString(s)).collect(Collectors.toList())))));
-        payloadQuery.forEach((key, value) -> query.append("payload." + key, value));
-        return deserializeMeta(collection.find(query));
+        return getTasksMetaData(TaskQuery.create()
+                .status(statuses == null ? new String[0] : statuses.toArray(new String[statuses.size()]))
+                .payload(payloadQuery));
     }
 
-    Iterable<TaskMeta> getTasksMetaData(Collection<String> ids) {
-        BsonArray idArray = new BsonArray(ids.stream().map((id) -> new BsonObjectId(new ObjectId(id))).collect(Collectors.toList()));
-        return deserializeMeta(collection.find(new Document("_id", new Document("$in", idArray))));
+    /**
+     * Get metadata for tasks matching a query. On the MongoDB backend the
+     * returned Iterable streams from a server cursor, fetching a batch at a
+     * time.
+     *
+     * @param query Task query
+     * @return
+     */
+    public Iterable<TaskMeta> getTasksMetaData(TaskQuery query) {
+        LOG.log(Level.FINE, "Listing: {0}", query);
+        return deserializeMeta(backend.list(query, META_PROJECTION));
     }
 
     /**
@@ -299,6 +608,77 @@ public class Cauldron {
         return getChangeMonitor().getCompletion(id);
     }
 
+    /**
+     * Get counts by type and status, and wait times of queued tasks. The
+     * result is computed by a single aggregation and cached, see
+     * {@link #setQueueStatsTtl(long)}.
+     *
+     * @return
+     */
+    public QueueStats getQueueStats() {
+        return statsCache.get();
+    }
+
+    /**
+     * Get queue statistics no older than the given age
+     *
+     * @param maxAge maximum age of the cached snapshot in milliseconds, 0 to
+     * force a refresh
+     * @return
+     */
+    public QueueStats getQueueStats(long maxAge) {
+        return statsCache.get(maxAge);
+    }
+
+    /**
+     * Set how long the tasks unblocked by a completed task are reserved for
+     * workers on the same node as the worker that ran it, so that files it
+     * wrote are still in the local cache when they run. Worker names are
+     * expected to be of the form node:thread.
+     *
+     * @param window Window in milliseconds, or 0 to let any worker claim
+     * unblocked tasks immediately
+     */
+    public void setAffinityWindow(long window) {
+        backend.setAffinityWindow(window);
+    }
+
+    /**
+     * Get the time spent in each phase of their lifecycle by tasks that
+     * finished since a date, by type
+     *
+     * @param since Earliest finish date of the tasks to include
+     * @return
+     */
+    public PhaseStats getPhaseStats(Date since) {
+        Date now = new Date();
+        return PhaseStats.fromAggregation(now, backend.phases(since));
+    }
+
+    /**
+     * Set how long queue statistics are cached
+     *
+     * @param ttl time to live in milliseconds
+     */
+    public void setQueueStatsTtl(long ttl) {
+        statsCache.setTtl(ttl);
+    }
+
+    /**
+     * When enabled, cached queue statistics are only recomputed after the
+     * change stream reports a status change, or while tasks are waiting.
+     *
+     * @param followChanges
+     */
+    public void setQueueStatsFollowChanges(boolean followChanges) {
+        if (followChanges) {
+            getChangeMonitor().addListener(statsCache);
+        } else if (changeMonitor != null) {
+            changeMonitor.removeListener(statsCache);
+        }
+        statsCache.setFollowChanges(followChanges);
+    }
+
     public static class TaskMeta {
 
         @JsonProperty
@@ -317,6 +697,16 @@ public class Cauldron {
         private double progress;
         @JsonProperty
         private int attempt;
+        @JsonProperty
+        private String worker;
+        @JsonProperty
+        private Date unblocked;
+        @JsonProperty
+        private Date claimed;
+        @JsonProperty
+        private Date started;
+        @JsonProperty
+        private Date finished;
 
         TaskMeta() {
         }
@@ -385,6 +775,100 @@ public class Cauldron {
             this.attempt = attempt;
         }
 
+        /**
+         * Worker that last claimed the task
+         *
+         * @return
+         */
+        public String getWorker() {
+            return worker;
+        }
+
+        void setWorker(String worker) {
+            this.worker = worker;
+        }
+
+        /**
+         * When the last parent of the task finished, or null if it was queued
+         * when created
+         *
+         * @return
+         */
+        public Date getUnblocked() {
+            return unblocked;
+        }
+
+        void setUnblocked(Date unblocked) {
+            this.unblocked = unblocked;
+        }
+
+        public Date getClaimed() {
+            return claimed;
+        }
+
+        void setClaimed(Date claimed) {
+            this.claimed = claimed;
+        }
+
+        public Date getStarted() {
+            return started;
+        }
+
+        void setStarted(Date started) {
+            this.started = started;
+        }
+
+        public Date getFinished() {
+            return finished;
+        }
+
+        void setFinished(Date finished) {
+            this.finished = finished;
+        }
+
+        /**
+         * Time in milliseconds spent waiting for parents, or -1 if the task
+         * was not blocked or is still blocked
+         *
+         * @return
+         */
+        public long getBlockedTime() {
+            return between(created, unblocked);
+        }
+
+        /**
+         * Time in milliseconds spent queued before being claimed, or -1 if not
+         * yet claimed
+         *
+         * @return
+         */
+        public long getQueueWait() {
+            return between(unblocked != null ? unblocked : created, claimed);
+        }
+
+        /**
+         * Time in milliseconds between being claimed and the worker starting
+         * the task, or -1 if not yet started
+         *
+         * @return
+         */
+        public long getStartDelay() {
+            return between(claimed, started);
+        }
+
+        /**
+         * Time in milliseconds spent running, or -1 if not yet finished
+         *
+         * @return
+         */
+        public long getRunTime() {
+            return between(started, finished);
+        }
+
+        private static long between(Date from, Date to) {
+            return from == null || to == null ? -1L : Math.max(0L, to.getTime() - from.getTime());
+        }
+
     }
 
 }
@@ -5,12 +5,23 @@
  */
 package tech.cae.cauldron;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.function.Function;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import tech.cae.cauldron.api.CauldronStatus;
 import tech.cae.cauldron.api.CauldronTask;
 
@@ -20,40 +31,44 @@ import tech.cae.cauldron.api.CauldronTask;
  */
 public class CauldronDAG {
 
-    private final Function<List<String>, IdAndStatus> taskSupplier;
+    private final CauldronTask task;
+    private final String existing;
     private final List<CauldronDAG> parents;
+    private final List<CauldronDAG> anyParents;
 
-    CauldronDAG(Function<List<String>, IdAndStatus> taskSupplier) {
-        this.taskSupplier = taskSupplier;
+    CauldronDAG(CauldronTask task, String existing) {
+        this.task = task;
+        this.existing = existing;
         this.parents = new ArrayList<>();
+        this.anyParents = new ArrayList<>();
     }
 
     public static CauldronDAG create(CauldronTask task) {
-        return new CauldronDAG(new OnSubmissionSupplier(task));
+        return new CauldronDAG(task, null);
     }
 
     public static CauldronDAG create(Cauldron.TaskMeta task) {
-        return new CauldronDAG(new ExistingSupplier(task.getId()));
+        return new CauldronDAG(null, task.getId());
     }
 
     public static CauldronDAG create(String task) {
-        return new CauldronDAG(new ExistingSupplier(task));
+        return new CauldronDAG(null, task);
     }
 
     public CauldronDAG after(CauldronTask... tasks) {
-        return after(Arrays.asList(tasks).stream().map(t -> new OnSubmissionSupplier(t)));
+        return after(Arrays.asList(tasks).stream().map(t -> create(t)));
     }
 
     public CauldronDAG after(Cauldron.TaskMeta... tasks) {
-        return after(Arrays.asList(tasks).stream().map(t -> new ExistingSupplier(t.getId())));
+        return after(Arrays.asList(tasks).stream().map(t -> create(t)));
     }
 
     public CauldronDAG after(String... tasks) {
-        return after(Arrays.asList(tasks).stream().map(t -> new ExistingSupplier(t)));
+        return after(Arrays.asList(tasks).stream().map(t -> create(t)));
     }
 
-    private CauldronDAG after(Stream<Function<List<String>, IdAndStatus>> tasks) {
-        tasks.map(task -> new CauldronDAG(task)).forEach(dag -> parents.add(dag));
+    private CauldronDAG after(Stream<CauldronDAG> dags) {
+        dags.forEach(dag -> parents.add(dag));
         return this;
     }
 
@@ -62,45 +77,241 @@ public class CauldronDAG {
         return this;
     }
 
-    private List<String> submitParents() {
-        return parents.stream().map(parent -> parent.submit())
-                .filter(idStat -> !idStat.getStatus().isFinished())
-                .map(idStat -> idStat.getId())
-                .collect(Collectors.toList());
+    /**
+     * Run after the given tasks have finished, whatever their status. Tasks
+     * added with after() only run if their parents complete, and are
+     * cancelled if any parent fails or is cancelled.
+     *
+     * @param tasks
+     * @return
+     */
+    public CauldronDAG afterFinished(CauldronTask... tasks) {
+        return afterFinished(Arrays.asList(tasks).stream().map(t -> create(t)).toArray(CauldronDAG[]::new));
     }
 
-    public IdAndStatus submit() {
-        return taskSupplier.apply(submitParents());
+    public CauldronDAG afterFinished(Cauldron.TaskMeta... tasks) {
+        return afterFinished(Arrays.asList(tasks).stream().map(t -> create(t)).toArray(CauldronDAG[]::new));
     }
 
-    static class ExistingSupplier implements Function<List<String>, IdAndStatus> {
+    public CauldronDAG afterFinished(String... tasks) {
+        return afterFinished(Arrays.asList(tasks).stream().map(t -> create(t)).toArray(CauldronDAG[]::new));
+    }
 
-        private final String id;
+    public CauldronDAG afterFinished(CauldronDAG... dags) {
+        this.anyParents.addAll(Arrays.asList(dags));
+        return this;
+    }
 
-        public ExistingSupplier(String id) {
-            this.id = id;
-        }
+    public DagHandle submit() {
+        return submit(Cauldron.get());
+    }
 
-        @Override
-        public IdAndStatus apply(List<String> parents) {
-            return new IdAndStatus(id, Cauldron.get().getTaskMeta(id).getStatus());
+    /**
+     * Submit the graph, prioritising tasks by the estimated run time of the
+     * longest chain of tasks from them to the end of the graph, so that long
+     * chains start before short independent tasks.
+     *
+     * Priorities stay in the band (-1, 0]: a task with remaining time r gets
+     * -r / (1 + r). Lower priorities are claimed first, so longer chains start
+     * before plain submissions at the default priority 0, while anything
+     * submitted at -1 or below still comes before every graph task, and
+     * graphs submitted separately are ordered consistently.
+     *
+     * @param estimates Estimated run times of the tasks
+     * @return id and status of this node, and a handle on the whole graph
+     */
+    public DagHandle submit(DurationEstimates estimates) {
+        return submit(Cauldron.get(), estimates);
+    }
+
+    DagHandle submit(Cauldron cauldron) {
+        return submit(cauldron, null);
+    }
+
+    /**
+     * Submit the graph in one round trip for new tasks, plus one query for the
+     * status of existing tasks.
+     *
+     * Nodes are deduplicated by the task they wrap, so a task reached along
+     * several paths, or added to the graph more than once, is submitted once
+     * with the union of its parents.
+     *
+     * New tasks are staged until the whole graph is inserted, so workers never
+     * claim part of a graph, and a failed submission leaves nothing behind.
+     *
+     * @param cauldron
+     * @param estimates Estimated run times for critical path priorities, or
+     * null to submit every task with the same priority
+     * @return id and status of this node, and a handle on the whole graph
+     */
+    DagHandle submit(Cauldron cauldron, DurationEstimates estimates) {
+        Graph graph = new Graph(this);
+        Map<Object, Double> remaining = estimates == null ? null : graph.remaining(estimates);
+        Map<String, CauldronStatus> existingStatus = new HashMap<>();
+        if (!graph.existing.isEmpty()) {
+            cauldron.getBackend().findAll(graph.existing, new Document("status", 1)).forEach(message -> existingStatus.put(
+                    message.getObjectId("_id").toHexString(), CauldronStatus.fromString(message.getString("status"))));
+            graph.existing.stream().filter(id -> !existingStatus.containsKey(id)).findFirst().ifPresent(id -> {
+                throw new IllegalArgumentException("No such task " + id);
+            });
         }
+        ObjectId group = new ObjectId();
+        Map<Object, IdAndStatus> submitted = new IdentityHashMap<>();
+        Map<String, CauldronStatus> nodes = new HashMap<>();
+        List<Document> messages = new ArrayList<>();
+        Date now = new Date();
+        for (Object key : graph.order) {
+            if (key instanceof String) {
+                submitted.put(key, new IdAndStatus((String) key, existingStatus.get((String) key)));
+            } else {
+                List<String> parentIds = new ArrayList<>();
+                List<String> anyParentIds = new ArrayList<>();
+                boolean cancelled = false;
+                for (Object parent : graph.parents.get(key)) {
+                    IdAndStatus idStat = submitted.get(parent);
+                    if (graph.anyParents.get(key).contains(parent)) {
+                        if (!idStat.getStatus().isFinished()) {
+                            anyParentIds.add(idStat.getId());
+                        }
+                    } else if (idStat.getStatus() == CauldronStatus.Failed || idStat.getStatus() == CauldronStatus.Cancelled) {
+                        cancelled = true;
+                    } else if (!idStat.getStatus().isFinished()) {
+                        parentIds.add(idStat.getId());
+                    }
+                }
+                Document message = MongoQueueCore.message(cauldron.serialize((CauldronTask) key), now,
+                        remaining == null ? 0.0 : criticalPathPriority(remaining.get(key)), parentIds, anyParentIds);
+                if (cancelled) {
+                    // A parent this task needs to complete has already failed
+                    message.append("status", CauldronStatus.Cancelled.toString()).append("finished", now);
+                }
+                message.append(MongoQueueCore.GROUP, group);
+                messages.add(message);
+                IdAndStatus idStat = new IdAndStatus(message.getObjectId("_id").toHexString(),
+                        CauldronStatus.fromString(message.getString("status")));
+                submitted.put(key, idStat);
+                nodes.put(idStat.getId(), idStat.getStatus());
+            }
+        }
+        cauldron.getBackend().sendStaged(messages);
+        return new DagHandle(cauldron, group, submitted.get(graph.key(this)), nodes);
+    }
 
+    /**
+     * Priority for a task with the given estimated time to the end of its
+     * graph, from 0 for a task expected to take no time down towards -1 for
+     * the longest chains
+     */
+    static double criticalPathPriority(double remaining) {
+        double length = Math.max(0.0, remaining);
+        return -length / (1.0 + length);
     }
 
-    static class OnSubmissionSupplier implements Function<List<String>, IdAndStatus> {
+    /**
+     * The graph reachable from a node, with nodes keyed by the task they wrap,
+     * in an order where every task comes after its parents
+     */
+    static class Graph {
 
-        private final CauldronTask task;
+        // Existing tasks are keyed by their id, new tasks by identity
+        private final Map<String, String> existingKeys = new HashMap<>();
+        final Set<String> existing = new LinkedHashSet<>();
+        // All parents of each task, and the subset it only waits to finish
+        final Map<Object, Set<Object>> parents = new IdentityHashMap<>();
+        final Map<Object, Set<Object>> anyParents = new IdentityHashMap<>();
+        final List<Object> order = new ArrayList<>();
 
-        public OnSubmissionSupplier(CauldronTask task) {
-            this.task = task;
+        Graph(CauldronDAG root) {
+            // Collect the parents of every task, merging nodes that wrap the same task
+            Map<Object, Set<Object>> required = new IdentityHashMap<>();
+            Set<CauldronDAG> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<CauldronDAG> pending = new ArrayDeque<>();
+            pending.push(root);
+            visited.add(root);
+            while (!pending.isEmpty()) {
+                CauldronDAG node = pending.pop();
+                if (node.existing != null) {
+                    existing.add(node.existing);
+                }
+                Object key = key(node);
+                Set<Object> keyParents = parents.computeIfAbsent(key, k -> Collections.newSetFromMap(new IdentityHashMap<>()));
+                Set<Object> keyRequired = required.computeIfAbsent(key, k -> Collections.newSetFromMap(new IdentityHashMap<>()));
+                Set<Object> keyAny = anyParents.computeIfAbsent(key, k -> Collections.newSetFromMap(new IdentityHashMap<>()));
+                for (CauldronDAG parent : node.parents) {
+                    keyParents.add(key(parent));
+                    keyRequired.add(key(parent));
+                    if (visited.add(parent)) {
+                        pending.push(parent);
+                    }
+                }
+                for (CauldronDAG parent : node.anyParents) {
+                    keyParents.add(key(parent));
+                    keyAny.add(key(parent));
+                    if (visited.add(parent)) {
+                        pending.push(parent);
+                    }
+                }
+            }
+            // A parent also required along another edge must complete
+            anyParents.forEach((key, keyAny) -> keyAny.removeAll(required.get(key)));
+            // Then order tasks parents first, with an iterative depth first search so long chains cannot overflow the stack
+            Set<Object> done = Collections.newSetFromMap(new IdentityHashMap<>());
+            Set<Object> onPath = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Object start : parents.keySet()) {
+                if (done.contains(start)) {
+                    continue;
+                }
+                Deque<Object> path = new ArrayDeque<>();
+                Deque<Iterator<Object>> stack = new ArrayDeque<>();
+                path.push(start);
+                onPath.add(start);
+                stack.push(parents.get(start).iterator());
+                while (!stack.isEmpty()) {
+                    Iterator<Object> it = stack.peek();
+                    if (it.hasNext()) {
+                        Object parent = it.next();
+                        if (onPath.contains(parent)) {
+                            throw new IllegalStateException("CauldronDAG contains a cycle");
+                        }
+                        if (!done.contains(parent)) {
+                            path.push(parent);
+                            onPath.add(parent);
+                            stack.push(parents.get(parent).iterator());
+                        }
+                    } else {
+                        stack.pop();
+                        Object key = path.pop();
+                        onPath.remove(key);
+                        done.add(key);
+                        order.add(key);
+                    }
+                }
+            }
         }
 
-        @Override
-        public IdAndStatus apply(List<String> parents) {
-            return new IdAndStatus(Cauldron.get().submit(task, 100, parents).getId(), CauldronStatus.Queued);
+        /**
+         * Estimated run time of each new task plus the longest chain of new
+         * tasks that depend on it
+         */
+        Map<Object, Double> remaining(DurationEstimates estimates) {
+            Map<Object, Double> remaining = new IdentityHashMap<>();
+            // Children come after their parents, so visit in reverse to see every child first
+            for (int i = order.size() - 1; i >= 0; i--) {
+                Object key = order.get(i);
+                if (key instanceof CauldronTask) {
+                    double length = remaining.getOrDefault(key, 0.0) + estimates.estimate((CauldronTask) key);
+                    remaining.put(key, length);
+                    for (Object parent : parents.get(key)) {
+                        remaining.merge(parent, length, Math::max);
+                    }
+                }
+            }
+            return remaining;
         }
 
+        Object key(CauldronDAG node) {
+            return node.task != null ? node.task : existingKeys.computeIfAbsent(node.existing, id -> id);
+        }
     }
 
     public static class IdAndStatus {
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the claim, run and acknowledge pipeline of this JVM, published
+ * through JMX under the tech.cae.cauldron domain.
+ *
+ * Each metric is a {@link LatencyHistogram} per task type, registered as an
+ * MXBean the first time a task of that type is recorded.
+ *
+ * @author peter
+ */
+public final class CauldronMetrics implements CauldronMetricsMXBean {
+
+    public static final String DOMAIN = "tech.cae.cauldron";
+    /**
+     * Time to claim a task from the queue
+     */
+    public static final String CLAIM_LATENCY = "ClaimLatency";
+    /**
+     * Time from a task being created to being claimed
+     */
+    public static final String QUEUE_WAIT = "QueueWait";
+    /**
+     * Time a task spends running on a worker
+     */
+    public static final String RUN_TIME = "RunTime";
+    /**
+     * Time to acknowledge a finished task and release its dependents
+     */
+    public static final String ACK_LATENCY = "AckLatency";
+    /**
+     * Time to write the progress and logs of a running task
+     */
+    public static final String PROGRESS_LATENCY = "ProgressLatency";
+
+    private static final Logger LOG = Logger.getLogger(CauldronMetrics.class.getName());
+    private static final CauldronMetrics INSTANCE = new CauldronMetrics();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> histograms = new ConcurrentHashMap<>();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong emptyPolls = new AtomicLong();
+
+    private CauldronMetrics() {
+        register(this, DOMAIN + ":type=Metrics");
+    }
+
+    public static CauldronMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     *
+     * @param metric one of the metric names of this class
+     * @param type task type, or null for tasks of unknown type
+     * @return histogram of the metric for the type
+     */
+    public LatencyHistogram histogram(String metric, String type) {
+        String taskType = type == null ? "unknown" : type;
+        return histograms.computeIfAbsent(metric, m -> new ConcurrentHashMap<>())
+                .computeIfAbsent(taskType, t -> {
+                    LatencyHistogram histogram = new LatencyHistogram();
+                    register(histogram, DOMAIN + ":type=Histogram,metric=" + metric + ",taskType=" + ObjectName.quote(t));
+                    return histogram;
+                });
+    }
+
+    void poll(boolean empty) {
+        polls.incrementAndGet();
+        if (empty) {
+            emptyPolls.incrementAndGet();
+        }
+    }
+
+    @Override
+    public long getPolls() {
+        return polls.get();
+    }
+
+    @Override
+    public long getEmptyPolls() {
+        return emptyPolls.get();
+    }
+
+    @Override
+    public double getEmptyPollRate() {
+        long n = polls.get();
+        return n == 0L ? 0.0 : (double) emptyPolls.get() / n;
+    }
+
+    static void register(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (JMException ex) {
+            // Metrics are still recorded, just not published
+            LOG.log(Level.WARNING, "Could not register " + name, ex);
+        }
+    }
+
+    static void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Could not unregister " + name, ex);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.CauldronStatusChangeListener;
+
+/**
+ * Handle on a submitted {@link CauldronDAG}, tracking every task it submitted
+ * by the group id stamped on them.
+ *
+ * Tracking starts on first use. The statuses of the group are read once with
+ * an indexed query, and then kept up to date from the change stream, so
+ * following a graph costs no further queries however many tasks it has.
+ *
+ * @author peter
+ */
+public class DagHandle extends CauldronDAG.IdAndStatus {
+
+    private final Cauldron cauldron;
+    private final ObjectId group;
+    private final Set<String> nodes;
+    private final ConcurrentMap<String, CauldronStatus> statuses;
+    private final CompletableFuture<DagHandle> completion;
+    private final CauldronStatusChangeListener listener;
+    private boolean tracking;
+
+    DagHandle(Cauldron cauldron, ObjectId group, CauldronDAG.IdAndStatus root, Map<String, CauldronStatus> nodes) {
+        super(root.getId(), root.getStatus());
+        this.cauldron = cauldron;
+        this.group = group;
+        this.nodes = Collections.unmodifiableSet(new HashSet<>(nodes.keySet()));
+        this.statuses = new ConcurrentHashMap<>(nodes);
+        this.completion = new CompletableFuture<>();
+        this.listener = (task, status) -> {
+            if (this.nodes.contains(task)) {
+                update(task, status);
+                checkFinished();
+            }
+        };
+        this.tracking = false;
+    }
+
+    /**
+     * Id stamped on every task submitted with the graph
+     *
+     * @return
+     */
+    public String getGroup() {
+        return group.toHexString();
+    }
+
+    /**
+     * Ids of the tasks submitted with the graph, excluding existing tasks it
+     * depends on
+     *
+     * @return
+     */
+    public Set<String> getTaskIds() {
+        return nodes;
+    }
+
+    /**
+     * Returns a CompletableFuture that completes when every task submitted
+     * with the graph has finished
+     *
+     * @return
+     */
+    public CompletableFuture<DagHandle> getCompletion() {
+        track();
+        return completion;
+    }
+
+    /**
+     * Number of tasks in the graph with each status
+     *
+     * @return
+     */
+    public Map<CauldronStatus, Long> getCounts() {
+        track();
+        Map<CauldronStatus, Long> counts = new EnumMap<>(CauldronStatus.class);
+        counts.putAll(statuses.values().stream().collect(Collectors.groupingBy(status -> status, Collectors.counting())));
+        return counts;
+    }
+
+    /**
+     * Mean progress of the graph, counting finished tasks as done, summed by
+     * the backend over the group in one query. Tasks no longer in the queue have
+     * finished and been archived or deleted, so they count as done too.
+     *
+     * @return progress between 0 and 1
+     */
+    public double getProgress() {
+        if (nodes.isEmpty()) {
+            return 1.0;
+        }
+        Document result = cauldron.getBackend().groupProgress(group.toHexString());
+        if (result == null) {
+            return 1.0;
+        }
+        double gone = nodes.size() - ((Number) result.get("count")).doubleValue();
+        return (((Number) result.get("progress")).doubleValue() + gone) / nodes.size();
+    }
+
+    private synchronized void track() {
+        if (tracking) {
+            return;
+        }
+        tracking = true;
+        // Listen first, so that no change after the statuses are read is missed
+        cauldron.getChangeMonitor().addListener(listener);
+        Set<String> missing = new HashSet<>(nodes);
+        for (Document node : cauldron.getBackend().findGroup(group.toHexString(), new Document("status", 1))) {
+            String id = node.getObjectId("_id").toHexString();
+            missing.remove(id);
+            update(id, CauldronStatus.fromString(node.getString("status")));
+        }
+        // Finished tasks may have been archived since the graph was submitted
+        if (!missing.isEmpty()) {
+            cauldron.getBackend().findAll(missing, new Document("status", 1)).forEach(message -> update(
+                    message.getObjectId("_id").toHexString(), CauldronStatus.fromString(message.getString("status"))));
+        }
+        checkFinished();
+    }
+
+    private void update(String id, CauldronStatus status) {
+        // A change read before the statuses were may arrive after them, so never go back from finished
+        statuses.merge(id, status, (previous, next) -> previous.isFinished() ? previous : next);
+    }
+
+    private void checkFinished() {
+        Collection<CauldronStatus> current = statuses.values();
+        if (current.stream().allMatch(CauldronStatus::isFinished) && completion.complete(this)) {
+            cauldron.getChangeMonitor().removeListener(listener);
+        }
+    }
+}
@@ -23,12 +23,20 @@
  */
 package tech.cae.cauldron;
 
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -39,64 +47,170 @@ import tech.cae.cauldron.api.CauldronTask;
 import tech.cae.cauldron.api.exceptions.CauldronException;
 
 /**
+ * Claims tasks for waiting workers, one at a time.
+ *
+ * Each task is claimed under the name of the worker at the head of the queue
+ * and handed to that worker alone, so the worker that runs a task is always
+ * the one its claim names, and its progress renews the claim.
  *
  * @author peter
  */
-public class Distributor implements CauldronStatusChangeListener {
+public class Distributor implements CauldronStatusChangeListener, DistributorMXBean {
 
-    private final BlockingQueue<String> workerQueue = new LinkedBlockingDeque<>();
-    private final BlockingQueue<CauldronTask> queue = new LinkedBlockingDeque<>();
+    private final BlockingQueue<Slot> workerQueue = new LinkedBlockingDeque<>();
+    private final AtomicInteger ready = new AtomicInteger();
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cauldron-distributor-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final Cauldron cauldron;
     private final Set<Class<? extends CauldronTask>> types;
-    private final Document query;
-    private boolean paused = false;
+    private final List<String> typeNames;
+    private volatile boolean paused = false;
+    private volatile boolean woken = false;
+    private final AtomicLong wakeups = new AtomicLong();
+    private final String mbeanName;
+    private boolean registered = false;
     private Future<?> task = null;
+    private ScheduledFuture<?> wake = null;
     private static final Logger LOG = Logger.getLogger(Distributor.class.getName());
 
     Distributor(Cauldron cauldron, Set<Class<? extends CauldronTask>> types) {
         this.cauldron = cauldron;
         this.types = types;
-        this.query = new Document("type", new Document("$in", types.stream().map(type -> type.getName()).collect(Collectors.toList())));
+        this.typeNames = types.stream().map(type -> type.getName()).collect(Collectors.toList());
+        this.mbeanName = CauldronMetrics.DOMAIN + ":type=Distributor,id=" + Integer.toHexString(System.identityHashCode(this));
         this.cauldron.getChangeMonitor().addListener(this);
         start();
     }
 
+    /**
+     * Task types this distributor claims
+     *
+     * @return
+     */
+    public List<String> getTypes() {
+        return Collections.unmodifiableList(typeNames);
+    }
+
+    @Override
+    public int getWaitingWorkers() {
+        return workerQueue.size();
+    }
+
+    @Override
+    public int getReadyTasks() {
+        return ready.get();
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Wait for a task claimed under the name of the worker. A worker
+     * interrupted while waiting withdraws, and a task already claimed for it
+     * is let go to be claimed again.
+     *
+     * @param worker name of the worker, which the claim records
+     * @return the task
+     * @throws InterruptedException
+     */
     public CauldronTask get(String worker) throws InterruptedException {
-        LOG.info("Fetching for worker " + worker);
-        this.workerQueue.add(worker);
+        LOG.fine("Fetching for worker " + worker);
+        Slot slot = new Slot(worker);
+        this.workerQueue.add(slot);
         try {
             this.start();
-            return this.queue.take();
+            CauldronTask task = slot.take();
+            ready.decrementAndGet();
+            return task;
+        } catch (InterruptedException ex) {
+            CauldronTask task = slot.withdraw();
+            this.workerQueue.remove(slot);
+            if (task != null) {
+                ready.decrementAndGet();
+                release(task, worker);
+            }
+            throw ex;
         } finally {
-            LOG.info("Returning to worker " + worker);
+            LOG.fine("Returning to worker " + worker);
         }
     }
 
+    /**
+     * Let the claim on a task that no worker will run lapse now, so that it is
+     * queued again by the next claim, as a timed out task is
+     */
+    private void release(CauldronTask task, String worker) {
+        try {
+            this.cauldron.getBackend().progress(task.getId(), 0.0, 0, worker);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to release " + task.getId() + ", its claim will lapse", ex);
+        }
+    }
+
+    /**
+     * Start claiming for waiting workers, publishing the distributor through
+     * JMX while it runs
+     */
     public final synchronized void start() {
         this.paused = false;
+        if (!this.registered) {
+            CauldronMetrics.register(this, this.mbeanName);
+            this.registered = true;
+        }
         if (this.task == null || this.task.isDone()) {
-            LOG.info("Starting distributor");
+            LOG.fine("Starting distributor");
             this.task = this.executor.submit(() -> {
                 while (!paused) {
                     try {
-                        LOG.info(workerQueue.size() + " workers waiting");
-                        String worker = this.workerQueue.take();
+                        LOG.fine(workerQueue.size() + " workers waiting");
+                        Slot slot = this.workerQueue.take();
+                        if (slot.isWithdrawn()) {
+                            continue;
+                        }
+                        long seen = this.wakeups.get();
                         // Try n times
-                        Document doc = this.cauldron.getMongoQueue().get(query, 30 * 60, 1000, 4, worker);
+                        Document doc;
+                        try {
+                            doc = this.cauldron.getBackend().claim(typeNames, 30 * 60, slot.worker);
+                        } catch (RuntimeException ex) {
+                            // The backend failed or was closed, so keep the worker and wait for the next change
+                            LOG.log(Level.SEVERE, "Failed to claim a task", ex);
+                            this.workerQueue.add(slot);
+                            this.paused = true;
+                            continue;
+                        }
                         if (doc == null) {
                             // if you don't, put the worker back, and go to sleep until woken
-                            this.workerQueue.add(worker);
+                            this.workerQueue.add(slot);
                             this.paused = true;
-                            LOG.info("Pausing distributor");
+                            if (this.wakeups.get() != seen) {
+                                // Woken while claiming, too late for start() to see the pause
+                                this.paused = false;
+                                continue;
+                            }
+                            LOG.fine("Pausing distributor");
+                            retryAfterAffinity();
+                            wakeWhenClaimable();
                         } else {
                             try {
-                                // if you get one, put it on the queue and continue
-                                this.queue.add(this.cauldron.deserialize(doc));
+                                // if you get one, hand it to the worker it was claimed for and continue
+                                CauldronTask claimed = this.cauldron.deserialize(doc);
+                                ready.incrementAndGet();
+                                if (!slot.offer(claimed)) {
+                                    // The worker withdrew while the task was claimed
+                                    ready.decrementAndGet();
+                                    release(claimed, slot.worker);
+                                }
                             } catch (CauldronException ex) {
                                 // If it fails, log an error and find another task
                                 Logger.getLogger(Distributor.class.getName()).log(Level.SEVERE, null, ex);
-                                this.workerQueue.add(worker);
+                                this.workerQueue.add(slot);
                             }
                         }
                     } catch (InterruptedException ex) {
@@ -106,16 +220,111 @@ public class Distributor implements CauldronStatusChangeListener {
         }
     }
 
+    /**
+     * A task queued since the last pause may be reserved for another node, and
+     * no change is seen when its reservation lapses, so look again after it
+     */
+    private void retryAfterAffinity() {
+        long window = this.cauldron.getBackend().getAffinityWindow();
+        if (this.woken && window > 0) {
+            this.woken = false;
+            wakeAfter(window);
+        }
+    }
+
+    /**
+     * A task delayed or backing off before a retry, or whose claim will lapse,
+     * becomes claimable with no change to wake the distributor, so look again
+     * when the first of them does
+     */
+    private void wakeWhenClaimable() {
+        Date next = this.cauldron.getBackend().nextClaimable(typeNames);
+        if (next != null) {
+            wakeAfter(Math.max(0L, next.getTime() - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Start again after a delay, unless already due to start sooner
+     */
+    private synchronized void wakeAfter(long delay) {
+        if (this.wake != null && !this.wake.isDone()) {
+            if (this.wake.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                return;
+            }
+            this.wake.cancel(false);
+        }
+        this.wake = this.retries.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void taskStatusChanged(String task, CauldronStatus status) {
-        LOG.info("Status change " + task + " " + status);
+        LOG.fine("Status change " + task + " " + status);
         if (status == CauldronStatus.Queued) {
             // Wake up!
+            this.wakeups.incrementAndGet();
+            this.woken = true;
             start();
         }
     }
 
-    public void pause() {
+    /**
+     * Stop claiming once the current claim returns, and withdraw the
+     * distributor from JMX until it is started again
+     */
+    public synchronized void pause() {
         this.paused = true;
+        if (this.wake != null) {
+            this.wake.cancel(false);
+        }
+        if (this.registered) {
+            CauldronMetrics.unregister(this.mbeanName);
+            this.registered = false;
+        }
+    }
+
+    /**
+     * A waiting worker, and the task claimed for it
+     */
+    private static final class Slot {
+
+        final String worker;
+        private CauldronTask task;
+        private boolean withdrawn;
+
+        Slot(String worker) {
+            this.worker = worker;
+        }
+
+        /**
+         * @return false if the worker has withdrawn
+         */
+        synchronized boolean offer(CauldronTask task) {
+            if (withdrawn) {
+                return false;
+            }
+            this.task = task;
+            notifyAll();
+            return true;
+        }
+
+        synchronized CauldronTask take() throws InterruptedException {
+            while (task == null) {
+                wait();
+            }
+            return task;
+        }
+
+        synchronized boolean isWithdrawn() {
+            return withdrawn;
+        }
+
+        /**
+         * @return the task if one was already handed over, else null
+         */
+        synchronized CauldronTask withdraw() {
+            withdrawn = true;
+            return task;
+        }
     }
 }
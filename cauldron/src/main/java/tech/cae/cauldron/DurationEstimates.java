@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.HashMap;
+import java.util.Map;
+import tech.cae.cauldron.api.CauldronTask;
+
+/**
+ * Estimated run time of tasks by type, used to prioritise the critical path
+ * of a {@link CauldronDAG}.
+ *
+ * @author peter
+ */
+public class DurationEstimates {
+
+    private final Map<String, Double> byType;
+    private double defaultDuration;
+
+    DurationEstimates() {
+        this.byType = new HashMap<>();
+        this.defaultDuration = 1.0;
+    }
+
+    public static DurationEstimates create() {
+        return new DurationEstimates();
+    }
+
+    /**
+     *
+     * @param type Task type
+     * @param seconds Estimated run time in seconds
+     * @return
+     */
+    public DurationEstimates type(Class<? extends CauldronTask> type, double seconds) {
+        return type(type.getName(), seconds);
+    }
+
+    public DurationEstimates type(String type, double seconds) {
+        byType.put(type, check(seconds));
+        return this;
+    }
+
+    /**
+     * Estimate for types without their own estimate, 1 second by default
+     *
+     * @param seconds Estimated run time in seconds
+     * @return
+     */
+    public DurationEstimates defaultDuration(double seconds) {
+        this.defaultDuration = check(seconds);
+        return this;
+    }
+
+    double estimate(CauldronTask task) {
+        return byType.getOrDefault(task.getClass().getName(), defaultDuration);
+    }
+
+    private static double check(double seconds) {
+        if (Double.isNaN(seconds) || seconds < 0.0) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        return seconds;
+    }
+}
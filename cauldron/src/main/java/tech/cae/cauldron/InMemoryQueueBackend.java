@@ -0,0 +1,1189 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import tech.cae.cauldron.api.CauldronStatus;
+
+/**
+ * Queue backend held in the heap of a single process, for pipelines that need
+ * the lowest latency and no durability, and for tests without a database.
+ *
+ * Tasks ready to run are kept per type in skip lists ordered by priority and
+ * then submission order, and are claimed by removing them and then moving
+ * their status from queued to running with a compare and set, so no locks
+ * are taken. Each task counts its unfinished parents and keeps a stack of
+ * dependents, which is sealed when it finishes so that a dependent added
+ * concurrently either sees the finish or is released by it. Tasks whose claim
+ * lapses are found through a skip list ordered by expiry.
+ *
+ * Changes are passed to listeners on the thread that made them. Finished
+ * tasks are kept, so their results can be read, until archived by
+ * {@link #archive(Date)} or removed by {@link #purge(Date)}, as a retention
+ * policy does periodically. Listing, statistics and joins scan every task.
+ *
+ * @author peter
+ */
+public class InMemoryQueueBackend implements QueueBackend {
+
+    private static final Logger LOG = Logger.getLogger(InMemoryQueueBackend.class.getName());
+    private static final CauldronMetrics METRICS = CauldronMetrics.get();
+    private static final String BLOCKED = CauldronStatus.Blocked.toString();
+    private static final String QUEUED = CauldronStatus.Queued.toString();
+    private static final String RUNNING = CauldronStatus.Running.toString();
+    private static final String COMPLETED = CauldronStatus.Completed.toString();
+    private static final String FAILED = CauldronStatus.Failed.toString();
+    private static final String CANCELLED = CauldronStatus.Cancelled.toString();
+    private static final Comparator<Node> BY_PRIORITY = Comparator.<Node>comparingDouble(node -> node.priority)
+            .thenComparingLong(node -> node.sequence);
+    private static final Comparator<Node> BY_EARLIEST_GET = Comparator.<Node>comparingLong(node -> node.earliestGet)
+            .thenComparingLong(node -> node.sequence);
+    private static final Comparator<Lease> BY_EXPIRY = Comparator.<Lease>comparingLong(lease -> lease.expiry)
+            .thenComparingLong(lease -> lease.sequence);
+    // Marks the dependents of a finished task, after which none can be added
+    private static final Edge SEALED = new Edge(null, null, false);
+    // How long a follower waits for new lines before checking whether the task has finished
+    private static final long FOLLOW_CHECK_INTERVAL = 1000L;
+    private static final ExecutorService FOLLOWERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cauldron-log-follower");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Document> archived = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentSkipListSet<Node>> ready = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Node> delayed = new ConcurrentSkipListSet<>(BY_EARLIEST_GET);
+    private final ConcurrentSkipListSet<Lease> leases = new ConcurrentSkipListSet<>(BY_EXPIRY);
+    private final ConcurrentMap<String, TaskLog> logs = new ConcurrentHashMap<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final RetentionManager retention = new RetentionManager(this::sweep);
+    private volatile Function<String, RetryPolicy> retryPolicies;
+    private volatile long affinityWindow = 0L;
+
+    @Override
+    public String send(Document payload, Date earliestGet, double priority, List<String> parents, String key) {
+        return send(new ObjectId().toHexString(), payload, earliestGet, priority, parents, Collections.emptyList(), null, key, new Date());
+    }
+
+    /**
+     * Send with the given id and creation date, as when restoring a task
+     *
+     * @param anyParents ids of tasks that must finish first, whatever their
+     * status
+     * @param join id of the join task this is a forked child of, or null
+     */
+    String send(String id, Document payload, Date earliestGet, double priority, List<String> parents, List<String> anyParents,
+            String join, String key, Date created) {
+        return send(id, payload, earliestGet, priority, parents, anyParents, join, key, created, false);
+    }
+
+    /**
+     * @param staged whether to keep the task blocked until it is released by
+     * sendStaged(), rather than queueing it once its parents have finished
+     * @return id of the task, or of the one already sent with the key
+     */
+    private String send(String id, Document payload, Date earliestGet, double priority, List<String> parents, List<String> anyParents,
+            String join, String key, Date created, boolean staged) {
+        Objects.requireNonNull(payload);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+        List<Node> parentNodes = new ArrayList<>(parents.size() + anyParents.size());
+        boolean doomed = false;
+        for (String parent : parents) {
+            Node parentNode = nodes.get(parent);
+            if (parentNode != null) {
+                parentNodes.add(parentNode);
+            } else if (archived.containsKey(parent)) {
+                doomed |= !COMPLETED.equals(archived.get(parent).getString("status"));
+            } else {
+                throw new IllegalArgumentException("No such parent task " + parent);
+            }
+        }
+        int required = parentNodes.size();
+        for (String parent : anyParents) {
+            Node parentNode = nodes.get(parent);
+            if (parentNode != null) {
+                parentNodes.add(parentNode);
+            } else if (!archived.containsKey(parent)) {
+                throw new IllegalArgumentException("No such parent task " + parent);
+            }
+        }
+        boolean queued = parentNodes.isEmpty() && !doomed && !staged;
+        Node node = new Node(id, payload, earliestGet.getTime(), priority, sequence.incrementAndGet(), key, created,
+                parents, anyParents, join, queued ? QUEUED : BLOCKED);
+        node.doomed = doomed;
+        nodes.put(node.id, node);
+        if (key != null) {
+            String existing = keys.putIfAbsent(key, node.id);
+            if (existing != null && !existing.equals(node.id)) {
+                nodes.remove(node.id);
+                return existing;
+            }
+        }
+        if (queued) {
+            enqueue(node);
+            notify(node.id, QUEUED, payload);
+            return node.id;
+        }
+        notify(node.id, BLOCKED, payload);
+        for (int i = 0; i < parentNodes.size(); i++) {
+            Node parent = parentNodes.get(i);
+            boolean any = i >= required;
+            // Count the parent before it can be seen, so its release never runs ahead of the count
+            node.pending.incrementAndGet();
+            if (!parent.addDependent(node, any)) {
+                if (!any && !COMPLETED.equals(parent.status.get())) {
+                    node.doomed = true;
+                }
+                node.pending.decrementAndGet();
+            }
+        }
+        // Then drop the count held while adding parents, which a staged task keeps until it is released
+        if (!staged && node.pending.decrementAndGet() == 0 && unblock(node)) {
+            release(node);
+        }
+        return node.id;
+    }
+
+    @Override
+    public List<String> sendMulti(List<Document> payloads, List<String> keys, Date earliestGet, double priority) {
+        Objects.requireNonNull(payloads);
+        if (keys != null && keys.size() != payloads.size()) {
+            throw new IllegalArgumentException("keys must be the same size as payloads");
+        }
+        List<String> ids = new ArrayList<>(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            ids.add(send(payloads.get(i), earliestGet, priority, new ArrayList<>(), keys == null ? null : keys.get(i)));
+        }
+        return ids;
+    }
+
+    @Override
+    public List<String> sendMessages(List<Document> messages) {
+        Objects.requireNonNull(messages);
+        List<String> ids = new ArrayList<>(messages.size());
+        for (Document message : messages) {
+            ids.add(send(message.getObjectId("_id").toHexString(), message.get("payload", Document.class),
+                    message.getDate("earliestGet"), message.getDouble("priority"),
+                    message.getList(MongoQueueCore.PARENTS, String.class, Collections.emptyList()),
+                    message.getList(MongoQueueCore.ANY_PARENTS, String.class, Collections.emptyList()),
+                    null, message.getString("dedupKey"), message.getDate("created")));
+        }
+        return ids;
+    }
+
+    /**
+     * The tasks are held blocked until all have been sent, then released in
+     * order, so a task can only start once every task that depends on it
+     * exists. Messages sent cancelled wait for no parents, and are cancelled
+     * as they are released.
+     */
+    @Override
+    public List<String> sendStaged(List<Document> messages) {
+        Objects.requireNonNull(messages);
+        List<String> ids = new ArrayList<>(messages.size());
+        List<Node> staged = new ArrayList<>(messages.size());
+        try {
+            for (Document message : messages) {
+                String id = message.getObjectId("_id").toHexString();
+                boolean cancelled = CANCELLED.equals(message.getString("status"));
+                String sent = send(id, message.get("payload", Document.class), message.getDate("earliestGet"), message.getDouble("priority"),
+                        cancelled ? Collections.emptyList() : message.getList(MongoQueueCore.PARENTS, String.class, Collections.emptyList()),
+                        cancelled ? Collections.emptyList() : message.getList(MongoQueueCore.ANY_PARENTS, String.class, Collections.emptyList()),
+                        joinOf(message), message.getString("dedupKey"), message.getDate("created"), true);
+                ids.add(sent);
+                if (sent.equals(id)) {
+                    Node node = nodes.get(id);
+                    node.doomed |= cancelled;
+                    node.group = groupOf(message);
+                    staged.add(node);
+                }
+            }
+        } catch (RuntimeException ex) {
+            // Held tasks are never released, so once removed nothing is left of them
+            for (Node node : staged) {
+                nodes.remove(node.id, node);
+                if (node.key != null) {
+                    keys.remove(node.key, node.id);
+                }
+            }
+            throw ex;
+        }
+        for (Node node : staged) {
+            if (node.pending.decrementAndGet() == 0 && unblock(node)) {
+                release(node);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public String requeue(Document message, Date earliestGet, double priority) {
+        return requeue(message, earliestGet, priority, new Date());
+    }
+
+    /**
+     * Queue a task again with the given creation date, as when restoring it
+     */
+    String requeue(Document message, Date earliestGet, double priority, Date created) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+        String id = message.getString("id");
+        Document payload = new Document(message);
+        payload.remove("id");
+        Node node = nodes.get(id);
+        if (node == null) {
+            Document before = archived.get(id);
+            send(id, payload, earliestGet, priority, Collections.emptyList(), Collections.emptyList(),
+                    before == null ? null : joinOf(before), before == null ? null : before.getString("key"), created);
+            archived.remove(id);
+            return id;
+        }
+        dequeue(node);
+        Lease lease = node.lease;
+        node.lease = null;
+        if (lease != null) {
+            leases.remove(lease);
+        }
+        node.payload = payload;
+        node.earliestGet = earliestGet.getTime();
+        node.priority = priority;
+        node.created = created;
+        node.progress = 0.0;
+        node.attempt = 0;
+        node.unblocked = null;
+        node.claimed = null;
+        node.started = null;
+        node.finished = null;
+        // Dependents sent from now on wait for it again
+        node.dependents.compareAndSet(SEALED, null);
+        node.status.set(QUEUED);
+        enqueue(node);
+        notify(node.id, QUEUED, payload);
+        return id;
+    }
+
+    /**
+     * The children are sent before the join, which waits for those that have
+     * not yet finished
+     */
+    @Override
+    public String fork(String parent, List<Document> children, Document join, double priority) {
+        List<String> ids = children.stream().map(child -> new ObjectId().toHexString()).collect(Collectors.toList());
+        return fork(new ObjectId().toHexString(), ids, parent, children, join, priority, new Date());
+    }
+
+    /**
+     * Fork with the given ids and creation date, as when restoring a fork
+     */
+    String fork(String joinId, List<String> childIds, String parent, List<Document> children, Document join, double priority, Date created) {
+        Objects.requireNonNull(parent);
+        Objects.requireNonNull(join);
+        for (int i = 0; i < children.size(); i++) {
+            send(childIds.get(i), children.get(i), created, priority, Collections.emptyList(), Collections.emptyList(), joinId, null, created);
+        }
+        return send(joinId, join, created, priority, Collections.singletonList(parent), childIds, null, null, created);
+    }
+
+    @Override
+    public Iterable<Document> joined(String join, int batchSize) {
+        List<Document> children = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (join.equals(node.join) && COMPLETED.equals(node.status.get())) {
+                children.add(message(node));
+            }
+        }
+        for (Document message : archived.values()) {
+            if (join.equals(joinOf(message)) && COMPLETED.equals(message.getString("status"))) {
+                children.add(message);
+            }
+        }
+        children.sort(Comparator.comparing(message -> message.getObjectId("_id")));
+        return children;
+    }
+
+    @Override
+    public Document claim(Collection<String> types, int resetDuration, String worker) {
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final String workerNode = worker == null ? null : MongoQueueCore.node(worker);
+        promote(now);
+        reset(now);
+        while (true) {
+            Node best = null;
+            ConcurrentSkipListSet<Node> from = null;
+            for (String type : types) {
+                ConcurrentSkipListSet<Node> candidates = ready.get(type);
+                Node first = candidates == null ? null : first(candidates, workerNode, now);
+                if (first != null && (best == null || BY_PRIORITY.compare(first, best) < 0)) {
+                    best = first;
+                    from = candidates;
+                }
+            }
+            if (best == null) {
+                METRICS.poll(true);
+                return null;
+            }
+            // Either may fail to a concurrent claim or acknowledgement, then look again
+            if (from.remove(best) && best.status.compareAndSet(QUEUED, RUNNING)) {
+                METRICS.poll(false);
+                best.claimed = new Date(now);
+                best.started = null;
+                best.progress = 0.0;
+                if (worker != null) {
+                    best.worker = worker;
+                }
+                lease(best, now + resetDuration * 1000L);
+                notify(best.id, RUNNING, null);
+                METRICS.histogram(CauldronMetrics.CLAIM_LATENCY, best.type).recordSince(start);
+                METRICS.histogram(CauldronMetrics.QUEUE_WAIT, best.type).record((now - best.created.getTime()) * 1000L);
+                return new Document(best.payload).append("id", best.id);
+            }
+        }
+    }
+
+    @Override
+    public Date nextClaimable(Collection<String> types) {
+        long next = Long.MAX_VALUE;
+        // Both are in time order, so the first of the types in each is the earliest
+        for (Node node : delayed) {
+            if (types.contains(node.type)) {
+                next = node.earliestGet;
+                break;
+            }
+        }
+        for (Lease lease : leases) {
+            if (lease.expiry >= next) {
+                break;
+            }
+            if (lease.node.lease == lease && types.contains(lease.node.type)) {
+                next = lease.expiry;
+                break;
+            }
+        }
+        return next == Long.MAX_VALUE ? null : new Date(next);
+    }
+
+    @Override
+    public void ack(Document message, String status) {
+        Objects.requireNonNull(message);
+        final long start = System.nanoTime();
+        ack(message, status, new Date());
+        METRICS.histogram(CauldronMetrics.ACK_LATENCY, message.getString("type")).recordSince(start);
+    }
+
+    /**
+     * Acknowledge with the given finish date, as when restoring a task
+     */
+    void ack(Document message, String status, Date finished) {
+        Node node = nodes.get(message.getString("id"));
+        if (node == null) {
+            return;
+        }
+        node.payload = message;
+        node.finished = finished;
+        node.status.set(status);
+        Lease lease = node.lease;
+        node.lease = null;
+        if (lease != null) {
+            leases.remove(lease);
+        }
+        dequeue(node);
+        notify(node.id, status, message);
+        release(node);
+    }
+
+    @Override
+    public boolean retry(Document message, Date earliestGet) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(earliestGet);
+        Node node = nodes.get(message.getString("id"));
+        if (node == null || !node.status.compareAndSet(RUNNING, QUEUED)) {
+            return false;
+        }
+        Lease lease = node.lease;
+        node.lease = null;
+        if (lease != null) {
+            leases.remove(lease);
+        }
+        Document payload = new Document(message);
+        payload.remove("id");
+        node.payload = payload;
+        // Not in the ready or delayed lists while running, so its order there can change
+        node.earliestGet = earliestGet.getTime();
+        node.attempt++;
+        enqueue(node);
+        notify(node.id, QUEUED, null);
+        return true;
+    }
+
+    @Override
+    public void setRetryPolicies(Function<String, RetryPolicy> policies) {
+        this.retryPolicies = policies;
+    }
+
+    @Override
+    public void progress(String id, double progress, int resetDuration, String worker) {
+        progress(id, progress, worker, new Date(), System.currentTimeMillis() + resetDuration * 1000L);
+    }
+
+    /**
+     * Record progress with the given start and claim expiry, as when restoring
+     * a task. Only a task still running for the worker, or for any worker when
+     * the worker is null, is updated.
+     *
+     * @return whether the task was updated
+     */
+    boolean progress(String id, double progress, String worker, Date started, long expiry) {
+        Node node = nodes.get(id);
+        if (node == null || !RUNNING.equals(node.status.get()) || (worker != null && !worker.equals(node.worker))) {
+            return false;
+        }
+        node.progress = progress;
+        if (node.started == null) {
+            node.started = started;
+        }
+        lease(node, expiry);
+        return true;
+    }
+
+    /**
+     * Claim a given task, as when restoring it
+     */
+    void claim(String id, String worker, Date claimed, long expiry, int attempt) {
+        Node node = nodes.get(id);
+        if (node == null || CauldronStatus.fromString(node.status.get()).isFinished()) {
+            return;
+        }
+        node.status.set(RUNNING);
+        dequeue(node);
+        node.claimed = claimed;
+        node.started = null;
+        node.progress = 0.0;
+        node.attempt = attempt;
+        if (worker != null) {
+            node.worker = worker;
+        }
+        lease(node, expiry);
+    }
+
+    /**
+     * The state of every task in the order they were sent, so parents come
+     * before their dependents, with the parents each is still waiting for,
+     * followed by archived tasks
+     *
+     * @param consumer receives a message per task, as from find() with the
+     * extra fields parents, anyParents, key, doomed and log, and archived for
+     * archived tasks
+     */
+    void snapshot(Consumer<Document> consumer) {
+        List<Node> all = new ArrayList<>(nodes.values());
+        all.sort(Comparator.comparingLong(node -> node.sequence));
+        for (Node node : all) {
+            Document message = message(node);
+            message.append("parents", waiting(node.parents))
+                    .append("anyParents", waiting(node.anyParents))
+                    .append("doomed", node.doomed)
+                    .append("log", readLog(node.id, 0, 0));
+            append(message, "key", node.key);
+            consumer.accept(message);
+        }
+        for (Document message : archived.values()) {
+            String id = message.getObjectId("_id").toHexString();
+            consumer.accept(new Document(message).append("archived", true).append("log", readLog(id, 0, 0)));
+        }
+    }
+
+    private List<String> waiting(List<String> parents) {
+        List<String> waiting = new ArrayList<>();
+        for (String parent : parents) {
+            Node parentNode = nodes.get(parent);
+            if (parentNode != null && !CauldronStatus.fromString(parentNode.status.get()).isFinished()) {
+                waiting.add(parent);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Restore a task from a message written by snapshot()
+     */
+    void restore(Document message) {
+        String id = message.getObjectId("_id").toHexString();
+        appendLog(id, message.getList("log", String.class, Collections.emptyList()));
+        if (message.getBoolean("archived", false)) {
+            Document copy = new Document(message);
+            copy.remove("archived");
+            copy.remove("log");
+            archived.put(id, copy);
+            if (copy.getString("key") != null) {
+                keys.put(copy.getString("key"), id);
+            }
+            return;
+        }
+        String status = message.getString("status");
+        Document payload = message.get("payload", Document.class);
+        send(id, payload, message.getDate("earliestGet"), message.getDouble("priority"),
+                message.getList("parents", String.class), message.getList("anyParents", String.class, Collections.emptyList()),
+                joinOf(message), message.getString("key"), message.getDate("created"));
+        Node node = nodes.get(id);
+        node.group = groupOf(message);
+        node.doomed = message.getBoolean("doomed", false);
+        node.attempt = message.getInteger("attempt", 0);
+        node.progress = message.getDouble("progress");
+        node.worker = message.getString("worker");
+        node.unblocked = message.getDate("unblocked");
+        if (RUNNING.equals(status)) {
+            claim(id, node.worker, message.getDate("claimed"), message.getDate("resetTimestamp").getTime(), node.attempt);
+            node.progress = message.getDouble("progress");
+            node.started = message.getDate("started");
+        } else if (CauldronStatus.fromString(status).isFinished()) {
+            node.claimed = message.getDate("claimed");
+            node.started = message.getDate("started");
+            // Tasks cancelled with a parent were never acknowledged, so their payload has no id
+            ack(new Document(payload).append("id", id), status, message.getDate("finished"));
+        }
+    }
+
+    @Override
+    public Document find(String id, Document projection) {
+        Node node = nodes.get(id);
+        return node == null ? null : message(node);
+    }
+
+    @Override
+    public List<Document> findAll(Collection<String> ids, Document projection) {
+        List<Document> messages = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Node node = nodes.get(id);
+            Document message = node == null ? archived.get(id) : message(node);
+            if (message != null) {
+                messages.add(node == null ? new Document(message) : message);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Iterable<Document> list(TaskQuery query, Document projection) {
+        List<Document> messages = nodes.values().stream()
+                .map(InMemoryQueueBackend::message)
+                .filter(query::matches)
+                .sorted(query.toComparator())
+                .collect(Collectors.toList());
+        return query.getLimit() > 0 && messages.size() > query.getLimit() ? messages.subList(0, query.getLimit()) : messages;
+    }
+
+    @Override
+    public Iterable<Document> findGroup(String group, Document projection) {
+        return nodes.values().stream()
+                .filter(node -> group.equals(node.group))
+                .map(InMemoryQueueBackend::message)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Document groupProgress(String group) {
+        long count = 0L;
+        double progress = 0.0;
+        for (Node node : nodes.values()) {
+            if (group.equals(node.group)) {
+                count++;
+                progress += CauldronStatus.fromString(node.status.get()).isFinished() ? 1.0 : node.progress;
+            }
+        }
+        return count == 0L ? null : new Document("count", count).append("progress", progress);
+    }
+
+    @Override
+    public Document stats(Date now) {
+        Objects.requireNonNull(now);
+        Map<Document, Document> counts = new LinkedHashMap<>();
+        Map<Document, Long> waits = new LinkedHashMap<>();
+        for (Node node : nodes.values()) {
+            String status = node.status.get();
+            Date created = node.created;
+            Document key = new Document("type", node.type).append("status", status);
+            Document group = counts.computeIfAbsent(key, k -> new Document("_id", k).append("count", 0L).append("oldest", created));
+            group.put("count", group.getLong("count") + 1);
+            if (created.before(group.getDate("oldest"))) {
+                group.put("oldest", created);
+            }
+            if (QUEUED.equals(status)) {
+                waits.merge(new Document("type", node.type).append("bucket", bucket(now.getTime() - created.getTime())), 1L, Long::sum);
+            }
+        }
+        List<Document> waitGroups = new ArrayList<>(waits.size());
+        waits.forEach((id, count) -> waitGroups.add(new Document("_id", id).append("count", count)));
+        return new Document("counts", new ArrayList<>(counts.values())).append("waits", waitGroups);
+    }
+
+    @Override
+    public Document phases(Date since) {
+        Objects.requireNonNull(since);
+        Map<String, Map<Document, Long>> phases = new LinkedHashMap<>();
+        for (PhaseStats.Phase phase : PhaseStats.Phase.values()) {
+            phases.put(phase.field, new LinkedHashMap<>());
+        }
+        for (Node node : nodes.values()) {
+            Date finished = node.finished;
+            if (finished == null || finished.before(since)) {
+                continue;
+            }
+            Date unblocked = node.unblocked;
+            Date claimed = node.claimed;
+            Date started = node.started;
+            phase(phases.get(PhaseStats.Phase.Blocked.field), node.type, unblocked, node.created);
+            phase(phases.get(PhaseStats.Phase.Queued.field), node.type, claimed, unblocked == null ? node.created : unblocked);
+            phase(phases.get(PhaseStats.Phase.Starting.field), node.type, started, claimed);
+            phase(phases.get(PhaseStats.Phase.Running.field), node.type, finished, started);
+        }
+        Document result = new Document();
+        phases.forEach((field, buckets) -> {
+            List<Document> groups = new ArrayList<>(buckets.size());
+            buckets.forEach((id, count) -> groups.add(new Document("_id", id).append("count", count)));
+            result.append(field, groups);
+        });
+        return result;
+    }
+
+    private static void phase(Map<Document, Long> buckets, String type, Date end, Date start) {
+        if (end != null && start != null) {
+            buckets.merge(new Document("type", type).append("bucket", bucket(end.getTime() - start.getTime())), 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Base 2 bucket of a duration in milliseconds, as the aggregations of the
+     * MongoDB backend compute it
+     */
+    private static int bucket(long millis) {
+        return 63 - Long.numberOfLeadingZeros(Math.max(millis, 1L));
+    }
+
+    private static Document message(Node node) {
+        Document message = new Document("_id", new ObjectId(node.id))
+                .append("payload", new Document(node.payload))
+                .append("status", node.status.get())
+                .append("earliestGet", new Date(node.earliestGet))
+                .append("priority", node.priority)
+                .append("created", node.created)
+                .append("progress", node.progress)
+                .append("attempt", node.attempt);
+        Lease lease = node.lease;
+        if (lease != null) {
+            message.append("resetTimestamp", new Date(lease.expiry));
+        }
+        append(message, "worker", node.worker);
+        append(message, "unblocked", node.unblocked);
+        append(message, "claimed", node.claimed);
+        append(message, "started", node.started);
+        append(message, "finished", node.finished);
+        append(message, MongoQueueCore.JOIN, node.join == null ? null : new ObjectId(node.join));
+        append(message, MongoQueueCore.GROUP, node.group == null ? null : new ObjectId(node.group));
+        return message;
+    }
+
+    private static String joinOf(Document message) {
+        ObjectId join = message.getObjectId(MongoQueueCore.JOIN);
+        return join == null ? null : join.toHexString();
+    }
+
+    private static String groupOf(Document message) {
+        ObjectId group = message.getObjectId(MongoQueueCore.GROUP);
+        return group == null ? null : group.toHexString();
+    }
+
+    @Override
+    public AutoCloseable watch(ChangeListener listener) {
+        listeners.add(listener);
+        return () -> listeners.remove(listener);
+    }
+
+    /**
+     * Both modes are applied by sweeping the tasks periodically
+     */
+    @Override
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        retention.apply(policy);
+    }
+
+    int sweep(RetentionPolicy.Mode mode, Date finishedBefore) {
+        return mode == RetentionPolicy.Mode.Archive ? archive(finishedBefore) : purge(finishedBefore);
+    }
+
+    /**
+     * Archive tasks that finished before a date. They can still be found by
+     * id and joined, and their deduplication keys stay taken, but they are
+     * no longer listed or counted, nor are their dependents tracked.
+     *
+     * @param finishedBefore latest finish date of the tasks to archive
+     * @return number of tasks archived
+     */
+    public int archive(Date finishedBefore) {
+        int moved = 0;
+        for (Node node : nodes.values()) {
+            if (isFinishedBefore(node, finishedBefore)) {
+                Document message = message(node);
+                append(message, "key", node.key);
+                // Archived before it is removed, so it can always be found
+                archived.put(node.id, message);
+                if (nodes.remove(node.id, node)) {
+                    moved++;
+                } else {
+                    archived.remove(node.id, message);
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Remove tasks that finished before a date, archived or not, with their
+     * logs. They can no longer be found, nor named as parents, and their
+     * deduplication keys can be used again.
+     *
+     * @param finishedBefore latest finish date of the tasks to remove
+     * @return number of tasks removed
+     */
+    public int purge(Date finishedBefore) {
+        int purged = 0;
+        for (Node node : nodes.values()) {
+            if (isFinishedBefore(node, finishedBefore) && nodes.remove(node.id, node)) {
+                if (node.key != null) {
+                    keys.remove(node.key, node.id);
+                }
+                logs.remove(node.id);
+                purged++;
+            }
+        }
+        for (Document message : archived.values()) {
+            Date finished = message.getDate("finished");
+            String id = message.getObjectId("_id").toHexString();
+            if (finished != null && finished.before(finishedBefore) && archived.remove(id, message)) {
+                if (message.getString("key") != null) {
+                    keys.remove(message.getString("key"), id);
+                }
+                logs.remove(id);
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    private static boolean isFinishedBefore(Node node, Date finishedBefore) {
+        Date finished = node.finished;
+        return finished != null && finished.before(finishedBefore) && CauldronStatus.fromString(node.status.get()).isFinished();
+    }
+
+    @Override
+    public void setAffinityWindow(long window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("window must not be negative");
+        }
+        this.affinityWindow = window;
+    }
+
+    @Override
+    public long getAffinityWindow() {
+        return affinityWindow;
+    }
+
+    @Override
+    public void appendLog(String id, Collection<String> lines) {
+        List<String> trimmed = lines.stream()
+                .filter(line -> line != null && !line.trim().isEmpty())
+                .map(String::trim)
+                .collect(Collectors.toList());
+        if (!trimmed.isEmpty()) {
+            logs.computeIfAbsent(id, task -> new TaskLog()).append(trimmed);
+        }
+    }
+
+    @Override
+    public List<String> readLog(String id, int offset, int limit) {
+        TaskLog log = logs.get(id);
+        return log == null ? new ArrayList<>() : log.read(offset, limit <= 0 ? Integer.MAX_VALUE : offset + limit);
+    }
+
+    @Override
+    public Iterable<String> streamLog(String id) {
+        return readLog(id, 0, 0);
+    }
+
+    @Override
+    public AutoCloseable followLog(String id, Consumer<String> consumer) {
+        TaskLog log = logs.computeIfAbsent(id, task -> new TaskLog());
+        AtomicBoolean closed = new AtomicBoolean();
+        FOLLOWERS.submit(() -> {
+            try {
+                int next = 0;
+                boolean finished = false;
+                while (!closed.get()) {
+                    List<String> lines = log.await(next, FOLLOW_CHECK_INTERVAL);
+                    lines.forEach(consumer);
+                    next += lines.size();
+                    if (lines.isEmpty()) {
+                        // Workers write their last lines before finishing the task, so once drained after it finished there are no more
+                        if (finished) {
+                            break;
+                        }
+                        Node node = nodes.get(id);
+                        finished = node == null || CauldronStatus.fromString(node.status.get()).isFinished();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                LOG.log(Level.FINE, "Stopped following log of " + id, ex);
+            }
+        });
+        return () -> {
+            closed.set(true);
+            log.wake();
+        };
+    }
+
+    /**
+     * Release the dependents of a finished task, and those of any dependents
+     * cancelled in turn, without recursion so long chains cannot overflow the
+     * stack. Dependents released by a task that ran are reserved for its node
+     * for the affinity window.
+     */
+    private void release(Node finished) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(finished);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            boolean completed = COMPLETED.equals(node.status.get());
+            long window = affinityWindow;
+            String worker = node.worker;
+            for (Edge edge = node.seal(); edge != null; edge = edge.next) {
+                Node dependent = edge.node;
+                if (!completed && !edge.any) {
+                    dependent.doomed = true;
+                }
+                if (window > 0 && worker != null) {
+                    dependent.preferred = MongoQueueCore.node(worker);
+                    dependent.preferredUntil = System.currentTimeMillis() + window;
+                }
+                if (dependent.pending.decrementAndGet() == 0 && unblock(dependent)) {
+                    pending.push(dependent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a task whose parents have all finished, or cancel it if one did
+     * not complete
+     *
+     * @return true if it was cancelled
+     */
+    private boolean unblock(Node node) {
+        if (node.doomed) {
+            if (node.status.compareAndSet(BLOCKED, CANCELLED)) {
+                node.finished = new Date();
+                notify(node.id, CANCELLED, null);
+                return true;
+            }
+            return false;
+        }
+        if (node.status.compareAndSet(BLOCKED, QUEUED)) {
+            node.unblocked = new Date();
+            enqueue(node);
+            notify(node.id, QUEUED, null);
+        }
+        return false;
+    }
+
+    private void enqueue(Node node) {
+        if (node.earliestGet > System.currentTimeMillis()) {
+            delayed.add(node);
+        } else {
+            ready.computeIfAbsent(node.type, type -> new ConcurrentSkipListSet<>(BY_PRIORITY)).add(node);
+        }
+    }
+
+    private void dequeue(Node node) {
+        ConcurrentSkipListSet<Node> candidates = ready.get(node.type);
+        if (candidates != null) {
+            candidates.remove(node);
+        }
+        delayed.remove(node);
+    }
+
+    /**
+     * Move delayed tasks that may now be claimed to the ready lists
+     */
+    private void promote(long now) {
+        for (Node node = first(delayed); node != null && node.earliestGet <= now; node = first(delayed)) {
+            if (delayed.remove(node)) {
+                ready.computeIfAbsent(node.type, type -> new ConcurrentSkipListSet<>(BY_PRIORITY)).add(node);
+            }
+        }
+    }
+
+    /**
+     * Queue again running tasks whose claim has lapsed, after the backoff of
+     * their retry policy, or fail those that have had all their attempts
+     */
+    private void reset(long now) {
+        Function<String, RetryPolicy> policies = retryPolicies;
+        for (Lease lease = first(leases); lease != null && lease.expiry <= now; lease = first(leases)) {
+            Node node = lease.node;
+            if (!leases.remove(lease) || node.lease != lease) {
+                continue;
+            }
+            RetryPolicy policy = policies == null ? null : policies.apply(node.type);
+            if (policy == null || policy.canRetry(node.attempt)) {
+                if (node.status.compareAndSet(RUNNING, QUEUED)) {
+                    node.lease = null;
+                    if (policy != null) {
+                        node.earliestGet = now + policy.getBackoff(node.attempt);
+                    }
+                    node.attempt++;
+                    enqueue(node);
+                    notify(node.id, QUEUED, null);
+                }
+            } else if (node.status.compareAndSet(RUNNING, FAILED)) {
+                node.lease = null;
+                node.finished = new Date(now);
+                notify(node.id, FAILED, null);
+                release(node);
+            }
+        }
+    }
+
+    private void lease(Node node, long expiry) {
+        Lease lease = new Lease(node, expiry, sequence.incrementAndGet());
+        Lease previous = node.lease;
+        node.lease = lease;
+        leases.add(lease);
+        if (previous != null) {
+            leases.remove(previous);
+        }
+    }
+
+    private void notify(String id, String status, Document payload) {
+        listeners.forEach(listener -> listener.changed(id, status, payload));
+    }
+
+    private static <T> T first(ConcurrentSkipListSet<T> set) {
+        try {
+            return set.first();
+        } catch (NoSuchElementException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * The first ready task not reserved for the node of another worker
+     *
+     * @param node node of the claiming worker, or null
+     */
+    private static Node first(ConcurrentSkipListSet<Node> candidates, String node, long now) {
+        for (Node candidate : candidates) {
+            String preferred = candidate.preferred;
+            if (preferred == null || candidate.preferredUntil <= now || preferred.equals(node)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static void append(Document message, String field, Object value) {
+        if (value != null) {
+            message.append(field, value);
+        }
+    }
+
+    private static final class Node {
+
+        final String id;
+        final String type;
+        volatile long earliestGet;
+        volatile double priority;
+        final long sequence;
+        final String key;
+        volatile Date created;
+        final List<String> parents;
+        final List<String> anyParents;
+        final String join;
+        final AtomicReference<String> status;
+        // Unfinished parents, plus one while they are being added
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicReference<Edge> dependents = new AtomicReference<>();
+        volatile boolean doomed;
+        volatile Document payload;
+        volatile Lease lease;
+        volatile double progress;
+        volatile int attempt;
+        volatile String worker;
+        volatile Date unblocked;
+        volatile Date claimed;
+        volatile Date started;
+        volatile Date finished;
+        volatile String preferred;
+        volatile long preferredUntil;
+        volatile String group;
+
+        Node(String id, Document payload, long earliestGet, double priority, long sequence, String key, Date created,
+                List<String> parents, List<String> anyParents, String join, String status) {
+            this.id = id;
+            this.payload = payload;
+            this.type = payload.getString("type");
+            this.earliestGet = earliestGet;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.key = key;
+            this.created = created;
+            this.parents = parents;
+            this.anyParents = anyParents;
+            this.join = join;
+            this.status = new AtomicReference<>(status);
+        }
+
+        /**
+         * @param any whether the dependent only waits for this task to
+         * finish, rather than to complete
+         * @return false if this task has already finished
+         */
+        boolean addDependent(Node dependent, boolean any) {
+            while (true) {
+                Edge head = dependents.get();
+                if (head == SEALED) {
+                    return false;
+                }
+                if (dependents.compareAndSet(head, new Edge(dependent, head, any))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return the dependents, or null if there are none or they were
+         * already taken
+         */
+        Edge seal() {
+            Edge head = dependents.getAndSet(SEALED);
+            return head == SEALED ? null : head;
+        }
+    }
+
+    private static final class Edge {
+
+        final Node node;
+        final Edge next;
+        final boolean any;
+
+        Edge(Node node, Edge next, boolean any) {
+            this.node = node;
+            this.next = next;
+            this.any = any;
+        }
+    }
+
+    private static final class Lease {
+
+        final Node node;
+        final long expiry;
+        final long sequence;
+
+        Lease(Node node, long expiry, long sequence) {
+            this.node = node;
+            this.expiry = expiry;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Log lines of a task, which followers wait on
+     */
+    private static final class TaskLog {
+
+        private final List<String> lines = new ArrayList<>();
+
+        synchronized void append(List<String> more) {
+            lines.addAll(more);
+            notifyAll();
+        }
+
+        synchronized List<String> read(int from, int to) {
+            int size = lines.size();
+            return new ArrayList<>(lines.subList(Math.min(from, size), Math.min(Math.max(from, to), size)));
+        }
+
+        /**
+         * Lines from an index, waiting up to a timeout for any if there are
+         * none yet
+         */
+        synchronized List<String> await(int from, long timeout) throws InterruptedException {
+            if (lines.size() <= from) {
+                wait(timeout);
+            }
+            return read(from, Integer.MAX_VALUE);
+        }
+
+        synchronized void wake() {
+            notifyAll();
+        }
+    }
+}
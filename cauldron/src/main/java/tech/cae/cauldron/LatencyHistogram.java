@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in microseconds, in base 2 buckets so recording is a
+ * few atomic increments and percentiles are accurate to within a factor of
+ * two, as for the wait times in QueueStats.
+ *
+ * @author peter
+ */
+public final class LatencyHistogram implements LatencyHistogramMXBean {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+    }
+
+    /**
+     *
+     * @param micros duration in microseconds, negative values count as 0
+     */
+    public void record(long micros) {
+        long value = Math.max(0L, micros);
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value | 1L));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long previous = max.get();
+        while (value > previous && !max.compareAndSet(previous, value)) {
+            previous = max.get();
+        }
+    }
+
+    /**
+     * Record the time since a System.nanoTime() reading
+     *
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000L);
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.get();
+        return n == 0L ? 0.0 : (double) sum.get() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long get50thPercentile() {
+        return getPercentile(50.0);
+    }
+
+    @Override
+    public long get95thPercentile() {
+        return getPercentile(95.0);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return getPercentile(99.0);
+    }
+
+    /**
+     *
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket containing the percentile, capped at
+     * the maximum recorded, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long[] snapshot = new long[buckets.length()];
+        long total = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(max.get(), i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1L);
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Durable queue backend for a single process, journalling every task and
+ * state transition to an append-only log of memory-mapped segment files in a
+ * directory, and serving claims from an InMemoryQueueBackend index rebuilt
+ * from the log on startup.
+ *
+ * Sending, claiming and acknowledging return once their record is on disk,
+ * with concurrent callers sharing each force to disk, and throw if the
+ * backend is closed or the caller is interrupted before it is. Progress, log lines,
+ * archiving and purges are not waited for, and are forced within a second or
+ * with the next record that is. A claim that is lost to a crash is retried like one whose worker died.
+ * Each change is made to the index and appended to the log under one lock,
+ * so the log replays changes in the order they were made, while waiting for
+ * records to reach the disk happens outside it.
+ * Lapsed claims are not recorded, as they lapse again when the log is
+ * replayed, and are then retried or failed in the same way.
+ *
+ * The log is compacted to a snapshot of the index once it has grown past a
+ * threshold, checked periodically, or on demand.
+ *
+ * @author peter
+ */
+public class LogQueueBackend implements QueueBackend, AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(LogQueueBackend.class.getName());
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 256L << 20;
+    private static final long COMPACTION_INTERVAL = 60L;
+    private static final CauldronMetrics METRICS = CauldronMetrics.get();
+
+    private final InMemoryQueueBackend index = new InMemoryQueueBackend();
+    private final SegmentLog log;
+    // Held while changing the index and appending the record of the change, so records are replayed in the order
+    // the changes were made, and while compacting, so the snapshot matches the log
+    private final Lock lock = new ReentrantLock();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cauldron-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final RetentionManager retention = new RetentionManager(this::sweep);
+    private volatile long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    public LogQueueBackend(Path directory) throws IOException {
+        this(directory, SegmentLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory directory holding the log, created if need be
+     * @param segmentSize size in bytes of each segment file
+     * @throws IOException
+     */
+    public LogQueueBackend(Path directory, int segmentSize) throws IOException {
+        this.log = new SegmentLog(directory, segmentSize);
+        log.replay(this::apply);
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Bytes written to the log after which it is compacted at the next
+     * periodic check
+     *
+     * @param compactionThreshold
+     */
+    public void setCompactionThreshold(long compactionThreshold) {
+        if (compactionThreshold <= 0) {
+            throw new IllegalArgumentException("compactionThreshold must be positive");
+        }
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public String send(Document payload, Date earliestGet, double priority, List<String> parents, String key) {
+        List<String> ids = new ArrayList<>(1);
+        long record;
+        lock.lock();
+        try {
+            record = send(new ObjectId().toHexString(), payload, earliestGet, priority, parents, Collections.emptyList(), key, new Date(), ids);
+        } finally {
+            lock.unlock();
+        }
+        log.await(record);
+        return ids.get(0);
+    }
+
+    @Override
+    public List<String> sendMulti(List<Document> payloads, List<String> keys, Date earliestGet, double priority) {
+        Objects.requireNonNull(payloads);
+        if (keys != null && keys.size() != payloads.size()) {
+            throw new IllegalArgumentException("keys must be the same size as payloads");
+        }
+        List<String> ids = new ArrayList<>(payloads.size());
+        long record = 0L;
+        lock.lock();
+        try {
+            for (int i = 0; i < payloads.size(); i++) {
+                record = Math.max(record, send(new ObjectId().toHexString(), payloads.get(i), earliestGet, priority,
+                        Collections.emptyList(), Collections.emptyList(), keys == null ? null : keys.get(i), new Date(), ids));
+            }
+        } finally {
+            lock.unlock();
+        }
+        // One force covers the batch
+        log.await(record);
+        return ids;
+    }
+
+    @Override
+    public List<String> sendMessages(List<Document> messages) {
+        Objects.requireNonNull(messages);
+        List<String> ids = new ArrayList<>(messages.size());
+        long record = 0L;
+        lock.lock();
+        try {
+            for (Document message : messages) {
+                record = Math.max(record, send(message.getObjectId("_id").toHexString(), message.get("payload", Document.class),
+                        message.getDate("earliestGet"), message.getDouble("priority"),
+                        message.getList(MongoQueueCore.PARENTS, String.class, Collections.emptyList()),
+                        message.getList(MongoQueueCore.ANY_PARENTS, String.class, Collections.emptyList()),
+                        message.getString("dedupKey"), message.getDate("created"), ids));
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.await(record);
+        return ids;
+    }
+
+    /**
+     * The messages are recorded together, so a graph torn by a crash is
+     * dropped whole when the log is replayed
+     */
+    @Override
+    public List<String> sendStaged(List<Document> messages) {
+        Objects.requireNonNull(messages);
+        List<String> ids;
+        long record;
+        lock.lock();
+        try {
+            ids = index.sendStaged(messages);
+            record = log.append(new Document(SegmentLog.OP, "staged").append("messages", messages));
+        } finally {
+            lock.unlock();
+        }
+        log.await(record);
+        return ids;
+    }
+
+    /**
+     * Send a task to the index, and record it if it is new
+     *
+     * @param ids receives the id of the task, or of the one already sent with
+     * the key
+     * @return sequence number of the record, or 0 if none was needed
+     */
+    private long send(String id, Document payload, Date earliestGet, double priority, List<String> parents, List<String> anyParents,
+            String key, Date created, List<String> ids) {
+        String sent = index.send(id, payload, earliestGet, priority, parents, anyParents, null, key, created);
+        ids.add(sent);
+        if (!sent.equals(id)) {
+            return 0L;
+        }
+        return log.append(new Document(SegmentLog.OP, "send")
+                .append("id", id)
+                .append("payload", payload)
+                .append("earliestGet", earliestGet)
+                .append("priority", priority)
+                .append("parents", parents)
+                .append("anyParents", anyParents)
+                .append("key", key)
+                .append("created", created));
+    }
+
+    @Override
+    public String requeue(Document message, Date earliestGet, double priority) {
+        Objects.requireNonNull(message);
+        final Date created = new Date();
+        String id;
+        long record;
+        lock.lock();
+        try {
+            id = index.requeue(message, earliestGet, priority, created);
+            record = log.append(new Document(SegmentLog.OP, "requeue")
+                    .append("message", message)
+                    .append("earliestGet", earliestGet)
+                    .append("priority", priority)
+                    .append("created", created));
+        } finally {
+            lock.unlock();
+        }
+        log.await(record);
+        return id;
+    }
+
+    @Override
+    public String fork(String parent, List<Document> children, Document join, double priority) {
+        Objects.requireNonNull(children);
+        final String joinId = new ObjectId().toHexString();
+        final List<String> childIds = new ArrayList<>(children.size());
+        children.forEach(child -> childIds.add(new ObjectId().toHexString()));
+        final Date created = new Date();
+        long record;
+        lock.lock();
+        try {
+            index.fork(joinId, childIds, parent, children, join, priority, created);
+            record = log.append(new Document(SegmentLog.OP, "fork")
+                    .append("join", joinId)
+                    .append("children", childIds)
+                    .append("parent", parent)
+                    .append("childPayloads", children)
+                    .append("joinPayload", join)
+                    .append("priority", priority)
+                    .append("created", created));
+        } finally {
+            lock.unlock();
+        }
+        log.await(record);
+        return joinId;
+    }
+
+    @Override
+    public Iterable<Document> joined(String join, int batchSize) {
+        return index.joined(join, batchSize);
+    }
+
+    @Override
+    public Document claim(Collection<String> types, int resetDuration, String worker) {
+        Document claimed;
+        long record;
+        lock.lock();
+        try {
+            claimed = index.claim(types, resetDuration, worker);
+            if (claimed == null) {
+                return null;
+            }
+            Document message = index.find(claimed.getString("id"), null);
+            record = log.append(new Document(SegmentLog.OP, "claim")
+                    .append("id", claimed.getString("id"))
+                    .append("worker", worker)
+                    .append("claimed", message.getDate("claimed"))
+                    .append("expiry", message.getDate("resetTimestamp"))
+                    .append("attempt", message.getInteger("attempt")));
+        } finally {
+            lock.unlock();
+        }
+        log.await(record);
+        return claimed;
+    }
+
+    @Override
+    public Date nextClaimable(Collection<String> types) {
+        return index.nextClaimable(types);
+    }
+
+    @Override
+    public void ack(Document message, String status) {
+        Objects.requireNonNull(message);
+        final long start = System.nanoTime();
+        final Date finished = new Date();
+        long record;
+        lock.lock();
+        try {
+            index.ack(message, status, finished);
+            record = log.append(new Document(SegmentLog.OP, "ack")
+                    .append("message", message)
+                    .append("status", status)
+                    .append("finished", finished));
+        } finally {
+            lock.unlock();
+        }
+        log.await(record);
+        METRICS.histogram(CauldronMetrics.ACK_LATENCY, message.getString("type")).recordSince(start);
+    }
+
+    @Override
+    public boolean retry(Document message, Date earliestGet) {
+        Objects.requireNonNull(message);
+        long record;
+        lock.lock();
+        try {
+            if (!index.retry(message, earliestGet)) {
+                return false;
+            }
+            record = log.append(new Document(SegmentLog.OP, "retry")
+                    .append("message", message)
+                    .append("earliestGet", earliestGet));
+        } finally {
+            lock.unlock();
+        }
+        log.await(record);
+        return true;
+    }
+
+    @Override
+    public void setRetryPolicies(Function<String, RetryPolicy> policies) {
+        index.setRetryPolicies(policies);
+    }
+
+    @Override
+    public void progress(String id, double progress, int resetDuration, String worker) {
+        final Date started = new Date();
+        final long expiry = started.getTime() + resetDuration * 1000L;
+        lock.lock();
+        try {
+            if (!index.progress(id, progress, worker, started, expiry)) {
+                return;
+            }
+            log.append(new Document(SegmentLog.OP, "progress")
+                    .append("id", id)
+                    .append("progress", progress)
+                    .append("worker", worker)
+                    .append("started", started)
+                    .append("expiry", new Date(expiry)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Document find(String id, Document projection) {
+        return index.find(id, projection);
+    }
+
+    @Override
+    public List<Document> findAll(Collection<String> ids, Document projection) {
+        return index.findAll(ids, projection);
+    }
+
+    @Override
+    public Iterable<Document> list(TaskQuery query, Document projection) {
+        return index.list(query, projection);
+    }
+
+    @Override
+    public Iterable<Document> findGroup(String group, Document projection) {
+        return index.findGroup(group, projection);
+    }
+
+    @Override
+    public Document groupProgress(String group) {
+        return index.groupProgress(group);
+    }
+
+    @Override
+    public Document stats(Date now) {
+        return index.stats(now);
+    }
+
+    @Override
+    public Document phases(Date since) {
+        return index.phases(since);
+    }
+
+    @Override
+    public AutoCloseable watch(ChangeListener listener) {
+        return index.watch(listener);
+    }
+
+    /**
+     * Both modes are applied by sweeping the tasks periodically, and each
+     * sweep is recorded
+     */
+    @Override
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        retention.apply(policy);
+    }
+
+    private int sweep(RetentionPolicy.Mode mode, Date finishedBefore) {
+        return mode == RetentionPolicy.Mode.Archive ? archive(finishedBefore) : purge(finishedBefore);
+    }
+
+    /**
+     * Archive tasks that finished before a date, as
+     * InMemoryQueueBackend.archive()
+     *
+     * @param finishedBefore latest finish date of the tasks to archive
+     * @return number of tasks archived
+     */
+    public int archive(Date finishedBefore) {
+        lock.lock();
+        try {
+            int archived = index.archive(finishedBefore);
+            log.append(new Document(SegmentLog.OP, "archive").append("before", finishedBefore));
+            return archived;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setAffinityWindow(long window) {
+        index.setAffinityWindow(window);
+    }
+
+    @Override
+    public long getAffinityWindow() {
+        return index.getAffinityWindow();
+    }
+
+    @Override
+    public void appendLog(String id, Collection<String> lines) {
+        lock.lock();
+        try {
+            index.appendLog(id, lines);
+            log.append(new Document(SegmentLog.OP, "log").append("id", id).append("lines", new ArrayList<>(lines)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> readLog(String id, int offset, int limit) {
+        return index.readLog(id, offset, limit);
+    }
+
+    @Override
+    public Iterable<String> streamLog(String id) {
+        return index.streamLog(id);
+    }
+
+    @Override
+    public AutoCloseable followLog(String id, Consumer<String> consumer) {
+        return index.followLog(id, consumer);
+    }
+
+    /**
+     * Remove tasks that finished before a date, as
+     * InMemoryQueueBackend.purge()
+     *
+     * @param finishedBefore latest finish date of the tasks to remove
+     * @return number of tasks removed
+     */
+    public int purge(Date finishedBefore) {
+        lock.lock();
+        try {
+            int purged = index.purge(finishedBefore);
+            log.append(new Document(SegmentLog.OP, "purge").append("before", finishedBefore));
+            return purged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace the log with a snapshot of every task
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        lock.lock();
+        try {
+            final long start = System.nanoTime();
+            final long written = log.getWritten();
+            log.compact(writer -> index.snapshot(task -> writer.accept(new Document(SegmentLog.OP, "restore").append("task", task))));
+            LOG.log(Level.INFO, "Compacted {0} bytes of queue log in {1} ms",
+                    new Object[]{written, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (log.getWritten() < compactionThreshold) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to compact queue log", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        retention.stop();
+        compactor.shutdownNow();
+        lock.lock();
+        try {
+            log.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apply a record from the log to the index
+     */
+    private void apply(Document record) {
+        try {
+            switch (record.getString(SegmentLog.OP)) {
+                case "send":
+                    String id = record.getString("id");
+                    if (index.find(id, null) == null) {
+                        index.send(id, record.get("payload", Document.class), record.getDate("earliestGet"),
+                                record.getDouble("priority"), record.getList("parents", String.class),
+                                record.getList("anyParents", String.class, Collections.emptyList()), null,
+                                record.getString("key"), record.getDate("created"));
+                    }
+                    break;
+                case "staged":
+                    index.sendStaged(record.getList("messages", Document.class));
+                    break;
+                case "requeue":
+                    index.requeue(record.get("message", Document.class), record.getDate("earliestGet"),
+                            record.getDouble("priority"), record.getDate("created"));
+                    break;
+                case "fork":
+                    index.fork(record.getString("join"), record.getList("children", String.class), record.getString("parent"),
+                            record.getList("childPayloads", Document.class), record.get("joinPayload", Document.class),
+                            record.getDouble("priority"), record.getDate("created"));
+                    break;
+                case "log":
+                    index.appendLog(record.getString("id"), record.getList("lines", String.class));
+                    break;
+                case "archive":
+                    index.archive(record.getDate("before"));
+                    break;
+                case "claim":
+                    index.claim(record.getString("id"), record.getString("worker"), record.getDate("claimed"),
+                            record.getDate("expiry").getTime(), record.getInteger("attempt"));
+                    break;
+                case "progress":
+                    index.progress(record.getString("id"), record.getDouble("progress"), record.getString("worker"),
+                            record.getDate("started"), record.getDate("expiry").getTime());
+                    break;
+                case "ack":
+                    index.ack(record.get("message", Document.class), record.getString("status"), record.getDate("finished"));
+                    break;
+                case "retry":
+                    index.retry(record.get("message", Document.class), record.getDate("earliestGet"));
+                    break;
+                case "purge":
+                    index.purge(record.getDate("before"));
+                    break;
+                case "restore":
+                    index.restore(record.get("task", Document.class));
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException ex) {
+            // A parent purged before its dependent was sent, or similar, should not stop recovery
+            LOG.log(Level.WARNING, "Skipping queue log record " + record.toJson(), ex);
+        }
+    }
+}
@@ -23,27 +23,58 @@
  */
 package tech.cae.cauldron;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoChangeStreamCursor;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import org.bson.BsonArray;
-import org.bson.BsonString;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonObjectId;
 import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
 import org.bson.types.ObjectId;
+import tech.cae.cauldron.api.CauldronStatus;
 
 /**
  *
@@ -51,16 +82,55 @@ import org.bson.types.ObjectId;
  * @author https://github.com/gaillard/mongo-queue-java
  *
  */
-final class MongoQueueCore {
+final class MongoQueueCore implements QueueBackend {
 
     private static final Logger LOG = Logger.getLogger(MongoQueueCore.class.getName());
+    private static final String EXPIRY_INDEX = "finished_ttl";
+    private static final CauldronMetrics METRICS = CauldronMetrics.get();
+    static final List<String> STATUSES = Collections.unmodifiableList(Arrays.stream(CauldronStatus.values())
+            .map(CauldronStatus::toString)
+            .collect(Collectors.toList()));
 
     private final MongoCollection<Document> collection;
+    private final MongoCollection<Document> archive;
+    private final TaskLogStore logs;
+    private final RetentionManager retention;
+    private volatile long affinityWindow = DEFAULT_AFFINITY_WINDOW;
+    private volatile Function<String, RetryPolicy> retryPolicies;
 
-    MongoQueueCore(final MongoCollection<Document> collection) {
-        Objects.requireNonNull(collection);
+    /**
+     * @param database database of the queue collection, and of the archive
+     * and logs collections named after it
+     * @param queueCollection name of the queue collection
+     */
+    MongoQueueCore(final MongoDatabase database, final String queueCollection) {
+        Objects.requireNonNull(database);
+        Objects.requireNonNull(queueCollection);
 
-        this.collection = collection;
+        this.collection = database.getCollection(queueCollection);
+        this.archive = database.getCollection(queueCollection + "_archive");
+        this.logs = new TaskLogStore(database.getCollection(queueCollection + "_logs"), collection);
+        this.retention = new RetentionManager(this, archive);
+    }
+
+    /**
+     * Set how long the dependents released by a message are reserved for the
+     * node of the worker that ran it, so that their input is still local
+     *
+     * @param affinityWindow window in milliseconds, or 0 to not reserve
+     * dependents
+     */
+    @Override
+    public void setAffinityWindow(final long affinityWindow) {
+        if (affinityWindow < 0) {
+            throw new IllegalArgumentException("affinityWindow must not be negative");
+        }
+        this.affinityWindow = affinityWindow;
+    }
+
+    @Override
+    public long getAffinityWindow() {
+        return affinityWindow;
     }
 
     /**
@@ -119,6 +189,137 @@ final class MongoQueueCore {
 
         ensureIndex(completeIndex);//main query in Get()
         ensureIndex(new Document("status", 1).append("resetTimestamp", 1));//for the stuck messages query in Get()
+        ensureIndex(new Document("status", 1).append("earliestGet", 1));//for the delayed messages query in nextClaimable()
+    }
+
+    /**
+     * Ensure indexes for listing tasks with a TaskQuery, sorted by created
+     * date and id, optionally filtered by status and task type
+     */
+    public void ensureListIndex() {
+        ensureIndex(new Document("created", 1).append("_id", 1));
+        ensureIndex(new Document("status", 1).append("created", 1).append("_id", 1));
+        ensureIndex(new Document("payload.type", 1).append("status", 1).append("created", 1).append("_id", 1));
+        // Status first, so that statistics count each status from the index alone
+        ensureIndex(new Document("status", 1).append("payload.type", 1).append("created", 1));
+        // Finished date first, to select the messages for phase statistics
+        ensureIndex(new Document("finished", 1).append("payload.type", 1));
+    }
+
+    /**
+     * Ensure the indexes used to find the messages that depend on a message
+     * when it is acknowledged
+     */
+    public void ensureDependencyIndex() {
+        ensureIndex(new Document(PARENTS, 1));
+        ensureIndex(new Document(ANY_PARENTS, 1), new IndexOptions().background(true).sparse(true));
+        ensureIndex(new Document(JOIN, 1).append("_id", 1), new IndexOptions().background(true).sparse(true));
+    }
+
+    /**
+     * Ensure the index used to follow the messages sent together as a graph
+     */
+    public void ensureGroupIndex() {
+        ensureIndex(new Document(GROUP, 1), new IndexOptions().background(true).sparse(true));
+    }
+
+    /**
+     * Ensure the index for requeueing the running messages of a worker node
+     */
+    public void ensureNodeIndex() {
+        ensureIndex(new Document(NODE, 1).append("status", 1), new IndexOptions().background(true).sparse(true));
+    }
+
+    /**
+     * Ensure the unique index on deduplication keys, which only covers
+     * messages sent with a key, and the index that finds keys in the archive
+     */
+    public void ensureKeyIndex() {
+        ensureIndex(new Document("dedupKey", 1), new IndexOptions().unique(true)
+                .partialFilterExpression(new Document("dedupKey", new Document("$type", "string"))));
+        archive.createIndex(new Document("dedupKey", 1), new IndexOptions().background(true).sparse(true));
+    }
+
+    /**
+     * Ensure the indexes of the logs collection
+     */
+    public void ensureLogIndex() {
+        logs.ensureIndex();
+    }
+
+    /**
+     * Ensure the TTL index that deletes finished messages, replacing it if it
+     * exists with a different expiry
+     *
+     * @param expireAfter seconds after a message finished that it is deleted
+     */
+    public void ensureExpiryIndex(final long expireAfter) {
+        final IndexOptions options = new IndexOptions().name(EXPIRY_INDEX).background(true).expireAfter(expireAfter, TimeUnit.SECONDS);
+        try {
+            collection.createIndex(new Document("finished", 1), options);
+        } catch (MongoCommandException ex) {
+            // IndexOptionsConflict, when the expiry has changed
+            if (ex.getErrorCode() != 85 && ex.getErrorCode() != 86) {
+                throw ex;
+            }
+            collection.dropIndex(EXPIRY_INDEX);
+            collection.createIndex(new Document("finished", 1), options);
+        }
+    }
+
+    /**
+     * Remove the TTL index on finished messages, if it exists
+     */
+    public void dropExpiryIndex() {
+        for (final Document existingIndex : collection.listIndexes()) {
+            if (EXPIRY_INDEX.equals(existingIndex.getString("name"))) {
+                collection.dropIndex(EXPIRY_INDEX);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ensure index for archive() method
+     */
+    public void ensureArchiveIndex() {
+        ensureIndex(new Document("finished", 1).append("_id", 1));
+    }
+
+    /**
+     * Move a batch of messages that finished before the given date to another
+     * collection. Messages are written to the archive before they are
+     * deleted, so an interrupted move is completed by the next call, and
+     * replace any copy archived before they were queued again. Only messages
+     * that still match when deleted are removed, so a message queued again
+     * while it was being moved stays in the queue.
+     *
+     * @param archive collection to move messages to. Should not be null
+     * @param finishedBefore date before which messages must have finished.
+     * Should not be null
+     * @param batchSize maximum number of messages to move
+     * @return number of messages moved
+     */
+    public int archive(final MongoCollection<Document> archive, final Date finishedBefore, final int batchSize) {
+        Objects.requireNonNull(archive);
+        Objects.requireNonNull(finishedBefore);
+
+        final Document query = new Document("$or", Arrays.asList(
+                new Document("finished", new Document("$lt", finishedBefore)),
+                // finished before the finished date was recorded
+                new Document("finished", new Document("$exists", false))
+                        .append("status", new Document("$in", Arrays.asList("completed", "failed", "cancelled")))
+                        .append("created", new Document("$lt", finishedBefore))));
+        final List<Document> messages = collection.find(query).sort(new Document("_id", 1)).limit(batchSize).into(new ArrayList<>());
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        archive.bulkWrite(messages.stream()
+                .map(message -> new ReplaceOneModel<>(new Document("_id", message.getObjectId("_id")), message, new ReplaceOptions().upsert(true)))
+                .collect(Collectors.toList()), new BulkWriteOptions().ordered(false));
+        return (int) collection.deleteMany(new Document("$and", Arrays.asList(query,
+                new Document("_id", new Document("$in", messages.stream().map(message -> message.getObjectId("_id")).collect(Collectors.toList()))))))
+                .getDeletedCount();
     }
 
     /**
@@ -165,31 +366,25 @@ final class MongoQueueCore {
         Objects.requireNonNull(query);
 
         //reset stuck messages
-        collection.updateMany(new Document("status", "running").append("resetTimestamp", new Document("$lte", new Date())),
-                new Document("$set", new Document("status", "queued")).append("$inc", new Document("attempt", 1)),
-                new UpdateOptions().upsert(false));
+        reset(resetQuery(new Date()));
 
-        final Calendar calendar = Calendar.getInstance();
-
-        calendar.add(Calendar.SECOND, resetDuration);
-        final Date resetTimestamp = calendar.getTime();
-
-        final Document sort = new Document("priority", 1).append("created", 1);
-        final Document update = new Document("$set", new Document("status", "running").append("resetTimestamp", resetTimestamp).append("progress", 0.0));
-        final Document fields = new Document("payload", 1);
+        final Document update = claimUpdate(resetDuration, worker);
 
         for (int pollAttempt = 0; pollAttempt < pollAttempts; pollAttempt++) {
-            final Document builtQuery = new Document("status", "queued");
-            query.entrySet().forEach((field) -> {
-                builtQuery.append("payload." + field.getKey(), field.getValue());
-            });
-            builtQuery.append("earliestGet", new Document("$lte", new Date()));
-            FindOneAndUpdateOptions opts = new FindOneAndUpdateOptions().sort(sort).upsert(false).returnDocument(ReturnDocument.AFTER).projection(fields);
-            LOG.log(Level.FINE, "Querying: {0}", builtQuery.toJson());
-            final Document message = collection.findOneAndUpdate(builtQuery, update, opts);
+            final Document builtQuery = claimQuery(query, new Date(), worker);
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Querying: {0}", builtQuery.toJson());
+            }
+            final long start = System.nanoTime();
+            final Document message = collection.findOneAndUpdate(builtQuery, update, claimOptions());
+            METRICS.poll(message == null);
             if (message != null) {
-                final ObjectId id = message.getObjectId("_id");
-                return ((Document) message.get("payload")).append("id", id.toHexString());
+                final String type = message.get("payload", Document.class).getString("type");
+                METRICS.histogram(CauldronMetrics.CLAIM_LATENCY, type).recordSince(start);
+                if (message.getDate("created") != null) {
+                    METRICS.histogram(CauldronMetrics.QUEUE_WAIT, type).record((System.currentTimeMillis() - message.getDate("created").getTime()) * 1000L);
+                }
+                return claimed(message);
             }
             try {
                 Thread.sleep(waitDuration);
@@ -200,6 +395,89 @@ final class MongoQueueCore {
         return null;
     }
 
+    /**
+     * Queue again every running message claimed by the workers of a node, as
+     * if their claims had lapsed
+     *
+     * @param node node of the workers, as in worker names node:thread
+     * @return number of messages queued again
+     */
+    public long requeueNode(final String node) {
+        return reset(new Document(NODE, node).append("status", "running"));
+    }
+
+    @Override
+    public void setRetryPolicies(final Function<String, RetryPolicy> policies) {
+        this.retryPolicies = policies;
+    }
+
+    /**
+     * Queue again running messages whose claims have lapsed, after the
+     * backoff of their retry policy, or fail those that have had all their
+     * attempts. Without retry policies they are all queued again in one
+     * update.
+     *
+     * @param query running messages to reset
+     * @return number of messages queued again or failed
+     */
+    private long reset(final Document query) {
+        final Function<String, RetryPolicy> policies = retryPolicies;
+        if (policies == null) {
+            return collection.updateMany(query, RESET_UPDATE, new UpdateOptions().upsert(false)).getModifiedCount();
+        }
+        long reset = 0;
+        for (Document lapsed : collection.find(query).projection(new Document("payload.type", 1).append("attempt", 1))) {
+            final ObjectId id = lapsed.getObjectId("_id");
+            final int attempt = lapsed.getInteger("attempt", 0);
+            final RetryPolicy policy = policies.apply(lapsed.get("payload", Document.class).getString("type"));
+            // Unless claimed again, extended or finished since it was found
+            final Document filter = new Document(query).append("_id", id).append("attempt", attempt);
+            if (policy == null) {
+                reset += collection.updateOne(filter, RESET_UPDATE).getModifiedCount();
+            } else if (policy.canRetry(attempt)) {
+                final Date earliestGet = new Date(System.currentTimeMillis() + policy.getBackoff(attempt));
+                reset += collection.updateOne(filter, retryUpdate(earliestGet)).getModifiedCount();
+            } else {
+                final Document before = collection.findOneAndUpdate(filter, failUpdate(), ackOptions());
+                if (before != null) {
+                    LOG.log(Level.WARNING, "Failing {0} after {1} attempts", new Object[]{id.toHexString(), attempt + 1});
+                    finished(id.toHexString(), "failed", before);
+                    reset++;
+                }
+            }
+        }
+        return reset;
+    }
+
+    /**
+     * Claim with get(), polling a few times before giving up
+     */
+    @Override
+    public Document claim(final Collection<String> types, final int resetDuration, final String worker) {
+        return get(new Document("type", new Document("$in", new ArrayList<>(types))), resetDuration, 1000, 4, worker);
+    }
+
+    @Override
+    public Date nextClaimable(final Collection<String> types) {
+        final Date now = new Date();
+        final Document type = new Document("$in", new ArrayList<>(types));
+        final Document delayed = collection.find(new Document("status", "queued")
+                .append("earliestGet", new Document("$gt", now))
+                .append("payload.type", type))
+                .sort(new Document("earliestGet", 1))
+                .projection(new Document("earliestGet", 1))
+                .first();
+        final Document claimed = collection.find(new Document("status", "running")
+                .append("resetTimestamp", new Document("$gt", now))
+                .append("payload.type", type))
+                .sort(new Document("resetTimestamp", 1))
+                .projection(new Document("resetTimestamp", 1))
+                .first();
+        final Date next = delayed == null ? null : delayed.getDate("earliestGet");
+        final Date lapse = claimed == null ? null : claimed.getDate("resetTimestamp");
+        return next == null || (lapse != null && lapse.before(next)) ? lapse : next;
+    }
+
     /**
      * Count in queue, running true or false
      *
@@ -241,29 +519,181 @@ final class MongoQueueCore {
         return collection.countDocuments(completeQuery);
     }
 
+    /**
+     * Aggregate queue statistics: counts and oldest created date grouped by
+     * type and status, and a base 2 histogram of wait times in milliseconds
+     * for queued messages grouped by type.
+     *
+     * One $group over the {status, payload.type, created} index computes both:
+     * queued messages are also keyed by their wait bucket, which is null for
+     * every other status, and the buckets are folded back into the counts
+     * here.
+     *
+     * @param now time from which wait times are measured. Should not be null
+     * @return document with "counts" and "waits" arrays
+     */
+    @Override
+    public Document stats(final Date now) {
+        Objects.requireNonNull(now);
+
+        final Document wait = new Document("$max", Arrays.asList(new Document("$subtract", Arrays.asList(now, "$created")), 1));
+        final Document bucket = new Document("$cond", Arrays.asList(
+                new Document("$eq", Arrays.asList("$status", "queued")),
+                new Document("$floor", new Document("$log", Arrays.asList(wait, 2))),
+                null));
+        final Map<Document, Document> counts = new LinkedHashMap<>();
+        final List<Document> waits = new ArrayList<>();
+        for (Document group : collection.aggregate(Arrays.asList(
+                new Document("$match", new Document("status", new Document("$in", STATUSES))),
+                new Document("$group", new Document("_id", new Document("type", "$payload.type")
+                        .append("status", "$status")
+                        .append("bucket", bucket))
+                        .append("count", new Document("$sum", 1))
+                        .append("oldest", new Document("$min", "$created")))))
+                .allowDiskUse(true)) {
+            final Document id = group.get("_id", Document.class);
+            final Document key = new Document("type", id.getString("type")).append("status", id.getString("status"));
+            final Number count = (Number) group.get("count");
+            final Date oldest = group.getDate("oldest");
+            counts.merge(key, new Document("_id", key).append("count", count.longValue()).append("oldest", oldest), (total, next) -> {
+                total.put("count", total.getLong("count") + next.getLong("count"));
+                final Date earliest = total.getDate("oldest");
+                if (earliest == null || (oldest != null && oldest.before(earliest))) {
+                    total.put("oldest", oldest);
+                }
+                return total;
+            });
+            if (id.get("bucket") != null) {
+                waits.add(new Document("_id", new Document("type", id.getString("type")).append("bucket", id.get("bucket")))
+                        .append("count", count));
+            }
+        }
+        return new Document("counts", new ArrayList<>(counts.values())).append("waits", waits);
+    }
+
+    /**
+     * Aggregate base 2 histograms in milliseconds of the time messages
+     * finished since a date spent in each phase of their lifecycle, grouped by
+     * type: blocked on parents, queued, claimed before starting, and running
+     *
+     * @param since earliest finished date. Should not be null
+     * @return document with an array of {_id: {type, bucket}, count} per phase
+     */
+    @Override
+    public Document phases(final Date since) {
+        Objects.requireNonNull(since);
+        final Document phases = new Document();
+        final Document facets = new Document();
+        for (String[] phase : new String[][]{
+            {"blocked", "$unblocked", "$created"},
+            {"queued", "$claimed", null},
+            {"starting", "$started", "$claimed"},
+            {"running", "$finished", "$started"}}) {
+            final Object from = phase[2] == null ? new Document("$ifNull", Arrays.asList("$unblocked", "$created")) : phase[2];
+            phases.append(phase[0], new Document("$subtract", Arrays.asList(phase[1], from)));
+            final Document duration = new Document("$max", Arrays.asList("$" + phase[0], 1));
+            facets.append(phase[0], Arrays.asList(
+                    new Document("$match", new Document(phase[0], new Document("$type", "number"))),
+                    new Document("$group", new Document("_id", new Document("type", "$type")
+                            .append("bucket", new Document("$floor", new Document("$log", Arrays.asList(duration, 2)))))
+                            .append("count", new Document("$sum", 1)))));
+        }
+        return collection.aggregate(Arrays.asList(
+                new Document("$match", new Document("finished", new Document("$gte", since))),
+                new Document("$project", phases.append("type", "$payload.type")),
+                new Document("$facet", facets)))
+                .allowDiskUse(true)
+                .first();
+    }
+
     /**
      * Acknowledge a message was processed and remove from queue
      *
      * @param message message received from get(). Should not be null.
      * @param status "completed" or "failed"
      */
+    @Override
     public void ack(final Document message, final String status) {
         Objects.requireNonNull(message);
         final String id = message.getString("id");
+        final long start = System.nanoTime();
+
+        final Document before = collection.findOneAndUpdate(new Document("_id", new ObjectId(id)), ackUpdate(message, status), ackOptions());
+        finished(id, status, before);
+        METRICS.histogram(CauldronMetrics.ACK_LATENCY, message.getString("type")).recordSince(start);
+    }
+
+    /**
+     * Count down the join of a finished message, and release or cancel its
+     * dependents
+     *
+     * @param before the message before it finished, as returned with
+     * ackOptions()
+     */
+    private void finished(final String id, final String status, final Document before) {
+        final ObjectId join = joinToCount(before);
+        if (join != null) {
+            collection.updateOne(new Document("_id", join), JOIN_COUNT_UPDATE);
+        }
+
+        final List<String> acked = Arrays.asList(id);
+        if ("completed".equals(status)) {
+            collection.updateMany(dependentsQuery(PARENTS, acked), releaseUpdate(PARENTS, acked, before, affinityWindow));
+        } else {
+            cancelDependents(acked);
+        }
+        collection.updateMany(dependentsQuery(ANY_PARENTS, acked), releaseUpdate(ANY_PARENTS, acked, before, affinityWindow));
 
-        collection.findOneAndUpdate(new Document("_id", new ObjectId(id)),
-                new Document("$set", new Document("status", status).append("payload", message)));
+        //bump any blocked messages with no parents left onto queue
+        collection.updateMany(UNBLOCK_QUERY, UNBLOCK_UPDATE, new UpdateOptions().upsert(false));
+    }
 
-        // TODO: 2 steps here: use $pull to remove this id from any parent arrays
-        collection.updateMany(new Document(),
-                new Document("$pull", new Document("parent", id)),
-                new UpdateOptions().upsert(false));
-        // Then update any tasks with status "blocked" and an empty parent array to be queued
+    /**
+     * Queue a running message again after it failed, with its payload as
+     * left by the failed attempt
+     *
+     * @param message message received from get(). Should not be null
+     * @param earliestGet earliest instant that a call to get() can return
+     * message. Should not be null
+     */
+    @Override
+    public boolean retry(final Document message, final Date earliestGet) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(earliestGet);
+        final Document payload = new Document(message);
+        payload.remove("id");
+        final Document update = retryUpdate(earliestGet);
+        update.get("$set", Document.class).append("payload", payload);
+        return collection.updateOne(new Document("_id", new ObjectId(message.getString("id"))).append("status", "running"), update)
+                .getModifiedCount() == 1;
+    }
 
-        //bump any blocked messages onto queue or mark as failed
-        collection.updateMany(new Document("status", "blocked").append("'parent.0'", new Document("$exists", false)),
-                new Document("$set", new Document("status", "queued")),
-                new UpdateOptions().upsert(false));
+    /**
+     * Cancel every blocked message that depends on the success of the given
+     * messages, and then those that depend on them in turn, a bounded batch of
+     * ids at a time. Messages that only wait for a cancelled message to finish
+     * are released instead.
+     */
+    private void cancelDependents(final List<String> ids) {
+        List<String> frontier = ids;
+        while (!frontier.isEmpty()) {
+            final List<String> next = new ArrayList<>();
+            for (int i = 0; i < frontier.size(); i += CASCADE_BATCH_SIZE) {
+                final List<String> batch = frontier.subList(i, Math.min(frontier.size(), i + CASCADE_BATCH_SIZE));
+                final List<ObjectId> dependents = collection.find(dependentsQuery(PARENTS, batch).append("status", "blocked"))
+                        .projection(new Document("_id", 1))
+                        .batchSize(CASCADE_BATCH_SIZE)
+                        .map(dependent -> dependent.getObjectId("_id"))
+                        .into(new ArrayList<>());
+                if (!dependents.isEmpty()) {
+                    collection.updateMany(cancelQuery(dependents), cancelUpdate());
+                    final List<String> cancelled = dependents.stream().map(ObjectId::toHexString).collect(Collectors.toList());
+                    collection.updateMany(dependentsQuery(ANY_PARENTS, cancelled), releaseUpdate(ANY_PARENTS, cancelled));
+                    next.addAll(cancelled);
+                }
+            }
+            frontier = next;
+        }
     }
 
     /**
@@ -291,10 +721,10 @@ final class MongoQueueCore {
                 .append("resetTimestamp", new Date(Long.MAX_VALUE))
                 .append("earliestGet", earliestGet)
                 .append("priority", priority)
-                .append("created", new Date()))
-                .append("log", new BsonArray())
+                .append("created", new Date())
                 .append("progress", 0.0)
-                .append("attempt", 0);
+                .append("attempt", 0))
+                .append("$unset", new Document("finished", "").append("unblocked", "").append("claimed", "").append("started", ""));
 
         //using upsert because if no documents found then the doc was removed (SHOULD ONLY HAPPEN BY SOMEONE MANUALLY) so we can just send
         //collection.update(new Document("_id", id), newMessage, true, false);
@@ -311,6 +741,7 @@ final class MongoQueueCore {
      * @param priority priority for order out of get(). 0 is higher priority
      * than 1. Should not be NaN
      */
+    @Override
     public String requeue(final Document message, final Date earliestGet, final double priority) {
         Objects.requireNonNull(message);
         Objects.requireNonNull(earliestGet);
@@ -337,75 +768,682 @@ final class MongoQueueCore {
      * @return hex string of the message id
      */
     public String send(final Document payload, final Date earliestGet, final double priority, final List<String> parents) {
+        return send(payload, earliestGet, priority, parents, null);
+    }
+
+    /**
+     * Send message to queue, unless a message with the same deduplication key
+     * has already been sent
+     *
+     * @param payload payload. Should not be null
+     * @param earliestGet earliest instant that a call to Get() can return
+     * message. Should not be null
+     * @param priority priority for order out of Get(). 0 is higher priority
+     * than 1. Should not be NaN
+     * @param parents ids of messages that must be acknowledged first
+     * @param key deduplication key, or null
+     * @return hex string of the message id, or of the existing message with
+     * the same key
+     */
+    @Override
+    public String send(final Document payload, final Date earliestGet, final double priority, final List<String> parents, final String key) {
         Objects.requireNonNull(payload);
         Objects.requireNonNull(earliestGet);
         if (Double.isNaN(priority)) {
             throw new IllegalArgumentException("priority was NaN");
         }
-        final Document message = new Document("payload", payload)
-                .append("status", parents.isEmpty() ? "queued" : "blocked")
-                .append("resetTimestamp", Date.from(Instant.now().plusSeconds(3600)))
-                .append("earliestGet", earliestGet)
-                .append("parents", parents)
-                .append("priority", priority)
-                .append("created", new Date())
-                .append("log", new BsonArray())
-                .append("progress", 0.0)
-                .append("attempt", 0);
-        LOG.log(Level.INFO, "Inserting: {0}", message.toJson());
-        collection.insertOne(message);
+        final Document message = message(payload, earliestGet, priority, parents);
+        if (key != null) {
+            message.append("dedupKey", key);
+        }
+        if (LOG.isLoggable(Level.FINEST)) {
+            LOG.log(Level.FINEST, "Inserting: {0}", message.toJson());
+        }
+        if (key == null) {
+            collection.insertOne(message);
+            return message.getObjectId("_id").toHexString();
+        }
+        final String archived = findArchivedByKeys(Arrays.asList(key)).get(key);
+        return archived != null ? archived : insertKeyed(message);
+    }
+
+    /**
+     * Insert a message with a deduplication key, or return the id of the
+     * message that holds the key
+     */
+    private String insertKeyed(final Document message) {
+        final String key = message.getString("dedupKey");
+        try {
+            collection.insertOne(message);
+        } catch (MongoWriteException ex) {
+            if (ex.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw ex;
+            }
+            final String existing = findByKeys(Arrays.asList(key)).get(key);
+            if (existing != null) {
+                return existing;
+            }
+            // Removed since, so the key is free again: insert once more, failing if it is taken again
+            collection.insertOne(message);
+        }
         return message.getObjectId("_id").toHexString();
     }
 
     public List<String> sendMulti(final List<Document> payloads, final Date earliestGet, final double priority) {
+        return sendMulti(payloads, null, earliestGet, priority);
+    }
+
+    /**
+     * Send messages to queue in one round trip. Messages whose deduplication
+     * key has already been sent are not inserted again.
+     *
+     * @param payloads payloads. Should not be null
+     * @param keys deduplication keys in the same order as the payloads, with
+     * null for messages without a key, or null if none have keys
+     * @param earliestGet earliest instant that a call to Get() can return
+     * message. Should not be null
+     * @param priority priority for order out of Get(). 0 is higher priority
+     * than 1. Should not be NaN
+     * @return hex strings of the message ids, in the same order as the
+     * payloads, using the existing message id for duplicate keys
+     */
+    @Override
+    public List<String> sendMulti(final List<Document> payloads, final List<String> keys, final Date earliestGet, final double priority) {
         Objects.requireNonNull(payloads);
         Objects.requireNonNull(earliestGet);
         if (Double.isNaN(priority)) {
             throw new IllegalArgumentException("priority was NaN");
         }
+        if (keys != null && keys.size() != payloads.size()) {
+            throw new IllegalArgumentException("keys must be the same size as payloads");
+        }
         if (payloads.isEmpty()) {
             return Arrays.asList();
         }
-        List<Document> messages = payloads.stream().map(payload -> {
-            final Document message = new Document("payload", payload)
-                    .append("status", "queued")
-                    .append("resetTimestamp", Date.from(Instant.now().plusSeconds(3600)))
-                    .append("earliestGet", earliestGet)
-                    .append("priority", priority)
-                    .append("created", new Date())
-                    .append("log", new BsonArray())
-                    .append("progress", 0.0)
-                    .append("attempt", 0);
-            LOG.log(Level.INFO, "Inserting: {0}", message.toJson());
-            return message;
-        }).collect(Collectors.toList());
-        collection.insertMany(messages);
-        return messages.stream().map(message -> message.getObjectId("_id").toHexString()).collect(Collectors.toList());
-    }
-
-    public void progress(String id, Collection<String> log, double progress, int resetDuration, String worker) {
+        final List<Document> messages = new ArrayList<>(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            final Document message = message(payloads.get(i), earliestGet, priority, Arrays.asList());
+            if (keys != null && keys.get(i) != null) {
+                message.append("dedupKey", keys.get(i));
+            }
+            messages.add(message);
+        }
+        return sendMessages(messages);
+    }
+
+    /**
+     * Insert messages built with message() in one round trip. Messages whose
+     * deduplication key has already been sent, including messages since
+     * archived, are not inserted again.
+     *
+     * @param messages messages. Should not be null
+     * @return hex strings of the message ids, in the same order as the
+     * messages, using the existing message id for duplicate keys
+     */
+    @Override
+    public List<String> sendMessages(final List<Document> messages) {
+        Objects.requireNonNull(messages);
+        if (messages.isEmpty()) {
+            return Arrays.asList();
+        }
+        if (LOG.isLoggable(Level.FINEST)) {
+            messages.forEach(message -> LOG.log(Level.FINEST, "Inserting: {0}", message.toJson()));
+        }
+        final List<String> ids = messages.stream().map(message -> message.getObjectId("_id").toHexString()).collect(Collectors.toList());
+        final Map<String, String> archived = findArchivedByKeys(messages.stream()
+                .map(message -> message.getString("dedupKey"))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()));
+        // Positions in messages of those still to insert
+        final List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            final String key = messages.get(i).getString("dedupKey");
+            if (key != null && archived.containsKey(key)) {
+                ids.set(i, archived.get(key));
+            } else {
+                indices.add(i);
+            }
+        }
+        if (indices.isEmpty()) {
+            return ids;
+        }
+        final List<Document> inserts = indices.stream().map(messages::get).collect(Collectors.toList());
+        try {
+            collection.insertMany(inserts, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException ex) {
+            final Map<Integer, String> duplicates = new HashMap<>();
+            for (BulkWriteError error : ex.getWriteErrors()) {
+                final String key = inserts.get(error.getIndex()).getString("dedupKey");
+                if (key == null || error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw ex;
+                }
+                duplicates.put(indices.get(error.getIndex()), key);
+            }
+            final Map<String, String> existing = findByKeys(duplicates.values());
+            // A message holding the key may have gone since, so insert those again one at a time
+            duplicates.forEach((index, key) -> ids.set(index, existing.containsKey(key) ? existing.get(key) : insertKeyed(messages.get(index))));
+        }
+        return ids;
+    }
+
+    /**
+     * Insert messages built with message() so that none can be claimed until
+     * all have been inserted.
+     *
+     * Messages are inserted blocked and marked as staged, which keeps them out
+     * of claims and unblocking. Once all are in, those with parents are
+     * released as blocked, then the rest are queued, so a message can only
+     * start once every message that depends on it exists. If the insert
+     * fails, the messages that were inserted are removed again.
+     *
+     * @param messages messages. Should not be null
+     * @return hex strings of the message ids, in the same order as the
+     * messages
+     */
+    @Override
+    public List<String> sendStaged(final List<Document> messages) {
+        Objects.requireNonNull(messages);
+        final ObjectId stage = new ObjectId();
+        // Messages inserted already finished, such as those cancelled by a failed parent, need no staging
+        messages.stream()
+                .filter(message -> "queued".equals(message.getString("status")) || "blocked".equals(message.getString("status")))
+                .forEach(message -> message.append("status", "blocked").append("staged", stage));
+        final List<String> ids;
+        try {
+            ids = sendMessages(messages);
+        } catch (RuntimeException ex) {
+            collection.deleteMany(new Document("staged", stage));
+            throw ex;
+        }
+        // Release blocked messages first, so that a parent which finishes in between still unblocks them
+        collection.updateMany(new Document("staged", stage).append("status", "blocked").append("$or", Arrays.asList(
+                new Document(PARENTS + ".0", new Document("$exists", true)),
+                new Document(ANY_PARENTS + ".0", new Document("$exists", true)))),
+                new Document("$unset", new Document("staged", "")));
+        collection.updateMany(new Document("staged", stage).append("status", "blocked"),
+                new Document("$set", new Document("status", "queued")).append("$unset", new Document("staged", "")));
+        return ids;
+    }
+
+    /**
+     * Send children of a running message, and a join message that is queued
+     * once the running message has completed and every child has been
+     * acknowledged. The join is counted down by each child as it is
+     * acknowledged, rather than listing every child as a parent.
+     *
+     * @param parent id of the running message. Should not be null
+     * @param children payloads of the children. Should not be null
+     * @param join payload of the join. Should not be null
+     * @param priority priority of the children and join
+     * @return hex string of the join message id
+     */
+    @Override
+    public String fork(final String parent, final List<Document> children, final Document join, final double priority) {
+        Objects.requireNonNull(parent);
+        Objects.requireNonNull(children);
+        Objects.requireNonNull(join);
+        final Date now = new Date();
+        final Document joinMessage = message(join, now, priority, Arrays.asList(parent)).append(PENDING, children.size());
+        final List<Document> messages = new ArrayList<>(children.size() + 1);
+        messages.add(joinMessage);
+        children.forEach(child -> messages.add(message(child, now, priority, Arrays.asList()).append(JOIN, joinMessage.getObjectId("_id"))));
+        // Staged so that no child can be counted before the join exists
+        return sendStaged(messages).get(0);
+    }
+
+    /**
+     * Children already moved to the archive are read from there, merged in
+     * order with those still in the queue
+     */
+    @Override
+    public Iterable<Document> joined(final String join, final int batchSize) {
+        final Document query = new Document(JOIN, new ObjectId(join)).append("status", "completed");
+        return () -> merge(
+                collection.find(query).projection(new Document("payload", 1)).sort(new Document("_id", 1)).batchSize(batchSize).iterator(),
+                archive.find(query).projection(new Document("payload", 1)).sort(new Document("_id", 1)).batchSize(batchSize).iterator());
+    }
+
+    /**
+     * Merge two iterators of messages sorted by id, taking a message in both,
+     * as while it is being archived, once
+     */
+    static Iterator<Document> merge(final Iterator<Document> first, final Iterator<Document> second) {
+        return new Iterator<Document>() {
+            private Document a = first.hasNext() ? first.next() : null;
+            private Document b = second.hasNext() ? second.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return a != null || b != null;
+            }
+
+            @Override
+            public Document next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int order = a == null ? 1 : b == null ? -1 : a.getObjectId("_id").compareTo(b.getObjectId("_id"));
+                final Document next = order <= 0 ? a : b;
+                if (order <= 0) {
+                    a = first.hasNext() ? first.next() : null;
+                }
+                if (order >= 0) {
+                    b = second.hasNext() ? second.next() : null;
+                }
+                return next;
+            }
+        };
+    }
+
+    /**
+     * Find the ids of messages with the given deduplication keys, in the
+     * queue or else in the archive
+     */
+    private Map<String, String> findByKeys(final Collection<String> keys) {
+        final Map<String, String> ids = findByKeys(collection, keys);
+        if (ids.size() < new HashSet<>(keys).size()) {
+            final List<String> missing = keys.stream().filter(key -> !ids.containsKey(key)).collect(Collectors.toList());
+            ids.putAll(findArchivedByKeys(missing));
+        }
+        return ids;
+    }
+
+    /**
+     * Find the ids of archived messages with the given deduplication keys, as
+     * their keys stay taken once they leave the queue
+     */
+    private Map<String, String> findArchivedByKeys(final Collection<String> keys) {
+        return keys.isEmpty() ? new HashMap<>() : findByKeys(archive, keys);
+    }
+
+    private static Map<String, String> findByKeys(final MongoCollection<Document> collection, final Collection<String> keys) {
+        final Map<String, String> ids = new HashMap<>();
+        collection.find(new Document("dedupKey", new Document("$in", new ArrayList<>(new HashSet<>(keys)))))
+                .projection(new Document("dedupKey", 1))
+                .forEach((Consumer<Document>) message -> ids.put(message.getString("dedupKey"), message.getObjectId("_id").toHexString()));
+        return ids;
+    }
+
+    /**
+     * Record progress of a running message and extend its reset timestamp.
+     * Nothing is written once the message is no longer running for the worker,
+     * so a worker whose claim lapsed cannot revive a message that has been
+     * reset, claimed by another worker, or finished.
+     *
+     * @param id message id
+     * @param progress progress between 0 and 1, or negative to leave unchanged
+     * @param resetDuration duration in seconds before this message is
+     * considered abandoned
+     * @param worker name of the worker running the message
+     */
+    @Override
+    public void progress(String id, double progress, int resetDuration, String worker) {
+        collection.updateOne(progressQuery(id, worker), progressUpdate(progress, resetDuration));
+    }
+
+    @Override
+    public Document find(final String id, final Document projection) {
+        return collection.find(new Document("_id", new ObjectId(id))).projection(projection).first();
+    }
+
+    /**
+     * Messages are looked for in the archive only if they are not all in the
+     * queue
+     */
+    @Override
+    public List<Document> findAll(final Collection<String> ids, final Document projection) {
+        final List<Document> messages = collection.find(idsQuery(ids)).projection(projection).into(new ArrayList<>());
+        if (messages.size() < ids.size()) {
+            final Set<String> found = messages.stream().map(message -> message.getObjectId("_id").toHexString()).collect(Collectors.toSet());
+            final List<String> missing = ids.stream().filter(id -> !found.contains(id)).collect(Collectors.toList());
+            archive.find(idsQuery(missing)).projection(projection).into(messages);
+        }
+        return messages;
+    }
+
+    private static Document idsQuery(final Collection<String> ids) {
+        final BsonArray idArray = new BsonArray(ids.stream().map(id -> new BsonObjectId(new ObjectId(id))).collect(Collectors.toList()));
+        return new Document("_id", new Document("$in", idArray));
+    }
+
+    /**
+     * Streams from a server cursor, fetching a batch at a time
+     */
+    @Override
+    public Iterable<Document> list(final TaskQuery query, final Document projection) {
+        return collection.find(query.toFilter())
+                .sort(query.toSort())
+                .limit(query.getLimit())
+                .batchSize(query.getBatchSize())
+                .projection(projection);
+    }
+
+    @Override
+    public Iterable<Document> findGroup(final String group, final Document projection) {
+        return collection.find(new Document(GROUP, new ObjectId(group)))
+                .projection(projection)
+                .batchSize(1000);
+    }
+
+    /**
+     * Computed by one aggregation over the group, using its index
+     */
+    @Override
+    public Document groupProgress(final String group) {
+        return collection.aggregate(Arrays.asList(
+                new Document("$match", new Document(GROUP, new ObjectId(group))),
+                new Document("$group", new Document("_id", null)
+                        .append("count", new Document("$sum", 1))
+                        .append("progress", new Document("$sum", new Document("$cond", Arrays.asList(
+                                new Document("$in", Arrays.asList("$status", Arrays.asList(
+                                        CauldronStatus.Completed.toString(),
+                                        CauldronStatus.Failed.toString(),
+                                        CauldronStatus.Cancelled.toString()))),
+                                1.0,
+                                new Document("$ifNull", Arrays.asList("$progress", 0.0)))))))))
+                .first();
+    }
+
+    /**
+     * Expired messages are deleted by a TTL index, archived messages are moved
+     * to the archive collection periodically
+     */
+    @Override
+    public void setRetentionPolicy(final RetentionPolicy policy) {
+        retention.apply(policy);
+    }
+
+    @Override
+    public void appendLog(final String id, final Collection<String> lines) {
+        logs.append(id, lines);
+    }
+
+    @Override
+    public List<String> readLog(final String id, final int offset, final int limit) {
+        return logs.read(id, offset, limit);
+    }
+
+    @Override
+    public Iterable<String> streamLog(final String id) {
+        return logs.stream(id);
+    }
+
+    @Override
+    public AutoCloseable followLog(final String id, final Consumer<String> consumer) {
+        return logs.follow(id, consumer);
+    }
+
+    /**
+     * Follow changes through a change stream, opened before returning and read
+     * on a thread of its own
+     */
+    @Override
+    public AutoCloseable watch(final ChangeListener listener) {
+        final MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = collection.watch().cursor();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(() -> cursor.forEachRemaining(change -> changed(change, listener)));
+        return () -> {
+            executor.shutdownNow();
+            cursor.close();
+        };
+    }
+
+    /**
+     * Pass a change to a listener if it sets the status of a message
+     */
+    @SuppressWarnings("null")
+    static void changed(final ChangeStreamDocument<Document> change, final ChangeListener listener) {
+        if (change.getDocumentKey() != null && change.getDocumentKey().containsKey("_id")) {
+            final String id = change.getDocumentKey().getObjectId("_id").getValue().toHexString();
+            switch (change.getOperationType()) {
+                case INSERT:
+                    if (change.getFullDocument() != null && change.getFullDocument().containsKey("status")) {
+                        final Document payload = change.getFullDocument().containsKey("payload")
+                                ? bsonToDocument(change.getFullDocument().toBsonDocument().getDocument("payload"))
+                                : null;
+                        listener.changed(id, change.getFullDocument().getString("status"), payload);
+                    }
+                    break;
+                case UPDATE:
+                    if (change.getUpdateDescription().getUpdatedFields() != null && change.getUpdateDescription().getUpdatedFields().containsKey("status")) {
+                        final Document payload = change.getUpdateDescription().getUpdatedFields().containsKey("payload")
+                                ? bsonToDocument(change.getUpdateDescription().getUpdatedFields().getDocument("payload"))
+                                : null;
+                        listener.changed(id, change.getUpdateDescription().getUpdatedFields().getString("status").getValue(), payload);
+                    }
+                    break;
+                default:
+                // do nothing
+            }
+        }
+    }
+
+    static Document bsonToDocument(final BsonDocument bsonDocument) {
+        final DocumentCodec codec = new DocumentCodec();
+        final DecoderContext decoderContext = DecoderContext.builder().build();
+        return codec.decode(new BsonDocumentReader(bsonDocument), decoderContext);
+    }
+
+    MongoCollection<Document> getCollection() {
+        return collection;
+    }
+
+    // Queries and updates shared with AsyncQueueCore, so that both clients treat messages identically
+    static final Document RESET_UPDATE = new Document("$set", new Document("status", "queued")).append("$inc", new Document("attempt", 1));
+    static final String PARENTS = "parents";
+    static final String ANY_PARENTS = "anyParents";
+    static final String JOIN = "join";
+    static final String PENDING = "pending";
+    static final String GROUP = "group";
+    static final String PREFERRED = "preferred";
+    static final String NODE = "node";
+    static final String PREFERRED_UNTIL = "preferredUntil";
+    static final long DEFAULT_AFFINITY_WINDOW = 5000;
+    static final int CASCADE_BATCH_SIZE = 1000;
+    static final Document JOIN_COUNT_UPDATE = new Document("$inc", new Document(PENDING, -1));
+    static final Document UNBLOCK_QUERY = new Document("status", "blocked")
+            .append(PARENTS + ".0", new Document("$exists", false))
+            .append(ANY_PARENTS + ".0", new Document("$exists", false))
+            .append(PENDING, new Document("$not", new Document("$gt", 0)))
+            .append("staged", new Document("$exists", false));
+    static final Document UNBLOCK_UPDATE = new Document("$set", new Document("status", "queued"))
+            .append("$currentDate", new Document("unblocked", true));
+
+    static Date resetTimestamp(int resetDuration) {
         final Calendar calendar = Calendar.getInstance();
         calendar.add(Calendar.SECOND, resetDuration);
-        final Date resetTimestamp = calendar.getTime();
-        Document setters = new Document("status", "running").append("resetTimestamp", resetTimestamp).append("worker", worker);
+        return calendar.getTime();
+    }
+
+    static Document message(final Document payload, final Date earliestGet, final double priority, final List<String> parents) {
+        return message(payload, earliestGet, priority, parents, Collections.emptyList());
+    }
+
+    /**
+     * @param parents ids of messages that must complete first, else this
+     * message is cancelled
+     * @param anyParents ids of messages that must finish first, whatever their
+     * status
+     */
+    static Document message(final Document payload, final Date earliestGet, final double priority, final List<String> parents, final List<String> anyParents) {
+        final Document message = new Document("_id", new ObjectId())
+                .append("payload", payload)
+                .append("status", parents.isEmpty() && anyParents.isEmpty() ? "queued" : "blocked")
+                .append("resetTimestamp", Date.from(Instant.now().plusSeconds(3600)))
+                .append("earliestGet", earliestGet)
+                .append(PARENTS, parents)
+                .append("priority", priority)
+                .append("created", new Date())
+                .append("progress", 0.0)
+                .append("attempt", 0);
+        if (!anyParents.isEmpty()) {
+            message.append(ANY_PARENTS, anyParents);
+        }
+        return message;
+    }
+
+    static Document resetQuery(final Date now) {
+        return new Document("status", "running").append("resetTimestamp", new Document("$lte", now));
+    }
+
+    /**
+     * Claim query that also skips messages reserved for the node of another
+     * worker
+     *
+     * @param worker name of the claiming worker, or null
+     */
+    static Document claimQuery(final Document query, final Date now, final String worker) {
+        final List<Document> claimable = new ArrayList<>(Arrays.asList(
+                new Document(PREFERRED_UNTIL, new Document("$exists", false)),
+                new Document(PREFERRED_UNTIL, new Document("$lte", now))));
+        if (worker != null) {
+            claimable.add(new Document(PREFERRED, node(worker)));
+        }
+        return claimQuery(query, now).append("$or", claimable);
+    }
+
+    /**
+     * Node of a worker, from worker names of the form node:thread
+     */
+    static String node(final String worker) {
+        final int separator = worker.lastIndexOf(':');
+        return separator < 0 ? worker : worker.substring(0, separator);
+    }
+
+    static Document claimQuery(final Document query, final Date now) {
+        final Document builtQuery = new Document("status", "queued");
+        query.entrySet().forEach((field) -> {
+            builtQuery.append("payload." + field.getKey(), field.getValue());
+        });
+        builtQuery.append("earliestGet", new Document("$lte", now));
+        return builtQuery;
+    }
+
+    /**
+     * Claim a message for a worker, recording when and by whom. It is started
+     * again by the first progress written by the worker.
+     */
+    static Document claimUpdate(final int resetDuration, final String worker) {
+        final Document setters = new Document("status", "running").append("resetTimestamp", resetTimestamp(resetDuration)).append("progress", 0.0)
+                .append("claimed", new Date());
+        if (worker != null) {
+            setters.append("worker", worker).append(NODE, node(worker));
+        }
+        return new Document("$set", setters).append("$unset", new Document("started", ""));
+    }
+
+    static FindOneAndUpdateOptions claimOptions() {
+        return new FindOneAndUpdateOptions()
+                .sort(new Document("priority", 1).append("created", 1))
+                .upsert(false)
+                .returnDocument(ReturnDocument.AFTER)
+                .projection(new Document("payload", 1).append("created", 1));
+    }
+
+    static Document claimed(final Document message) {
+        final ObjectId id = message.getObjectId("_id");
+        return ((Document) message.get("payload")).append("id", id.toHexString());
+    }
+
+    static Document ackUpdate(final Document message, final String status) {
+        return new Document("$set", new Document("status", status).append("payload", message).append("finished", new Date()));
+    }
+
+    static FindOneAndUpdateOptions ackOptions() {
+        return new FindOneAndUpdateOptions()
+                .returnDocument(ReturnDocument.BEFORE)
+                .projection(new Document("status", 1).append(JOIN, 1).append("worker", 1));
+    }
+
+    /**
+     * The join to count down for an acknowledged message, only on its first
+     * acknowledgement so that a message run twice is counted once
+     */
+    static ObjectId joinToCount(final Document before) {
+        if (before == null || !before.containsKey(JOIN)) {
+            return null;
+        }
+        final String status = before.getString("status");
+        return "completed".equals(status) || "failed".equals(status) || "cancelled".equals(status)
+                ? null
+                : before.getObjectId(JOIN);
+    }
+
+    static Document dependentsQuery(final String field, final List<String> ids) {
+        return new Document(field, ids.size() == 1 ? ids.get(0) : new Document("$in", ids));
+    }
+
+    static Document releaseUpdate(final String field, final List<String> ids) {
+        return new Document("$pull", new Document(field, new Document("$in", ids)));
+    }
+
+    /**
+     * Release dependents of an acknowledged message, reserving them for the
+     * node of the worker that ran it for the affinity window
+     *
+     * @param before the acknowledged message, as returned with ackOptions()
+     */
+    static Document releaseUpdate(final String field, final List<String> ids, final Document before, final long affinityWindow) {
+        final Document update = releaseUpdate(field, ids);
+        if (affinityWindow > 0 && before != null && before.getString("worker") != null) {
+            update.append("$set", new Document(PREFERRED, node(before.getString("worker")))
+                    .append(PREFERRED_UNTIL, new Date(System.currentTimeMillis() + affinityWindow)));
+        }
+        return update;
+    }
+
+    static Document cancelQuery(final List<ObjectId> ids) {
+        return new Document("_id", new Document("$in", ids)).append("status", "blocked");
+    }
+
+    static Document cancelUpdate() {
+        return new Document("$set", new Document("status", "cancelled").append("finished", new Date()));
+    }
+
+    /**
+     * Queue a message again once its backoff has passed, counting the attempt
+     */
+    static Document retryUpdate(final Date earliestGet) {
+        return new Document("$set", new Document("status", "queued").append("earliestGet", earliestGet))
+                .append("$inc", new Document("attempt", 1));
+    }
+
+    static Document failUpdate() {
+        return new Document("$set", new Document("status", "failed").append("finished", new Date()));
+    }
+
+    /**
+     * The message, while running for the worker, or for any worker when the
+     * worker is null as for claims made without one
+     */
+    static Document progressQuery(final String id, final String worker) {
+        final Document query = new Document("_id", new ObjectId(id)).append("status", "running");
+        if (worker != null) {
+            query.append("worker", worker);
+        }
+        return query;
+    }
+
+    static Document progressUpdate(final double progress, final int resetDuration) {
+        Document setters = new Document("resetTimestamp", resetTimestamp(resetDuration));
         if (progress >= 0.0) {
             setters.append("progress", progress);
         }
-        Document update = new Document("$set", setters);
-        if (!log.isEmpty()) {
-            update.append("$push", new Document("log", new Document("$each", new BsonArray(log.stream().filter(s -> s != null && !s.trim().isEmpty()).map((s) -> new BsonString(s.trim())).collect(Collectors.toList())))));
-        }
-        collection.findOneAndUpdate(Filters.eq("_id", new ObjectId(id)), update);
+        return new Document("$set", setters).append("$min", new Document("started", new Date()));
     }
 
     private void ensureIndex(final Document index) {
+        ensureIndex(index, new IndexOptions());
+    }
+
+    private void ensureIndex(final Document index, final IndexOptions options) {
         for (int i = 0; i < 5; ++i) {
             for (String name = UUID.randomUUID().toString(); name.length() > 0; name = name.substring(0, name.length() - 1)) {
                 //creating an index with the same name and different spec does nothing.
                 //creating an index with different name and same spec does nothing.
                 //so we use any generated name, and then find the right spec after we have called, and just go with that name.
 
-                IndexOptions iOpts = new IndexOptions().background(true).name(name);
+                IndexOptions iOpts = options.background(true).name(name);
                 for (final Document existingIndex : collection.listIndexes()) {
 
                     if (existingIndex.get("key").equals(index)) {
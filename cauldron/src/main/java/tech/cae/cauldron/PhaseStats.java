@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.bson.Document;
+
+/**
+ * Time spent by finished tasks in each phase of their lifecycle, by type,
+ * computed by a single aggregation over the queue collection.
+ *
+ * Durations are held as base 2 histograms in milliseconds, as in QueueStats,
+ * so percentiles are accurate to within a factor of two.
+ *
+ * @author peter
+ */
+public class PhaseStats {
+
+    public enum Phase {
+        /**
+         * From creation until the last parent finished, for tasks with parents
+         */
+        Blocked("blocked"),
+        /**
+         * From being queued until claimed
+         */
+        Queued("queued"),
+        /**
+         * From being claimed until the worker started it
+         */
+        Starting("starting"),
+        /**
+         * From being started until finished
+         */
+        Running("running");
+
+        final String field;
+
+        Phase(String field) {
+            this.field = field;
+        }
+    }
+
+    private final Date timestamp;
+    private final Map<Phase, Map<String, TreeMap<Integer, Long>>> histograms;
+
+    PhaseStats(Date timestamp) {
+        this.timestamp = timestamp;
+        this.histograms = new EnumMap<>(Phase.class);
+    }
+
+    static PhaseStats fromAggregation(Date timestamp, Document result) {
+        PhaseStats stats = new PhaseStats(timestamp);
+        if (result == null) {
+            return stats;
+        }
+        for (Phase phase : Phase.values()) {
+            Map<String, TreeMap<Integer, Long>> byType = new HashMap<>();
+            for (Document group : result.getList(phase.field, Document.class, Collections.emptyList())) {
+                Document id = group.get("_id", Document.class);
+                byType.computeIfAbsent(id.getString("type"), t -> new TreeMap<>())
+                        .merge(((Number) id.get("bucket")).intValue(), ((Number) group.get("count")).longValue(), Long::sum);
+            }
+            stats.histograms.put(phase, byType);
+        }
+        return stats;
+    }
+
+    /**
+     * Time at which the statistics were computed
+     *
+     * @return
+     */
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public Set<String> getTypes() {
+        Set<String> types = new HashSet<>();
+        histograms.values().forEach(byType -> types.addAll(byType.keySet()));
+        return types;
+    }
+
+    public long getCount(Phase phase, String type) {
+        return histogram(phase, type).values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Duration in milliseconds of a phase at the given percentile, over all
+     * types
+     *
+     * @param phase
+     * @param percentile between 0 and 100, e.g. 50 or 95
+     * @return upper bound of the histogram bucket containing the percentile, or
+     * 0 if no task went through the phase
+     */
+    public long getPercentile(Phase phase, double percentile) {
+        TreeMap<Integer, Long> all = new TreeMap<>();
+        histograms.getOrDefault(phase, Collections.emptyMap()).values()
+                .forEach(histogram -> histogram.forEach((bucket, count) -> all.merge(bucket, count, Long::sum)));
+        return QueueStats.percentile(all, percentile);
+    }
+
+    public long getPercentile(Phase phase, String type, double percentile) {
+        return QueueStats.percentile(histogram(phase, type), percentile);
+    }
+
+    private TreeMap<Integer, Long> histogram(Phase phase, String type) {
+        return histograms.getOrDefault(phase, Collections.emptyMap()).getOrDefault(type, new TreeMap<>());
+    }
+}
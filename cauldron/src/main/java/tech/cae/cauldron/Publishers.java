@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Adapters from reactive streams publishers returned by the async driver to
+ * CompletableFutures.
+ *
+ * @author peter
+ */
+final class Publishers {
+
+    private Publishers() {
+    }
+
+    /**
+     * Complete with the first item published, or null if none
+     */
+    static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        publisher.subscribe(new Subscriber<T>() {
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                this.subscription = s;
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(T item) {
+                future.complete(item);
+                subscription.cancel();
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                future.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Complete with all items published
+     */
+    static <T> CompletableFuture<List<T>> toList(Publisher<T> publisher) {
+        CompletableFuture<List<T>> future = new CompletableFuture<>();
+        publisher.subscribe(new Subscriber<T>() {
+            private final List<T> items = new ArrayList<>();
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(T item) {
+                items.add(item);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                future.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(items);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Complete when the publisher completes, ignoring any items
+     */
+    static CompletableFuture<Void> done(Publisher<?> publisher) {
+        return toList(publisher).thenApply(items -> null);
+    }
+
+    /**
+     * Apply a function to each item published, passing demand and
+     * cancellation through to the source
+     */
+    static <T, R> Publisher<R> map(Publisher<T> publisher, Function<? super T, ? extends R> function) {
+        return subscriber -> publisher.subscribe(new Subscriber<T>() {
+            private Subscription subscription;
+            private boolean failed = false;
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                this.subscription = s;
+                subscriber.onSubscribe(s);
+            }
+
+            @Override
+            public void onNext(T item) {
+                if (failed) {
+                    return;
+                }
+                R mapped;
+                try {
+                    mapped = function.apply(item);
+                } catch (RuntimeException ex) {
+                    failed = true;
+                    subscription.cancel();
+                    subscriber.onError(ex);
+                    return;
+                }
+                subscriber.onNext(mapped);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                if (!failed) {
+                    subscriber.onError(error);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                if (!failed) {
+                    subscriber.onComplete();
+                }
+            }
+        });
+    }
+}
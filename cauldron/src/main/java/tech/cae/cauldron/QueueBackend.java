@@ -0,0 +1,343 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.bson.Document;
+
+/**
+ * Storage and hand-off of queued tasks, behind Cauldron, its Distributor and
+ * its change monitor.
+ *
+ * Tasks are passed as serialized payload documents. Messages returned by
+ * find() have the layout of the MongoDB queue collection: _id, payload,
+ * status ("blocked", "queued", "running", "completed", "failed" or
+ * "cancelled"), priority, progress, created, attempt and the lifecycle dates
+ * unblocked, claimed, started and finished. Ids are ObjectId hex strings.
+ *
+ * Finished tasks may be archived by a retention policy, after which they are
+ * still found by id but no longer listed or counted.
+ *
+ * The MongoDB backend is used unless another is given to
+ * {@link Cauldron#Cauldron(QueueBackend)}; {@link InMemoryQueueBackend} keeps
+ * everything in the heap of a single process.
+ *
+ * @author peter
+ */
+public interface QueueBackend {
+
+    /**
+     * Send a task, unless one with the same deduplication key has been sent
+     *
+     * @param payload serialized task
+     * @param earliestGet earliest time it can be claimed
+     * @param priority lower values are claimed first
+     * @param parents ids of tasks that must complete first, else it is
+     * cancelled
+     * @param key deduplication key, or null
+     * @return id of the task, or of the existing task with the same key
+     */
+    String send(Document payload, Date earliestGet, double priority, List<String> parents, String key);
+
+    /**
+     * Send several tasks at once
+     *
+     * @param payloads serialized tasks
+     * @param keys deduplication keys in the same order, with nulls, or null if
+     * none have keys
+     * @param earliestGet earliest time they can be claimed
+     * @param priority lower values are claimed first
+     * @return ids in the same order as the payloads
+     */
+    List<String> sendMulti(List<Document> payloads, List<String> keys, Date earliestGet, double priority);
+
+    /**
+     * Send messages built with MongoQueueCore.message(), each with its own
+     * claim time and priority, skipping those whose "dedupKey" has been sent
+     *
+     * @param messages messages with their ids in "_id"
+     * @return ids in the same order as the messages, that of the existing
+     * task for a duplicate key
+     */
+    List<String> sendMessages(List<Document> messages);
+
+    /**
+     * Send messages built with MongoQueueCore.message() so that none can be
+     * claimed until all have been sent, and none is left behind if sending
+     * fails. Messages with the status cancelled are sent already finished.
+     *
+     * @param messages messages with their ids in "_id", each after the
+     * messages it names as parents
+     * @return ids in the same order as the messages
+     */
+    List<String> sendStaged(List<Document> messages);
+
+    /**
+     * Queue a task again now, whatever its status, with its attempts counted
+     * from 0 and its lifecycle dates cleared. An archived task is brought
+     * back to the queue.
+     *
+     * @param message serialized task with its id in "id"
+     * @param earliestGet earliest time it can be claimed
+     * @param priority lower values are claimed first
+     * @return id of the task
+     */
+    String requeue(Document message, Date earliestGet, double priority);
+
+    /**
+     * Send children of a running task, and a join task that is queued once
+     * the running task has completed and every child has finished, whatever
+     * its status. The join is cancelled if the running task does not
+     * complete.
+     *
+     * @param parent id of the running task
+     * @param children serialized children
+     * @param join serialized join task
+     * @param priority priority of the children and join
+     * @return id of the join task
+     */
+    String fork(String parent, List<Document> children, Document join, double priority);
+
+    /**
+     * The completed children of a join task, archived or not, in the order
+     * they were forked
+     *
+     * @param join id of the join task
+     * @param batchSize number of children a backend may fetch at once
+     * @return messages with at least _id and payload
+     */
+    Iterable<Document> joined(String join, int batchSize);
+
+    /**
+     * Claim the queued task of the highest priority among the given types
+     *
+     * @param types task type names
+     * @param resetDuration seconds without progress after which the task is
+     * queued again
+     * @param worker name of the claiming worker
+     * @return payload with its task id in "id", or null if none is ready
+     */
+    Document claim(Collection<String> types, int resetDuration, String worker);
+
+    /**
+     * When a claim may next find a task that cannot be claimed now: the
+     * earliest time a queued task comes out of its delay or retry backoff, or
+     * a running task's claim lapses
+     *
+     * @param types task type names
+     * @return the time, or null if no such task is waiting
+     */
+    Date nextClaimable(Collection<String> types);
+
+    /**
+     * Finish a claimed task, releasing or cancelling the tasks that depend on
+     * it
+     *
+     * @param message serialized task with its id in "id"
+     * @param status "completed", "failed" or "cancelled"
+     */
+    void ack(Document message, String status);
+
+    /**
+     * Queue a claimed task again after it failed, with its attempt counted,
+     * unless it is no longer running
+     *
+     * @param message serialized task with its id in "id"
+     * @param earliestGet earliest time it can be claimed again
+     * @return true if it was queued again
+     */
+    boolean retry(Document message, Date earliestGet);
+
+    /**
+     * Set how tasks whose claim lapses are retried. Without retry policies,
+     * or for types without one, they are queued again immediately, however
+     * many attempts they have had.
+     *
+     * @param policies retry policy by task type name, or null for types
+     * without one
+     */
+    void setRetryPolicies(Function<String, RetryPolicy> policies);
+
+    /**
+     * Record the progress of a running task and extend its claim
+     *
+     * @param id task id
+     * @param progress fraction complete
+     * @param resetDuration seconds from now before the claim lapses
+     * @param worker name of the worker running the task
+     */
+    void progress(String id, double progress, int resetDuration, String worker);
+
+    /**
+     * Find the message of a task
+     *
+     * @param id task id
+     * @param projection fields wanted, a backend may return more
+     * @return message, or null if there is no such task
+     */
+    Document find(String id, Document projection);
+
+    /**
+     * Find the messages of several tasks, archived or not
+     *
+     * @param ids task ids
+     * @param projection fields wanted, a backend may return more
+     * @return messages of those found, in no particular order
+     */
+    List<Document> findAll(Collection<String> ids, Document projection);
+
+    /**
+     * List the tasks matching a query, in its order, leaving out archived
+     * tasks
+     *
+     * @param query task query
+     * @param projection fields wanted, a backend may return more
+     * @return messages, which may be fetched as they are iterated
+     */
+    Iterable<Document> list(TaskQuery query, Document projection);
+
+    /**
+     * List the tasks sent with a group id, as by CauldronDAG, leaving out
+     * archived tasks
+     *
+     * @param group hex string of the group id
+     * @param projection fields wanted, a backend may return more
+     * @return messages, which may be fetched as they are iterated
+     */
+    Iterable<Document> findGroup(String group, Document projection);
+
+    /**
+     * Sum the progress of the tasks sent with a group id, counting finished
+     * tasks as done and leaving out archived tasks
+     *
+     * @param group hex string of the group id
+     * @return document with the number of tasks in "count" and their summed
+     * progress in "progress", or null if there are none
+     */
+    Document groupProgress(String group);
+
+    /**
+     * Count tasks by type and status, and bucket the wait times of queued
+     * tasks, leaving out archived tasks
+     *
+     * @param now time from which wait times are measured
+     * @return document as read by QueueStats.fromAggregation()
+     */
+    Document stats(Date now);
+
+    /**
+     * Bucket the time spent in each phase of their lifecycle by tasks that
+     * finished since a date, by type
+     *
+     * @param since earliest finish date
+     * @return document as read by PhaseStats.fromAggregation()
+     */
+    Document phases(Date since);
+
+    /**
+     * Follow status changes until the returned handle is closed. Changes are
+     * seen from when this returns.
+     *
+     * @param listener receives each change
+     * @return handle to stop following
+     */
+    AutoCloseable watch(ChangeListener listener);
+
+    /**
+     * Set how long finished tasks are kept, and whether they are then
+     * archived or removed
+     *
+     * @param policy retention policy, or null to keep finished tasks
+     */
+    void setRetentionPolicy(RetentionPolicy policy);
+
+    /**
+     * Set how long the tasks released by a completed task are reserved for
+     * the node of the worker that ran it, where worker names are of the form
+     * node:thread
+     *
+     * @param window window in milliseconds, or 0 to not reserve tasks
+     */
+    void setAffinityWindow(long window);
+
+    /**
+     * Milliseconds for which released tasks are reserved for the node of the
+     * worker that ran their parent, 0 if tasks are never reserved
+     *
+     * @return
+     */
+    long getAffinityWindow();
+
+    /**
+     * Append lines to the log of a task
+     *
+     * @param id task id
+     * @param lines log lines, blank lines are dropped
+     */
+    void appendLog(String id, Collection<String> lines);
+
+    /**
+     * Read a range of the log lines of a task
+     *
+     * @param id task id
+     * @param offset number of lines to skip
+     * @param limit maximum number of lines, 0 for no limit
+     * @return lines
+     */
+    List<String> readLog(String id, int offset, int limit);
+
+    /**
+     * Stream the log lines of a task in order
+     *
+     * @param id task id
+     * @return lines, which may be fetched as they are iterated
+     */
+    Iterable<String> streamLog(String id);
+
+    /**
+     * Pass the log lines of a task to a consumer on a background thread, then
+     * lines as they are appended, until the handle is closed or the task has
+     * finished
+     *
+     * @param id task id
+     * @param consumer receives each line in order
+     * @return handle to stop following
+     */
+    AutoCloseable followLog(String id, Consumer<String> consumer);
+
+    @FunctionalInterface
+    interface ChangeListener {
+
+        /**
+         * @param id task id
+         * @param status new status
+         * @param payload payload when written with the change, else null
+         */
+        void changed(String id, String status, Document payload);
+    }
+}
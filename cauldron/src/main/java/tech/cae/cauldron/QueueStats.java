@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.bson.Document;
+import tech.cae.cauldron.api.CauldronStatus;
+
+/**
+ * Snapshot of queue statistics, computed by a single aggregation over the
+ * queue collection.
+ *
+ * Wait times are those of currently queued tasks, measured from creation to
+ * the time of the snapshot, and are held as a base 2 histogram so percentiles
+ * are accurate to within a factor of two.
+ *
+ * @author peter
+ */
+public class QueueStats {
+
+    private final Date timestamp;
+    private final Map<String, Map<CauldronStatus, Long>> counts;
+    private final Map<String, Date> oldestQueued;
+    private final Map<String, TreeMap<Integer, Long>> waits;
+
+    QueueStats(Date timestamp) {
+        this.timestamp = timestamp;
+        this.counts = new HashMap<>();
+        this.oldestQueued = new HashMap<>();
+        this.waits = new HashMap<>();
+    }
+
+    static QueueStats fromAggregation(Date timestamp, Document result) {
+        QueueStats stats = new QueueStats(timestamp);
+        if (result == null) {
+            return stats;
+        }
+        for (Document group : result.getList("counts", Document.class, Collections.emptyList())) {
+            Document id = group.get("_id", Document.class);
+            String type = id.getString("type");
+            CauldronStatus status = CauldronStatus.fromString(id.getString("status"));
+            stats.counts.computeIfAbsent(type, t -> new EnumMap<>(CauldronStatus.class))
+                    .put(status, ((Number) group.get("count")).longValue());
+            if (status == CauldronStatus.Queued && group.getDate("oldest") != null) {
+                stats.oldestQueued.put(type, group.getDate("oldest"));
+            }
+        }
+        for (Document group : result.getList("waits", Document.class, Collections.emptyList())) {
+            Document id = group.get("_id", Document.class);
+            stats.waits.computeIfAbsent(id.getString("type"), t -> new TreeMap<>())
+                    .merge(((Number) id.get("bucket")).intValue(), ((Number) group.get("count")).longValue(), Long::sum);
+        }
+        return stats;
+    }
+
+    /**
+     * Time at which the statistics were computed
+     *
+     * @return
+     */
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public Set<String> getTypes() {
+        return Collections.unmodifiableSet(counts.keySet());
+    }
+
+    public long getCount(CauldronStatus status) {
+        return counts.values().stream().mapToLong(byStatus -> byStatus.getOrDefault(status, 0L)).sum();
+    }
+
+    public long getCount(String type, CauldronStatus status) {
+        return counts.getOrDefault(type, Collections.emptyMap()).getOrDefault(status, 0L);
+    }
+
+    public Map<CauldronStatus, Long> getCounts(String type) {
+        return Collections.unmodifiableMap(counts.getOrDefault(type, Collections.emptyMap()));
+    }
+
+    /**
+     * Age in milliseconds of the oldest queued task, or 0 if none are queued
+     *
+     * @return
+     */
+    public long getOldestQueuedAge() {
+        return oldestQueued.values().stream().mapToLong(this::age).max().orElse(0L);
+    }
+
+    public long getOldestQueuedAge(String type) {
+        Date oldest = oldestQueued.get(type);
+        return oldest == null ? 0L : age(oldest);
+    }
+
+    /**
+     * Wait time in milliseconds of queued tasks at the given percentile
+     *
+     * @param percentile between 0 and 100, e.g. 50 or 95
+     * @return upper bound of the histogram bucket containing the percentile, or
+     * 0 if none are queued
+     */
+    public long getWaitPercentile(double percentile) {
+        TreeMap<Integer, Long> all = new TreeMap<>();
+        waits.values().forEach(histogram -> histogram.forEach((bucket, count) -> all.merge(bucket, count, Long::sum)));
+        return percentile(all, percentile);
+    }
+
+    public long getWaitPercentile(String type, double percentile) {
+        return percentile(waits.getOrDefault(type, new TreeMap<>()), percentile);
+    }
+
+    private long age(Date date) {
+        return Math.max(0L, timestamp.getTime() - date.getTime());
+    }
+
+    static long percentile(TreeMap<Integer, Long> histogram, double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long total = histogram.values().stream().mapToLong(Long::longValue).sum();
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0L;
+        for (Map.Entry<Integer, Long> entry : histogram.entrySet()) {
+            seen += entry.getValue();
+            if (seen >= rank) {
+                return 1L << Math.min(62, entry.getKey() + 1);
+            }
+        }
+        return 1L << Math.min(62, histogram.lastKey() + 1);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Date;
+import java.util.function.Supplier;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.CauldronStatusChangeListener;
+
+/**
+ * Caches the latest QueueStats snapshot.
+ *
+ * A snapshot is served until it is older than the TTL, so a busy queue costs
+ * one aggregation per TTL however many callers there are. When following
+ * changes, an expired snapshot is also kept while no status change has been
+ * seen and nothing is waiting in the queue, so an idle queue costs none.
+ *
+ * @author peter
+ */
+class QueueStatsCache implements CauldronStatusChangeListener {
+
+    private final Supplier<QueueStats> source;
+    private volatile long ttl;
+    private volatile boolean followChanges;
+    private volatile boolean changed = true;
+    private volatile QueueStats snapshot;
+
+    QueueStatsCache(Supplier<QueueStats> source, long ttl) {
+        this.source = source;
+        this.ttl = ttl;
+        this.followChanges = false;
+    }
+
+    void setTtl(long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must not be negative");
+        }
+        this.ttl = ttl;
+    }
+
+    void setFollowChanges(boolean followChanges) {
+        this.followChanges = followChanges;
+        this.changed = true;
+    }
+
+    QueueStats get() {
+        return get(ttl);
+    }
+
+    QueueStats get(long maxAge) {
+        QueueStats current = snapshot;
+        if (current != null && !isStale(current, maxAge)) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current == null || isStale(current, maxAge)) {
+                changed = false;
+                current = source.get();
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    private boolean isStale(QueueStats stats, long maxAge) {
+        boolean expired = new Date().getTime() - stats.getTimestamp().getTime() >= maxAge;
+        // Queued tasks keep ageing without any change event, so their wait times need refreshing
+        return followChanges ? expired && (changed || stats.getCount(CauldronStatus.Queued) > 0) : expired;
+    }
+
+    @Override
+    public void taskStatusChanged(String task, CauldronStatus status) {
+        changed = true;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * Applies a RetentionPolicy to the queue collection, either by maintaining a
+ * TTL index or by periodically moving finished tasks to the archive. Backends
+ * other than MongoDB are instead swept periodically in either mode.
+ *
+ * @author peter
+ */
+class RetentionManager {
+
+    private static final Logger LOG = Logger.getLogger(RetentionManager.class.getName());
+
+    private final MongoQueueCore queue;
+    private final MongoCollection<Document> archive;
+    private final Sweep sweep;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> task;
+
+    RetentionManager(MongoQueueCore queue, MongoCollection<Document> archive) {
+        this.queue = queue;
+        this.archive = archive;
+        this.sweep = null;
+    }
+
+    /**
+     * @param sweep archives or removes the tasks of a backend that finished
+     * before a date
+     */
+    RetentionManager(Sweep sweep) {
+        this.queue = null;
+        this.archive = null;
+        this.sweep = sweep;
+    }
+
+    synchronized void apply(RetentionPolicy policy) {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        if (sweep != null) {
+            if (policy != null) {
+                task = schedule(() -> sweep(policy), policy);
+            }
+            return;
+        }
+        if (policy == null) {
+            queue.dropExpiryIndex();
+            return;
+        }
+        switch (policy.getMode()) {
+            case Expire:
+                queue.ensureExpiryIndex(policy.getRetain().getSeconds());
+                break;
+            case Archive:
+                queue.dropExpiryIndex();
+                queue.ensureArchiveIndex();
+                archive.createIndex(new Document("finished", 1));
+                // Children of a join that were archived before it ran are read from there
+                archive.createIndex(new Document(MongoQueueCore.JOIN, 1).append("_id", 1), new IndexOptions().sparse(true));
+                task = schedule(() -> archive(policy), policy);
+                break;
+        }
+    }
+
+    private ScheduledFuture<?> schedule(Runnable run, RetentionPolicy policy) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cauldron-retention");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        long interval = policy.getInterval().toMillis();
+        return executor.scheduleWithFixedDelay(run, 0L, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Archive or remove all tasks that are due
+     */
+    void sweep(RetentionPolicy policy) {
+        try {
+            int swept = sweep.sweep(policy.getMode(), new Date(System.currentTimeMillis() - policy.getRetain().toMillis()));
+            if (swept > 0) {
+                LOG.log(Level.FINE, "Swept {0} tasks", swept);
+            }
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to sweep tasks", ex);
+        }
+    }
+
+    /**
+     * Move all tasks that are due to the archive, a batch at a time
+     */
+    void archive(RetentionPolicy policy) {
+        try {
+            Date before = new Date(System.currentTimeMillis() - policy.getRetain().toMillis());
+            long total = 0;
+            int moved;
+            do {
+                moved = queue.archive(archive, before, policy.getBatchSize());
+                total += moved;
+            } while (moved == policy.getBatchSize() && !Thread.currentThread().isInterrupted());
+            if (total > 0) {
+                LOG.log(Level.FINE, "Archived {0} tasks", total);
+            }
+        } catch (RuntimeException ex) {
+            // Keep the schedule running, the next run will pick up where this left off
+            LOG.log(Level.WARNING, "Failed to archive tasks", ex);
+        }
+    }
+
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    interface Sweep {
+
+        /**
+         * @param mode whether to archive or remove the tasks
+         * @param finishedBefore latest finish date of the tasks
+         * @return number of tasks archived or removed
+         */
+        int sweep(RetentionPolicy.Mode mode, Date finishedBefore);
+    }
+}
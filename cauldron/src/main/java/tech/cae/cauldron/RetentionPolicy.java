@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * How long finished tasks stay in the queue collection, and what happens to
+ * them afterwards. Keeping finished tasks out of the queue collection keeps
+ * its indexes, and so the cost of claiming a task, independent of history.
+ *
+ * Task logs are not part of the queue collection, and are kept in either
+ * mode: the logs of an archived task can still be read by its id, and those
+ * of an expired task stay in the logs collection until removed there.
+ * Backends other than MongoDB sweep finished tasks periodically in either
+ * mode, and remove the logs of an expired task with it.
+ *
+ * @author peter
+ */
+public class RetentionPolicy {
+
+    public enum Mode {
+        /**
+         * Move finished tasks to an archive collection, where they can still
+         * be read by id
+         */
+        Archive,
+        /**
+         * Delete finished tasks using a TTL index
+         */
+        Expire
+    }
+
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final Duration DEFAULT_INTERVAL = Duration.ofMinutes(1);
+
+    private final Mode mode;
+    private final Duration retain;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private Duration interval = DEFAULT_INTERVAL;
+
+    RetentionPolicy(Mode mode, Duration retain) {
+        this.mode = Objects.requireNonNull(mode);
+        this.retain = Objects.requireNonNull(retain);
+        if (retain.isNegative()) {
+            throw new IllegalArgumentException("retain must not be negative");
+        }
+    }
+
+    /**
+     * Move tasks to the archive collection once they have been finished for
+     * the given time
+     *
+     * @param retain time to keep finished tasks in the queue collection
+     * @return
+     */
+    public static RetentionPolicy archive(Duration retain) {
+        return new RetentionPolicy(Mode.Archive, retain);
+    }
+
+    /**
+     * Delete tasks once they have been finished for the given time
+     *
+     * @param retain time to keep finished tasks
+     * @return
+     */
+    public static RetentionPolicy expire(Duration retain) {
+        return new RetentionPolicy(Mode.Expire, retain);
+    }
+
+    /**
+     * Number of tasks moved to the archive per round trip
+     *
+     * @param batchSize
+     * @return this policy
+     */
+    public RetentionPolicy batchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Time between archive runs
+     *
+     * @param interval
+     * @return this policy
+     */
+    public RetentionPolicy interval(Duration interval) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.interval = interval;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public Duration getRetain() {
+        return retain;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public Duration getInterval() {
+        return interval;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often, and how soon, a task of a type is run again after it fails or
+ * its claim lapses. Each retry waits for an exponential backoff with jitter,
+ * so that a failing dependency is not hammered by every worker at once, and
+ * a task that fails on every attempt ends up failed, cancelling its
+ * dependents, instead of crowding out good work forever.
+ *
+ * A lapsed claim, whether its worker died or it timed out, is always
+ * retryable; failures are retryable unless their cause is excluded.
+ *
+ * @author peter
+ */
+public class RetryPolicy {
+
+    static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofSeconds(1);
+    static final Duration DEFAULT_MAX_BACKOFF = Duration.ofMinutes(10);
+    static final double DEFAULT_MULTIPLIER = 2.0;
+    static final double DEFAULT_JITTER = 0.5;
+
+    private final int maxAttempts;
+    private Duration initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private Duration maxBackoff = DEFAULT_MAX_BACKOFF;
+    private double multiplier = DEFAULT_MULTIPLIER;
+    private double jitter = DEFAULT_JITTER;
+    private final List<Class<? extends Throwable>> retryOn = new ArrayList<>();
+    private final List<Class<? extends Throwable>> abortOn = new ArrayList<>();
+
+    RetryPolicy(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Run tasks at most the given number of times, including the first
+     *
+     * @param maxAttempts
+     * @return
+     */
+    public static RetryPolicy attempts(int maxAttempts) {
+        return new RetryPolicy(maxAttempts);
+    }
+
+    /**
+     * Fail tasks on their first failure or lapsed claim
+     *
+     * @return
+     */
+    public static RetryPolicy never() {
+        return new RetryPolicy(1);
+    }
+
+    /**
+     * Wait before the first retry, doubling by default for each further retry
+     * up to a maximum
+     *
+     * @param initial wait before the first retry
+     * @param max longest wait
+     * @return this policy
+     */
+    public RetryPolicy backoff(Duration initial, Duration max) {
+        if (initial.isNegative() || max.compareTo(initial) < 0) {
+            throw new IllegalArgumentException("backoff must not be negative, nor its maximum less than its initial value");
+        }
+        this.initialBackoff = initial;
+        this.maxBackoff = max;
+        return this;
+    }
+
+    /**
+     * Factor by which the backoff grows with each retry
+     *
+     * @param multiplier
+     * @return this policy
+     */
+    public RetryPolicy multiplier(double multiplier) {
+        if (!(multiplier >= 1.0)) {
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        }
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Fraction of each backoff taken off at random, so that tasks that failed
+     * together are not retried together
+     *
+     * @param jitter between 0 for none and 1
+     * @return this policy
+     */
+    public RetryPolicy jitter(double jitter) {
+        if (!(jitter >= 0.0 && jitter <= 1.0)) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Retry failures only if caused by one of the given exceptions, or their
+     * subclasses, anywhere in the chain of causes. Failures of any cause are
+     * retried if none are given.
+     *
+     * @param types
+     * @return this policy
+     */
+    @SafeVarargs
+    public final RetryPolicy retryOn(Class<? extends Throwable>... types) {
+        retryOn.addAll(Arrays.asList(types));
+        return this;
+    }
+
+    /**
+     * Never retry failures caused by the given exceptions, or their
+     * subclasses, anywhere in the chain of causes
+     *
+     * @param types
+     * @return this policy
+     */
+    @SafeVarargs
+    public final RetryPolicy abortOn(Class<? extends Throwable>... types) {
+        abortOn.addAll(Arrays.asList(types));
+        return this;
+    }
+
+    /**
+     * Whether a task may run again after the given attempt
+     *
+     * @param attempt attempt that failed, counting from 0
+     * @return
+     */
+    public boolean canRetry(int attempt) {
+        return attempt + 1 < maxAttempts;
+    }
+
+    /**
+     * Whether a failure may be retried, whatever the attempt
+     *
+     * @param cause exception thrown by the task, or null for a lapsed claim
+     * @return
+     */
+    public boolean isRetryable(Throwable cause) {
+        if (cause == null) {
+            return true;
+        }
+        if (causedBy(cause, abortOn)) {
+            return false;
+        }
+        return retryOn.isEmpty() || causedBy(cause, retryOn);
+    }
+
+    private static boolean causedBy(Throwable cause, List<Class<? extends Throwable>> types) {
+        for (Throwable link = cause; link != null; link = link.getCause()) {
+            for (Class<? extends Throwable> type : types) {
+                if (type.isInstance(link)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Milliseconds to wait before running a task again
+     *
+     * @param attempt attempt that failed, counting from 0
+     * @return backoff for the attempt, less a random part of up to the jitter
+     */
+    public long getBackoff(int attempt) {
+        double backoff = initialBackoff.toMillis() * Math.pow(multiplier, attempt);
+        double capped = Math.min(backoff, maxBackoff.toMillis());
+        return (long) (capped * (1.0 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public List<Class<? extends Throwable>> getRetryOn() {
+        return Collections.unmodifiableList(retryOn);
+    }
+
+    public List<Class<? extends Throwable>> getAbortOn() {
+        return Collections.unmodifiableList(abortOn);
+    }
+}
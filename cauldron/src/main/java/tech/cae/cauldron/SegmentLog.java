@@ -0,0 +1,417 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.bson.ByteBuf;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+/**
+ * Append-only log of BSON records in memory-mapped segment files.
+ *
+ * Each record is written as its length, a CRC32 of its bytes and then the
+ * bytes, so a record torn by a crash ends the log when it is read back. A
+ * segment is a fixed size file, zero filled past its last record, and a new
+ * one is started when a record does not fit.
+ *
+ * Appends are made durable by group commit: callers that need a record on
+ * disk wait for a committer thread, which forces the active segment once for
+ * every record appended before it started, however many callers are waiting.
+ *
+ * Compaction writes a snapshot to a new segment, starting with a snapshot
+ * marker, and deletes the segments before it, so only the latest snapshot
+ * and the segments after it are read on startup.
+ *
+ * @author peter
+ */
+class SegmentLog implements AutoCloseable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final Logger LOG = Logger.getLogger(SegmentLog.class.getName());
+    private static final String SUFFIX = ".log";
+    private static final String TEMPORARY = ".tmp";
+    private static final int HEADER = 8;
+    private static final long IDLE_FORCE_INTERVAL = 1000L;
+    private static final DocumentCodec CODEC = new DocumentCodec();
+    static final String OP = "op";
+    static final String SNAPSHOT = "snapshot";
+
+    private final Path directory;
+    private final int segmentSize;
+    private long segment = -1;
+    private MappedByteBuffer buffer;
+    private long appended;
+    private long written;
+    // Guarded by commit
+    private final Object commit = new Object();
+    private long requested;
+    private long forced;
+    private boolean closed;
+    private final Thread committer;
+
+    SegmentLog(final Path directory, final int segmentSize) throws IOException {
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("segmentSize is too small");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.committer = new Thread(this::commitLoop, "cauldron-segment-log-commit");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Pass every record from the latest snapshot on to a consumer, and then
+     * open the log for appends. Must be called once, before appending.
+     *
+     * @param consumer receives each record in order
+     * @throws IOException
+     */
+    void replay(final Consumer<Document> consumer) throws IOException {
+        final List<Long> segments = segments();
+        int first = 0;
+        for (int i = segments.size() - 1; i > 0; i--) {
+            if (isSnapshot(segments.get(i))) {
+                first = i;
+                break;
+            }
+        }
+        // Segments before a snapshot remain if compaction was interrupted after writing it
+        for (int i = 0; i < first; i++) {
+            Files.deleteIfExists(path(segments.get(i)));
+        }
+        int end = 0;
+        for (int i = first; i < segments.size(); i++) {
+            end = read(segments.get(i), consumer);
+        }
+        if (segments.isEmpty()) {
+            open(0L, 0, segmentSize);
+        } else {
+            final long last = segments.get(segments.size() - 1);
+            if (first == segments.size() - 1 && isSnapshot(last)) {
+                open(last + 1, 0, segmentSize);
+            } else {
+                open(last, end, segmentSize);
+            }
+        }
+        committer.start();
+    }
+
+    /**
+     * Append a record, without waiting for it to be durable
+     *
+     * @param record record to append
+     * @return sequence number of the record, to pass to await()
+     */
+    long append(final Document record) {
+        final byte[] bytes = encode(record);
+        synchronized (this) {
+            if (buffer.remaining() < HEADER + bytes.length) {
+                roll(HEADER + bytes.length);
+            }
+            write(buffer, bytes);
+            written += HEADER + bytes.length;
+            return ++appended;
+        }
+    }
+
+    /**
+     * Wait until a record is durable
+     *
+     * @param sequence sequence number from append()
+     * @throws IllegalStateException if the log is closed before the record is
+     * known to be durable
+     * @throws UncheckedIOException wrapping an InterruptedIOException if the
+     * thread is interrupted while waiting, with its interrupt flag restored
+     */
+    void await(final long sequence) {
+        synchronized (commit) {
+            if (sequence > requested) {
+                requested = sequence;
+                commit.notifyAll();
+            }
+            while (forced < sequence) {
+                if (closed) {
+                    throw new IllegalStateException("Queue log closed before record " + sequence + " was forced to disk");
+                }
+                try {
+                    commit.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for record " + sequence
+                            + " to be forced to disk"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Bytes appended since the log was opened or last compacted
+     *
+     * @return
+     */
+    synchronized long getWritten() {
+        return written;
+    }
+
+    /**
+     * Replace the log with a snapshot. No records may be appended until this
+     * returns.
+     *
+     * @param snapshot writes the snapshot records to the consumer it is given
+     * @throws IOException
+     */
+    synchronized void compact(final Consumer<Consumer<Document>> snapshot) throws IOException {
+        final long number = segment + 1;
+        final Path temporary = directory.resolve(name(number) + TEMPORARY);
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final Consumer<Document> writer = record -> {
+                final byte[] bytes = encode(record);
+                final ByteBuffer frame = ByteBuffer.allocate(HEADER + bytes.length);
+                write(frame, bytes);
+                frame.flip();
+                try {
+                    while (frame.hasRemaining()) {
+                        out.write(frame);
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            };
+            writer.accept(new Document(OP, SNAPSHOT));
+            snapshot.accept(writer);
+            out.force(true);
+        } catch (UncheckedIOException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex.getCause();
+        }
+        Files.move(temporary, path(number), StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        for (long old : segments()) {
+            if (old < number) {
+                Files.deleteIfExists(path(old));
+            }
+        }
+        open(number + 1, 0, segmentSize);
+        written = 0L;
+        synchronized (commit) {
+            // Everything appended before is in the snapshot, which is on disk
+            forced = appended;
+            commit.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (commit) {
+            closed = true;
+            commit.notifyAll();
+        }
+        committer.interrupt();
+        synchronized (this) {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            synchronized (commit) {
+                if (requested <= forced && !closed) {
+                    try {
+                        // Records nobody waits for are still forced within a second
+                        commit.wait(IDLE_FORCE_INTERVAL);
+                    } catch (InterruptedException ex) {
+                        // Closing
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            final MappedByteBuffer target;
+            final long upTo;
+            synchronized (this) {
+                target = buffer;
+                upTo = appended;
+            }
+            if (upTo > forced) {
+                target.force();
+            }
+            synchronized (commit) {
+                forced = Math.max(forced, upTo);
+                commit.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Start a new segment, once everything in the current one is durable
+     */
+    private void roll(final int needed) {
+        buffer.force();
+        try {
+            open(segment + 1, 0, Math.max(segmentSize, needed));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void open(final long number, final int position, final int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+            // Clear any torn record, so nothing after the records appended from here can be mistaken for one
+            for (int i = position; i < mapped.limit() && i < position + HEADER; i++) {
+                mapped.put(i, (byte) 0);
+            }
+            mapped.position(position);
+            this.buffer = mapped;
+            this.segment = number;
+        }
+    }
+
+    /**
+     * @return position after the last valid record
+     */
+    private int read(final long number, final Consumer<Document> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(number), StandardOpenOption.READ)) {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (mapped.remaining() >= HEADER) {
+                final int start = mapped.position();
+                final int length = mapped.getInt();
+                final int checksum = mapped.getInt();
+                if (length <= 0 || length > mapped.remaining()) {
+                    mapped.position(start);
+                    break;
+                }
+                final byte[] bytes = new byte[length];
+                mapped.get(bytes);
+                if (checksum != checksum(bytes)) {
+                    LOG.log(Level.WARNING, "Ignoring torn record at {0} in {1}", new Object[]{start, path(number)});
+                    mapped.position(start);
+                    break;
+                }
+                consumer.accept(new RawBsonDocument(bytes).decode(CODEC));
+            }
+            return mapped.position();
+        }
+    }
+
+    private boolean isSnapshot(final long number) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(number), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER) {
+                return false;
+            }
+            final int length = header.getInt();
+            final int checksum = header.getInt();
+            if (length <= 0 || length > channel.size() - HEADER) {
+                return false;
+            }
+            final ByteBuffer bytes = ByteBuffer.allocate(length);
+            channel.read(bytes, HEADER);
+            return checksum == checksum(bytes.array())
+                    && SNAPSHOT.equals(new RawBsonDocument(bytes.array()).decode(CODEC).getString(OP));
+        }
+    }
+
+    private List<Long> segments() throws IOException {
+        final List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(TEMPORARY)) {
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        // Not a segment
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // Not supported on all platforms, where the rename is durable once the file system commits it
+            LOG.log(Level.FINE, "Could not force " + directory, ex);
+        }
+    }
+
+    private Path path(final long number) {
+        return directory.resolve(name(number) + SUFFIX);
+    }
+
+    private static String name(final long number) {
+        return String.format("%020d", number);
+    }
+
+    private static void write(final ByteBuffer target, final byte[] bytes) {
+        target.putInt(bytes.length);
+        target.putInt(checksum(bytes));
+        target.put(bytes);
+    }
+
+    private static byte[] encode(final Document record) {
+        final ByteBuf raw = new RawBsonDocument(record, CODEC).getByteBuffer();
+        final byte[] bytes = new byte[raw.remaining()];
+        raw.get(bytes);
+        return bytes;
+    }
+
+    private static int checksum(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
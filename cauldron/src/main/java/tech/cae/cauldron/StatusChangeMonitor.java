@@ -23,23 +23,15 @@
  */
 package tech.cae.cauldron;
 
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.model.changestream.ChangeStreamDocument;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.bson.BsonDocument;
-import org.bson.BsonDocumentReader;
 import org.bson.Document;
-import org.bson.codecs.DecoderContext;
-import org.bson.codecs.DocumentCodec;
 import tech.cae.cauldron.api.CauldronStatus;
 import tech.cae.cauldron.api.CauldronStatusChangeListener;
 import tech.cae.cauldron.api.CauldronTask;
@@ -49,24 +41,25 @@ import tech.cae.cauldron.api.exceptions.CauldronException;
  *
  * @author peter
  */
-class StatusChangeMonitor {
+class StatusChangeMonitor implements QueueBackend.ChangeListener {
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private final MongoCollection<Document> collection;
+    private final QueueBackend backend;
+    private AutoCloseable watch;
     private final List<CauldronStatusChangeListener> listeners;
     private final ConcurrentMap<String, CompletableFuture<CauldronTask>> futures;
     private final Cauldron cauldron;
 
-    StatusChangeMonitor(final MongoCollection<Document> collection, Cauldron cauldron) {
-        Objects.requireNonNull(collection);
-        this.collection = collection;
-        this.listeners = new ArrayList<>();
+    StatusChangeMonitor(final QueueBackend backend, Cauldron cauldron) {
+        Objects.requireNonNull(backend);
+        this.backend = backend;
+        this.listeners = new CopyOnWriteArrayList<>();
         this.futures = new ConcurrentHashMap<>();
         this.cauldron = cauldron;
     }
 
     public void start() {
-        executor.submit(() -> this.collection.watch().forEach(change -> onChange(change)));
+        // The backend follows changes before returning, so that changes made after start() are never missed
+        this.watch = backend.watch(this);
     }
 
     public void addListener(CauldronStatusChangeListener listener) {
@@ -82,8 +75,13 @@ class StatusChangeMonitor {
             return futures.get(id);
         }
         CompletableFuture<CauldronTask> future = new CompletableFuture<>();
+        Cauldron.TaskMeta meta = cauldron.getTaskMeta(id);
+        if (meta == null) {
+            future.completeExceptionally(new CauldronException("No such task " + id));
+            return future;
+        }
         // Make a single attempt to fetch the futures, else just wait
-        switch (cauldron.getTaskMeta(id).getStatus()) {
+        switch (meta.getStatus()) {
             case Completed:
             case Failed:
             case Cancelled: {
@@ -100,37 +98,25 @@ class StatusChangeMonitor {
         }
         CompletableFuture<CauldronTask> otherFuture = futures.putIfAbsent(id, future);
         future = otherFuture == null ? future : otherFuture;
-        return future;
-    }
-
-    @SuppressWarnings("null")
-    private void onChange(ChangeStreamDocument<Document> change) {
-        if (change.getDocumentKey() != null && change.getDocumentKey().containsKey("_id")) {
-            String id = change.getDocumentKey().getObjectId("_id").getValue().toHexString();
-            switch (change.getOperationType()) {
-                case INSERT:
-                    if (change.getFullDocument() != null && change.getFullDocument().containsKey("status")) {
-                        Document payload = change.getFullDocument().containsKey("payload")
-                                ? bsonToDocument(change.getFullDocument().toBsonDocument().getDocument("payload"))
-                                : null;
-                        onChange(id, change.getFullDocument().getString("status"), payload);
-                    }
-                    break;
-                case UPDATE:
-                    if (change.getUpdateDescription().getUpdatedFields() != null && change.getUpdateDescription().getUpdatedFields().containsKey("status")) {
-                        Document payload = change.getUpdateDescription().getUpdatedFields().containsKey("payload")
-                                ? bsonToDocument(change.getUpdateDescription().getUpdatedFields().getDocument("payload"))
-                                : null;
-                        onChange(id, change.getUpdateDescription().getUpdatedFields().getString("status").getValue(), payload);
-                    }
-                    break;
-                default:
-                // do nothing
+        // A backend that notifies as fast as it acknowledges may finish the task before the future was registered
+        meta = cauldron.getTaskMeta(id);
+        if (meta == null) {
+            // Purged in the meantime
+            if (futures.remove(id, future)) {
+                future.completeExceptionally(new CauldronException("No such task " + id));
+            }
+        } else if (meta.getStatus().isFinished() && futures.remove(id, future)) {
+            try {
+                future.complete(cauldron.getTask(id));
+            } catch (CauldronException ex) {
+                future.completeExceptionally(ex);
             }
         }
+        return future;
     }
 
-    private void onChange(String id, String status, Document payload) {
+    @Override
+    public void changed(String id, String status, Document payload) {
         try {
             onChange(id, CauldronStatus.fromString(status), payload == null ? null : cauldron.deserialize(payload));
         } catch (CauldronException ex) {
@@ -152,12 +138,12 @@ class StatusChangeMonitor {
     }
 
     public void stop() {
-        this.executor.shutdownNow();
-    }
-
-    static Document bsonToDocument(BsonDocument bsonDocument) {
-        DocumentCodec codec = new DocumentCodec();
-        DecoderContext decoderContext = DecoderContext.builder().build();
-        return codec.decode(new BsonDocumentReader(bsonDocument), decoderContext);
+        if (this.watch != null) {
+            try {
+                this.watch.close();
+            } catch (Exception ex) {
+                Logger.getLogger(StatusChangeMonitor.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
     }
 }
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import tech.cae.cauldron.api.CauldronStatus;
+
+/**
+ * Append-only store for task logs, kept out of the queue collection so that
+ * queue documents stay small however much a task logs.
+ *
+ * Each flush of log lines from a task is written as one chunk document
+ * {task, created, firstLine, lines}, indexed by task and chunk id, so the
+ * lines of a task are read back in order by streaming its chunks. The number
+ * of its first line is taken from a count of lines kept on the task, so a
+ * page of lines is read from the chunk holding its first line onwards.
+ * Chunks written before lines were numbered are read by streaming.
+ *
+ * @author peter
+ */
+class TaskLogStore {
+
+    private static final Logger LOG = Logger.getLogger(TaskLogStore.class.getName());
+    static final int DEFAULT_BATCH_SIZE = 100;
+    static final String FIRST_LINE = "firstLine";
+    static final String LOG_LINES = "logLines";
+    // How long a follower waits for new lines before checking whether the task has finished
+    private static final long FOLLOW_CHECK_INTERVAL = 1000L;
+
+    private final MongoCollection<Document> collection;
+    private final MongoCollection<Document> queue;
+    private final ExecutorService followers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cauldron-log-follower");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    TaskLogStore(final MongoCollection<Document> collection, final MongoCollection<Document> queue) {
+        this.collection = Objects.requireNonNull(collection);
+        this.queue = Objects.requireNonNull(queue);
+    }
+
+    void ensureIndex() {
+        collection.createIndex(new Document("task", 1).append("_id", 1), new IndexOptions().background(true));
+        collection.createIndex(new Document("task", 1).append(FIRST_LINE, 1), new IndexOptions().background(true));
+    }
+
+    /**
+     * Append lines to the log of a task as a single chunk
+     *
+     * @param id task id
+     * @param lines log lines, blank lines are dropped
+     */
+    void append(String id, Collection<String> lines) {
+        Document chunk = chunk(id, lines);
+        if (chunk != null) {
+            collection.insertOne(number(chunk));
+        }
+    }
+
+    /**
+     * Append lines to the logs of several tasks in one round trip
+     *
+     * @param lines log lines by task id
+     */
+    void appendAll(Map<String, ? extends Collection<String>> lines) {
+        List<Document> chunks = lines.entrySet().stream()
+                .map(entry -> chunk(entry.getKey(), entry.getValue()))
+                .filter(Objects::nonNull)
+                .map(this::number)
+                .collect(Collectors.toList());
+        if (!chunks.isEmpty()) {
+            collection.insertMany(chunks, new InsertManyOptions().ordered(false));
+        }
+    }
+
+    static Document chunk(String id, Collection<String> lines) {
+        List<String> trimmed = lines.stream()
+                .filter(s -> s != null && !s.trim().isEmpty())
+                .map(String::trim)
+                .collect(Collectors.toList());
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        return new Document("_id", new ObjectId())
+                .append("task", new ObjectId(id))
+                .append("created", new Date())
+                .append("lines", trimmed);
+    }
+
+    /**
+     * Number the first line of a chunk by counting its lines on its task
+     */
+    private Document number(Document chunk) {
+        return numbered(chunk, queue.findOneAndUpdate(new Document("_id", chunk.getObjectId("task")), numberUpdate(chunk), numberOptions()));
+    }
+
+    // Shared with AsyncQueueCore, so that both clients number lines alike
+    static Document numberUpdate(Document chunk) {
+        return new Document("$inc", new Document(LOG_LINES, chunk.getList("lines", String.class).size()));
+    }
+
+    static FindOneAndUpdateOptions numberOptions() {
+        return new FindOneAndUpdateOptions().projection(new Document(LOG_LINES, 1)).returnDocument(ReturnDocument.BEFORE);
+    }
+
+    /**
+     * @param before the task before its count of lines was increased, or null
+     * if it is not in the queue collection
+     */
+    static Document numbered(Document chunk, Document before) {
+        return chunk.append(FIRST_LINE, before == null ? 0 : before.getInteger(LOG_LINES, 0));
+    }
+
+    /**
+     * Stream the log lines of a task in order, fetching chunks lazily
+     *
+     * @param id task id
+     * @return lines
+     */
+    Iterable<String> stream(String id) {
+        return () -> {
+            Iterator<String> legacy = legacy(id).iterator();
+            Iterator<Document> chunks = collection.find(new Document("task", new ObjectId(id)))
+                    .sort(new Document("_id", 1))
+                    .batchSize(DEFAULT_BATCH_SIZE)
+                    .iterator();
+            return new Iterator<String>() {
+                private Iterator<String> current = legacy;
+
+                @Override
+                public boolean hasNext() {
+                    while (!current.hasNext() && chunks.hasNext()) {
+                        current = chunks.next().getList("lines", String.class, Collections.emptyList()).iterator();
+                    }
+                    return current.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return current.next();
+                }
+            };
+        };
+    }
+
+    /**
+     * Read a range of log lines of a task
+     *
+     * @param id task id
+     * @param offset number of lines to skip
+     * @param limit maximum number of lines, 0 for no limit
+     * @return lines
+     */
+    List<String> read(String id, int offset, int limit) {
+        List<String> lines = new ArrayList<>();
+        List<String> legacy = legacy(id);
+        for (int i = offset; i < legacy.size() && (limit <= 0 || lines.size() < limit); i++) {
+            lines.add(legacy.get(i));
+        }
+        int skip = Math.max(0, offset - legacy.size());
+        ObjectId task = new ObjectId(id);
+        Document first = collection.find(new Document("task", task).append(FIRST_LINE, new Document("$lte", skip)))
+                .sort(new Document(FIRST_LINE, -1))
+                .projection(new Document(FIRST_LINE, 1))
+                .first();
+        int index = first == null ? 0 : first.getInteger(FIRST_LINE);
+        Document query = first == null
+                ? new Document("task", task)
+                : new Document("task", task).append(FIRST_LINE, new Document("$gte", index));
+        try (MongoCursor<Document> chunks = collection.find(query)
+                .sort(new Document(first == null ? "_id" : FIRST_LINE, 1))
+                .batchSize(DEFAULT_BATCH_SIZE)
+                .iterator()) {
+            while (chunks.hasNext()) {
+                for (String line : chunks.next().getList("lines", String.class, Collections.emptyList())) {
+                    if (limit > 0 && lines.size() >= limit) {
+                        return lines;
+                    }
+                    if (index++ >= skip) {
+                        lines.add(line);
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Pass existing log lines of a task to a consumer, then continue to pass
+     * new lines as they are appended, until the returned handle is closed or
+     * the task has finished
+     *
+     * @param id task id
+     * @param consumer receives each line in order
+     * @return handle to stop following
+     */
+    AutoCloseable follow(String id, Consumer<String> consumer) {
+        ObjectId task = new ObjectId(id);
+        // Open the change stream first so nothing appended while reading the existing chunks is missed
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = collection.watch(Arrays.asList(
+                new Document("$match", new Document("operationType", "insert").append("fullDocument.task", task))))
+                .fullDocument(FullDocument.DEFAULT)
+                .maxAwaitTime(FOLLOW_CHECK_INTERVAL, TimeUnit.MILLISECONDS)
+                .cursor();
+        followers.submit(() -> {
+            try {
+                legacy(id).forEach(consumer);
+                Set<ObjectId> seen = new HashSet<>();
+                for (Document chunk : collection.find(new Document("task", task)).sort(new Document("_id", 1)).batchSize(DEFAULT_BATCH_SIZE)) {
+                    seen.add(chunk.getObjectId("_id"));
+                    chunk.getList("lines", String.class, Collections.emptyList()).forEach(consumer);
+                }
+                boolean finished = false;
+                while (true) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change == null) {
+                        // Workers write their last lines before finishing the task, so once drained after it finished there are no more
+                        if (finished) {
+                            break;
+                        }
+                        finished = isFinished(task);
+                        continue;
+                    }
+                    Document chunk = change.getFullDocument();
+                    if (chunk != null && !seen.contains(chunk.getObjectId("_id"))) {
+                        chunk.getList("lines", String.class, Collections.emptyList()).forEach(consumer);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                // Cursor closed by the handle, or the stream failed
+                LOG.log(Level.FINE, "Stopped following log of " + id, ex);
+            } finally {
+                cursor.close();
+            }
+        });
+        return cursor::close;
+    }
+
+    /**
+     * Whether a task has finished, or is no longer in the queue collection
+     */
+    private boolean isFinished(ObjectId task) {
+        Document message = queue.find(new Document("_id", task)).projection(new Document("status", 1)).first();
+        return message == null || message.getString("status") == null
+                || CauldronStatus.fromString(message.getString("status")).isFinished();
+    }
+
+    /**
+     * Remove the logs of a task
+     *
+     * @param id task id
+     */
+    void delete(String id) {
+        collection.deleteMany(new Document("task", new ObjectId(id)));
+    }
+
+    /**
+     * Lines written before logs were moved out of the queue collection
+     */
+    private List<String> legacy(String id) {
+        Document message = queue.find(new Document("_id", new ObjectId(id)))
+                .projection(new Document("log", 1))
+                .first();
+        return message == null ? Collections.emptyList() : message.getList("log", String.class, Collections.emptyList());
+    }
+}
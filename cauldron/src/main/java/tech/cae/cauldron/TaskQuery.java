@@ -0,0 +1,347 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.IntPredicate;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.CauldronTask;
+
+/**
+ * Query over task metadata, with sorting and keyset pagination.
+ *
+ * Results are ordered by created date and then id, so a page can be continued
+ * from its last element with {@link #after(Cauldron.TaskMeta)} without the
+ * server having to skip over earlier results.
+ *
+ * @author peter
+ */
+public class TaskQuery {
+
+    static final int DEFAULT_BATCH_SIZE = 100;
+    private static final Comparator<Document> ORDER = Comparator.comparing((Document message) -> message.getDate("created"))
+            .thenComparing(message -> message.getObjectId("_id"));
+
+    private final List<String> statuses = new ArrayList<>();
+    private final List<String> types = new ArrayList<>();
+    private final Map<String, Object> payload = new LinkedHashMap<>();
+    private Date createdFrom;
+    private Date createdBefore;
+    private boolean descending = false;
+    private int limit = 0;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private ObjectId afterId;
+    private Date afterCreated;
+
+    TaskQuery() {
+    }
+
+    public static TaskQuery create() {
+        return new TaskQuery();
+    }
+
+    public TaskQuery status(CauldronStatus... statuses) {
+        Arrays.asList(statuses).forEach(status -> this.statuses.add(status.toString()));
+        return this;
+    }
+
+    public TaskQuery status(String... statuses) {
+        this.statuses.addAll(Arrays.asList(statuses));
+        return this;
+    }
+
+    @SafeVarargs
+    public final TaskQuery type(Class<? extends CauldronTask>... types) {
+        Arrays.asList(types).forEach(type -> this.types.add(type.getName()));
+        return this;
+    }
+
+    public TaskQuery type(String... types) {
+        this.types.addAll(Arrays.asList(types));
+        return this;
+    }
+
+    /**
+     * Match a field of the task payload
+     *
+     * @param field field name within the payload, may be dotted
+     * @param value value to match, or a query operator document
+     * @return this query
+     */
+    public TaskQuery payload(String field, Object value) {
+        this.payload.put(Objects.requireNonNull(field), value);
+        return this;
+    }
+
+    public TaskQuery payload(Map<String, ?> fields) {
+        this.payload.putAll(fields);
+        return this;
+    }
+
+    /**
+     * Only include tasks created at or after the given date
+     *
+     * @param from inclusive lower bound
+     * @return this query
+     */
+    public TaskQuery createdFrom(Date from) {
+        this.createdFrom = from;
+        return this;
+    }
+
+    /**
+     * Only include tasks created before the given date
+     *
+     * @param to exclusive upper bound
+     * @return this query
+     */
+    public TaskQuery createdBefore(Date to) {
+        this.createdBefore = to;
+        return this;
+    }
+
+    public TaskQuery oldestFirst() {
+        this.descending = false;
+        return this;
+    }
+
+    public TaskQuery newestFirst() {
+        this.descending = true;
+        return this;
+    }
+
+    /**
+     * Maximum number of results, 0 for no limit
+     *
+     * @param limit page size
+     * @return this query
+     */
+    public TaskQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Number of documents fetched from the server per round trip
+     *
+     * @param batchSize cursor batch size
+     * @return this query
+     */
+    public TaskQuery batchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Continue from the last task of a previous page
+     *
+     * @param last last task returned by the previous page
+     * @return this query
+     */
+    public TaskQuery after(Cauldron.TaskMeta last) {
+        return after(last.getId(), last.getCreated());
+    }
+
+    public TaskQuery after(String id, Date created) {
+        this.afterId = new ObjectId(Objects.requireNonNull(id));
+        this.afterCreated = Objects.requireNonNull(created);
+        return this;
+    }
+
+    Document toFilter() {
+        Document filter = new Document();
+        if (statuses.size() == 1) {
+            filter.append("status", statuses.get(0));
+        } else if (statuses.size() > 1) {
+            filter.append("status", new Document("$in", statuses));
+        }
+        if (types.size() == 1) {
+            filter.append("payload.type", types.get(0));
+        } else if (types.size() > 1) {
+            filter.append("payload.type", new Document("$in", types));
+        }
+        payload.forEach((key, value) -> filter.append("payload." + key, value));
+        Document created = new Document();
+        if (createdFrom != null) {
+            created.append("$gte", createdFrom);
+        }
+        if (createdBefore != null) {
+            created.append("$lt", createdBefore);
+        }
+        if (!created.isEmpty()) {
+            filter.append("created", created);
+        }
+        if (afterId != null) {
+            String op = descending ? "$lt" : "$gt";
+            filter.append("$or", Arrays.asList(
+                    new Document("created", new Document(op, afterCreated)),
+                    new Document("created", afterCreated).append("_id", new Document(op, afterId))));
+        }
+        return filter;
+    }
+
+    Document toSort() {
+        int direction = descending ? -1 : 1;
+        return new Document("created", direction).append("_id", direction);
+    }
+
+    /**
+     * Whether a message matches, for backends that hold their tasks in
+     * memory. Payload fields are matched by value, by any element of an
+     * array, or by the comparison operators $eq, $ne, $gt, $gte, $lt, $lte,
+     * $in, $nin and $exists.
+     *
+     * @param message message with the layout of the queue collection
+     * @return
+     */
+    boolean matches(Document message) {
+        if (!statuses.isEmpty() && !statuses.contains(message.getString("status"))) {
+            return false;
+        }
+        Document taskPayload = message.get("payload", Document.class);
+        if (!types.isEmpty() && !types.contains(taskPayload.getString("type"))) {
+            return false;
+        }
+        for (Map.Entry<String, Object> field : payload.entrySet()) {
+            if (!matches(field(taskPayload, field.getKey()), field.getValue())) {
+                return false;
+            }
+        }
+        Date created = message.getDate("created");
+        if ((createdFrom != null && created.before(createdFrom)) || (createdBefore != null && !created.before(createdBefore))) {
+            return false;
+        }
+        if (afterId != null) {
+            int order = ORDER.compare(message, new Document("created", afterCreated).append("_id", afterId));
+            return descending ? order < 0 : order > 0;
+        }
+        return true;
+    }
+
+    Comparator<Document> toComparator() {
+        return descending ? ORDER.reversed() : ORDER;
+    }
+
+    private static Object field(Document document, String path) {
+        Object value = document;
+        for (String name : path.split("\\.")) {
+            if (!(value instanceof Document)) {
+                return null;
+            }
+            value = ((Document) value).get(name);
+        }
+        return value;
+    }
+
+    private static boolean matches(Object value, Object condition) {
+        if (condition instanceof Document && !((Document) condition).isEmpty()
+                && ((Document) condition).keySet().stream().allMatch(key -> key.startsWith("$"))) {
+            for (Map.Entry<String, Object> operator : ((Document) condition).entrySet()) {
+                if (!matches(value, operator.getKey(), operator.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return equal(value, condition);
+    }
+
+    private static boolean matches(Object value, String operator, Object operand) {
+        switch (operator) {
+            case "$eq":
+                return equal(value, operand);
+            case "$ne":
+                return !equal(value, operand);
+            case "$in":
+                return ((Collection<?>) operand).stream().anyMatch(item -> equal(value, item));
+            case "$nin":
+                return ((Collection<?>) operand).stream().noneMatch(item -> equal(value, item));
+            case "$exists":
+                return (value != null) == Boolean.TRUE.equals(operand);
+            case "$gt":
+                return compare(value, operand, order -> order > 0);
+            case "$gte":
+                return compare(value, operand, order -> order >= 0);
+            case "$lt":
+                return compare(value, operand, order -> order < 0);
+            case "$lte":
+                return compare(value, operand, order -> order <= 0);
+            default:
+                throw new IllegalArgumentException("Unsupported payload operator " + operator);
+        }
+    }
+
+    private static boolean equal(Object value, Object operand) {
+        if (value instanceof Collection && !(operand instanceof Collection)) {
+            return ((Collection<?>) value).stream().anyMatch(item -> equal(item, operand));
+        }
+        if (value instanceof Number && operand instanceof Number) {
+            return ((Number) value).doubleValue() == ((Number) operand).doubleValue();
+        }
+        return Objects.equals(value, operand);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean compare(Object value, Object operand, IntPredicate test) {
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().anyMatch(item -> compare(item, operand, test));
+        }
+        if (value instanceof Number && operand instanceof Number) {
+            return test.test(Double.compare(((Number) value).doubleValue(), ((Number) operand).doubleValue()));
+        }
+        if (value instanceof Comparable && operand != null && value.getClass() == operand.getClass()) {
+            return test.test(((Comparable<Object>) value).compareTo(operand));
+        }
+        return false;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getBatchSize() {
+        return limit > 0 ? Math.min(limit, batchSize) : batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return toFilter().toJson() + " sort " + toSort().toJson() + (limit > 0 ? " limit " + limit : "");
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.Document;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ * Converts tasks to and from the payload documents stored in the queue.
+ *
+ * @author peter
+ */
+class TaskSerializer {
+
+    private final ObjectMapper mapper;
+
+    TaskSerializer() {
+        this.mapper = new ObjectMapper();
+    }
+
+    <T extends CauldronTask> Document serialize(T object) {
+        JsonNode node = mapper.valueToTree(object);
+        return mapper.convertValue(node, Document.class);
+    }
+
+    CauldronTask deserialize(Document document) throws CauldronException {
+        Class<? extends CauldronTask> type = getTaskType(document);
+        return mapper.convertValue(document, type);
+    }
+
+    Class<? extends CauldronTask> getTaskType(Document document) throws CauldronException {
+        String taskType = document.getString("type");
+        if (taskType == null) {
+            throw new CauldronException("No task type specified");
+        }
+        try {
+            return Thread.currentThread().getContextClassLoader().loadClass(taskType).asSubclass(CauldronTask.class);
+        } catch (ClassNotFoundException ex) {
+            throw new CauldronException("Could not find specified task type " + taskType);
+        } catch (ClassCastException ex) {
+            throw new CauldronException("Task type " + taskType + " does not extend CauldronTask");
+        }
+    }
+}
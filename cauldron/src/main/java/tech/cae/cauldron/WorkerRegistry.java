@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOptions;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * Registry of worker nodes in a collection next to the queue, kept alive by
+ * heartbeats, so that the tasks of a node that dies are queued again within
+ * seconds rather than when their claims lapse.
+ *
+ * Each registered node writes a heartbeat at an interval. Every registry with
+ * a node registered also reaps nodes whose heartbeat has lapsed, removing the
+ * node and queueing its running tasks again in one indexed update on the node
+ * recorded by their claim. Reaping is safe to run from many processes, as
+ * only one removes each lapsed node.
+ *
+ * Heartbeats are stamped, and lapses measured, by the clock of the database
+ * server, so clock skew between worker nodes cannot make a live node look
+ * dead.
+ *
+ * @author peter
+ */
+public class WorkerRegistry {
+
+    private static final Logger LOG = Logger.getLogger(WorkerRegistry.class.getName());
+    static final long DEFAULT_HEARTBEAT_INTERVAL = 5000L;
+    static final long DEFAULT_LAPSE = 15000L;
+
+    private final MongoQueueCore queue;
+    private final MongoDatabase database;
+    private final MongoCollection<Document> collection;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cauldron-workers");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, ScheduledFuture<?>> heartbeats = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> reaper;
+    private volatile long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private volatile long lapse = DEFAULT_LAPSE;
+
+    WorkerRegistry(MongoQueueCore queue, MongoDatabase database, String collection) {
+        this.queue = queue;
+        this.database = database;
+        this.collection = database.getCollection(collection);
+    }
+
+    void ensureIndex() {
+        collection.createIndex(new Document("heartbeat", 1), new IndexOptions().background(true));
+    }
+
+    /**
+     * Set how often registered nodes write a heartbeat, and how long after its
+     * last heartbeat a node is taken to be dead. Applies to nodes registered
+     * after the call.
+     *
+     * @param heartbeatInterval interval in milliseconds
+     * @param lapse time in milliseconds, at least twice the interval
+     */
+    public void setHeartbeat(long heartbeatInterval, long lapse) {
+        if (heartbeatInterval <= 0 || lapse < 2 * heartbeatInterval) {
+            throw new IllegalArgumentException("lapse must be at least twice a positive heartbeatInterval");
+        }
+        this.heartbeatInterval = heartbeatInterval;
+        this.lapse = lapse;
+    }
+
+    /**
+     * Register a worker node and write heartbeats for it until unregistered
+     *
+     * @param node node name, as in worker names node:thread
+     * @param capacity number of tasks the node runs at once
+     * @param types task types the node runs
+     */
+    public synchronized void register(String node, int capacity, Collection<String> types) {
+        Document info = new Document("capacity", capacity)
+                .append("types", new ArrayList<>(types))
+                .append("host", host());
+        String version = Cauldron.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            info.append("version", version);
+        }
+        heartbeat(node, info);
+        ScheduledFuture<?> previous = heartbeats.put(node, executor.scheduleAtFixedRate(() -> heartbeat(node, info),
+                heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        if (reaper == null) {
+            reaper = executor.scheduleWithFixedDelay(this::reapQuietly, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the heartbeats of a node and remove it, leaving its running tasks
+     * to finish
+     *
+     * @param node node name
+     */
+    public synchronized void unregister(String node) {
+        ScheduledFuture<?> heartbeat = heartbeats.remove(node);
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        if (heartbeats.isEmpty() && reaper != null) {
+            reaper.cancel(false);
+            reaper = null;
+        }
+        collection.deleteOne(Filters.eq("_id", node));
+    }
+
+    /**
+     * Remove every node whose heartbeat has lapsed, and queue its running
+     * tasks again
+     *
+     * @return number of tasks queued again
+     */
+    public long reap() {
+        Date cutoff = new Date(serverTime().getTime() - lapse);
+        long requeued = 0L;
+        for (Document lapsed : collection.find(Filters.lt("heartbeat", cutoff)).projection(new Document("_id", 1))) {
+            String node = lapsed.getString("_id");
+            // Only one reaper removes a node, and not once it has written a heartbeat again
+            if (collection.findOneAndDelete(Filters.and(Filters.eq("_id", node), Filters.lt("heartbeat", cutoff))) != null) {
+                long count = queue.requeueNode(node);
+                LOG.log(Level.WARNING, "Worker node {0} stopped sending heartbeats, queued {1} tasks again", new Object[]{node, count});
+                requeued += count;
+            }
+        }
+        return requeued;
+    }
+
+    /**
+     * Get the registered nodes
+     *
+     * @return
+     */
+    public List<WorkerInfo> getWorkers() {
+        List<WorkerInfo> workers = new ArrayList<>();
+        for (Document document : collection.find().sort(new Document("_id", 1))) {
+            workers.add(new WorkerInfo(document));
+        }
+        return workers;
+    }
+
+    MongoCollection<Document> getCollection() {
+        return collection;
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    private void heartbeat(String node, Document info) {
+        try {
+            collection.updateOne(Filters.eq("_id", node),
+                    new Document("$set", info)
+                            .append("$currentDate", new Document("heartbeat", true))
+                            .append("$setOnInsert", new Document("registered", new Date())),
+                    new UpdateOptions().upsert(true));
+        } catch (RuntimeException ex) {
+            // The next heartbeat may get through before the node lapses
+            LOG.log(Level.WARNING, "Failed to write heartbeat for " + node, ex);
+        }
+    }
+
+    /**
+     * Current time on the database server, which stamps the heartbeats
+     */
+    private Date serverTime() {
+        return database.runCommand(new Document("isMaster", 1)).getDate("localTime");
+    }
+
+    private void reapQuietly() {
+        try {
+            reap();
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to reap lapsed worker nodes", ex);
+        }
+    }
+
+    private static String host() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * A registered worker node
+     */
+    public static class WorkerInfo {
+
+        private final String id;
+        private final int capacity;
+        private final List<String> types;
+        private final String host;
+        private final String version;
+        private final Date registered;
+        private final Date heartbeat;
+
+        WorkerInfo(Document document) {
+            this.id = document.getString("_id");
+            this.capacity = document.getInteger("capacity", 0);
+            this.types = document.getList("types", String.class, Collections.emptyList());
+            this.host = document.getString("host");
+            this.version = document.getString("version");
+            this.registered = document.getDate("registered");
+            this.heartbeat = document.getDate("heartbeat");
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Number of tasks the node runs at once
+         *
+         * @return
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public List<String> getTypes() {
+            return Collections.unmodifiableList(types);
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Cauldron version of the node, or null if not known
+         *
+         * @return
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        public Date getRegistered() {
+            return registered;
+        }
+
+        public Date getHeartbeat() {
+            return heartbeat;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Arrays;
+import java.util.UUID;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class AffinityTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws CauldronException {
+        Cauldron cauldron = Cauldron.get();
+        cauldron.setAffinityWindow(60000);
+        try {
+            String run = UUID.randomUUID().toString();
+            SillyTask parent = new SillyTask(run + "_PARENT");
+            CauldronDAG.create(new SillyTask(run + "_CHILD")).after(parent).submit();
+
+            Document claimed = cauldron.getMongoQueue().get(new Document("thing", run + "_PARENT"), 60, 10, 1, "nodeA:1");
+            Assert.assertNotNull(claimed);
+            cauldron.progress(claimed.getString("id"), Arrays.asList(), 1.0, 60, "nodeA:1");
+            cauldron.completed(cauldron.deserialize(claimed), CauldronStatus.Completed);
+
+            Document child = new Document("thing", run + "_CHILD");
+            Assert.assertNull(cauldron.getMongoQueue().get(child, 60, 10, 1, "nodeB:1"));
+            Assert.assertNotNull(cauldron.getMongoQueue().get(child, 60, 10, 1, "nodeA:2"));
+        } finally {
+            cauldron.setAffinityWindow(MongoQueueCore.DEFAULT_AFFINITY_WINDOW);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class AsyncSubmitTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws InterruptedException, ExecutionException, CauldronException {
+        AsyncCauldron cauldron = AsyncCauldron.get();
+        MyTask task = new MyTask();
+        task.setInput("async");
+        String id = cauldron.submit(task).get().getId();
+        Assert.assertEquals(CauldronStatus.Queued, cauldron.getTaskMeta(id).get().getStatus());
+        List<Cauldron.SubmitResponse> many = cauldron.submitMulti(Arrays.asList(new SillyTask("A"), new SillyTask("B"))).get();
+        Assert.assertEquals(2, many.size());
+        CauldronTask claimed = cauldron.claim(new HashSet<>(Arrays.asList(MyTask.class)), 60, "async").get();
+        Assert.assertNotNull(claimed);
+        claimed.run(null);
+        cauldron.completed(claimed, CauldronStatus.Completed).get();
+        Assert.assertEquals(CauldronStatus.Completed, cauldron.getTaskMeta(claimed.getId()).get().getStatus());
+        Assert.assertNotNull(((MyTask) cauldron.getTask(claimed.getId()).get()).getOutput());
+    }
+}
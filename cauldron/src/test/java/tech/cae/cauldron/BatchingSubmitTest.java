@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author peter
+ */
+public class BatchingSubmitTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws InterruptedException, ExecutionException {
+        List<CompletableFuture<Cauldron.SubmitResponse>> futures = new ArrayList<>();
+        try (BatchingSubmitter submitter = Cauldron.get().createBatchingSubmitter(16, 20)) {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < 25; i++) {
+                        AddingTask task = new AddingTask();
+                        task.setA(i);
+                        task.setB(i);
+                        CompletableFuture<Cauldron.SubmitResponse> future = submitter.submit(task);
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        HashSet<String> ids = new HashSet<>();
+        for (CompletableFuture<Cauldron.SubmitResponse> future : futures) {
+            ids.add(future.get().getId());
+        }
+        Assert.assertEquals(100, ids.size());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class BulkSubmitTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws CauldronException {
+        AtomicInteger chunks = new AtomicInteger();
+        AtomicInteger responses = new AtomicInteger();
+        long submitted = Cauldron.get().bulk(IntStream.range(0, 2500).mapToObj(i -> new SillyTask("BULK_" + i)))
+                .chunkSize(500)
+                .priority(task -> task.thing.endsWith("0") ? 0.0 : 1.0)
+                .delay(task -> 10L)
+                .onChunk(chunk -> {
+                    chunks.incrementAndGet();
+                    responses.addAndGet(chunk.size());
+                })
+                .submit();
+        Assert.assertEquals(2500, submitted);
+        Assert.assertEquals(5, chunks.get());
+        Assert.assertEquals(2500, responses.get());
+    }
+}
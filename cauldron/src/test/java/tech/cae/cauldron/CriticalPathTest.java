@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Arrays;
+import java.util.UUID;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author peter
+ */
+public class CriticalPathTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() {
+        String run = UUID.randomUUID().toString();
+        // Unrelated work at the default priority, submitted first
+        Cauldron.get().submit(new SillyTask(run + "_PLAIN"));
+        CauldronDAG first = CauldronDAG.create(new SillyTask(run + "_FIRST"));
+        CauldronDAG second = CauldronDAG.create(new SillyTask(run + "_SECOND")).after(first);
+        CauldronDAG third = CauldronDAG.create(new SillyTask(run + "_THIRD")).after(second);
+        CauldronDAG quick = CauldronDAG.create(new MyTask()).after(first);
+        CauldronDAG.create(new SillyTask(run + "_END")).after(third, quick)
+                .submit(DurationEstimates.create().type(SillyTask.class, 10.0).defaultDuration(1.0));
+
+        Assert.assertEquals(-40.0 / 41.0, priority(run + "_FIRST"), 1e-9);
+        Assert.assertEquals(-30.0 / 31.0, priority(run + "_SECOND"), 1e-9);
+        Assert.assertEquals(-20.0 / 21.0, priority(run + "_THIRD"), 1e-9);
+        Assert.assertEquals(-10.0 / 11.0, priority(run + "_END"), 1e-9);
+        // The root of the long chain is claimed before the unrelated task
+        Document claimed = Cauldron.get().getMongoQueue().get(new Document("thing", new Document("$in",
+                Arrays.asList(run + "_FIRST", run + "_PLAIN"))), 60, 10, 1, "critical");
+        Assert.assertEquals(run + "_FIRST", claimed.getString("thing"));
+    }
+
+    private static double priority(String thing) {
+        for (Cauldron.TaskMeta meta : Cauldron.get().getTasksMetaData(TaskQuery.create().payload("thing", thing))) {
+            return meta.getPriority();
+        }
+        throw new AssertionError("No task " + thing);
+    }
+}
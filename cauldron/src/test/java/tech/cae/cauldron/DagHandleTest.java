@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class DagHandleTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws CauldronException, InterruptedException, ExecutionException, TimeoutException {
+        Cauldron cauldron = Cauldron.get();
+        String run = UUID.randomUUID().toString();
+        SillyTask root = new SillyTask(run + "_ROOT");
+        CauldronDAG left = CauldronDAG.create(new SillyTask(run + "_LEFT")).after(root);
+        CauldronDAG right = CauldronDAG.create(new SillyTask(run + "_RIGHT")).after(root);
+        DagHandle handle = CauldronDAG.create(new SillyTask(run + "_LEAF")).after(left, right).submit();
+
+        Assert.assertEquals(4, handle.getTaskIds().size());
+        Assert.assertEquals(1L, (long) handle.getCounts().get(CauldronStatus.Queued));
+        Assert.assertEquals(3L, (long) handle.getCounts().get(CauldronStatus.Blocked));
+        Assert.assertEquals(0.0, handle.getProgress(), 1e-9);
+        Assert.assertFalse(handle.getCompletion().isDone());
+
+        for (String thing : new String[]{"_ROOT", "_LEFT", "_RIGHT", "_LEAF"}) {
+            for (Cauldron.TaskMeta meta : cauldron.getTasksMetaData(TaskQuery.create().payload("thing", run + thing))) {
+                cauldron.completed(cauldron.getTask(meta.getId()), CauldronStatus.Completed);
+            }
+        }
+        Assert.assertSame(handle, handle.getCompletion().get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(4L, (long) handle.getCounts().get(CauldronStatus.Completed));
+        Assert.assertEquals(1.0, handle.getProgress(), 1e-9);
+    }
+}
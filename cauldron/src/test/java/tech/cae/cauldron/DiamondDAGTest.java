@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.UUID;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+
+/**
+ *
+ * @author peter
+ */
+public class DiamondDAGTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() {
+        String run = UUID.randomUUID().toString();
+        SillyTask root = new SillyTask(run + "_ROOT");
+        CauldronDAG left = CauldronDAG.create(new SillyTask(run + "_LEFT")).after(root);
+        CauldronDAG right = CauldronDAG.create(new SillyTask(run + "_RIGHT")).after(root);
+        CauldronDAG.IdAndStatus leaf = CauldronDAG.create(new SillyTask(run + "_LEAF")).after(left, right).submit();
+        Assert.assertEquals(CauldronStatus.Blocked, leaf.getStatus());
+        int roots = 0;
+        for (Cauldron.TaskMeta meta : Cauldron.get().getTasksMetaData(TaskQuery.create().payload("thing", run + "_ROOT"))) {
+            roots++;
+        }
+        Assert.assertEquals(1, roots);
+        int all = 0;
+        for (Cauldron.TaskMeta meta : Cauldron.get().getTasksMetaData(TaskQuery.create().payload("thing", new Document("$regex", "^" + run)))) {
+            all++;
+        }
+        Assert.assertEquals(4, all);
+    }
+
+    @Test
+    public void testStagedRelease() {
+        String run = UUID.randomUUID().toString();
+        CauldronDAG root = CauldronDAG.create(new SillyTask(run + "_ROOT"));
+        CauldronDAG.create(new SillyTask(run + "_CHILD")).after(root).submit();
+        Document thing = new Document("$regex", "^" + run);
+        int queued = 0;
+        for (Cauldron.TaskMeta meta : Cauldron.get().getTasksMetaData(TaskQuery.create().payload("thing", thing).status(CauldronStatus.Queued))) {
+            queued++;
+        }
+        int blocked = 0;
+        for (Cauldron.TaskMeta meta : Cauldron.get().getTasksMetaData(TaskQuery.create().payload("thing", thing).status(CauldronStatus.Blocked))) {
+            blocked++;
+        }
+        Assert.assertEquals(1, queued);
+        Assert.assertEquals(1, blocked);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class FailureCascadeTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws CauldronException {
+        String run = UUID.randomUUID().toString();
+        SillyTask root = new SillyTask(run + "_ROOT");
+        CauldronDAG child = CauldronDAG.create(new SillyTask(run + "_CHILD")).after(root);
+        CauldronDAG grandchild = CauldronDAG.create(new SillyTask(run + "_GRANDCHILD")).after(child);
+        CauldronDAG.create(new SillyTask(run + "_CLEANUP")).afterFinished(grandchild).submit();
+
+        Cauldron cauldron = Cauldron.get();
+        Assert.assertEquals(CauldronStatus.Queued, status(run + "_ROOT").getStatus());
+        Assert.assertEquals(CauldronStatus.Blocked, status(run + "_CLEANUP").getStatus());
+        cauldron.completed(cauldron.getTask(status(run + "_ROOT").getId()), CauldronStatus.Failed);
+
+        Assert.assertEquals(CauldronStatus.Cancelled, status(run + "_CHILD").getStatus());
+        Assert.assertEquals(CauldronStatus.Cancelled, status(run + "_GRANDCHILD").getStatus());
+        Assert.assertEquals(CauldronStatus.Queued, status(run + "_CLEANUP").getStatus());
+    }
+
+    private static Cauldron.TaskMeta status(String thing) {
+        for (Cauldron.TaskMeta meta : Cauldron.get().getTasksMetaData(TaskQuery.create().payload("thing", thing))) {
+            return meta;
+        }
+        throw new AssertionError("No task " + thing);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class ForkJoinTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws CauldronException {
+        Cauldron cauldron = Cauldron.get();
+        String run = UUID.randomUUID().toString();
+        String parent = cauldron.submit(new SillyTask(run + "_PARENT")).getId();
+        List<SillyTask> children = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            children.add(new SillyTask(run + "_CHILD"));
+        }
+        String join = cauldron.fork(parent, children, new CountingJoinTask());
+        Assert.assertEquals(CauldronStatus.Blocked, cauldron.getTaskMeta(join).getStatus());
+
+        cauldron.completed(cauldron.getTask(parent), CauldronStatus.Completed);
+        List<String> childIds = new ArrayList<>();
+        for (Cauldron.TaskMeta meta : cauldron.getTasksMetaData(TaskQuery.create().payload("thing", run + "_CHILD"))) {
+            childIds.add(meta.getId());
+        }
+        Assert.assertEquals(5, childIds.size());
+        for (String child : childIds) {
+            Assert.assertEquals(CauldronStatus.Blocked, cauldron.getTaskMeta(join).getStatus());
+            cauldron.completed(cauldron.getTask(child), CauldronStatus.Completed);
+        }
+        // Acknowledging a child again must not count it twice
+        cauldron.completed(cauldron.getTask(childIds.get(0)), CauldronStatus.Completed);
+        Assert.assertEquals(CauldronStatus.Queued, cauldron.getTaskMeta(join).getStatus());
+
+        CountingJoinTask joinTask = (CountingJoinTask) cauldron.getTask(join);
+        cauldron.join(joinTask, 2);
+        Assert.assertEquals(Arrays.asList(2, 2, 1), joinTask.batches);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author peter
+ */
+public class IdempotentSubmitTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() {
+        String key = UUID.randomUUID().toString();
+        String first = Cauldron.get().submit(new SillyTask("ONCE"), key).getId();
+        Assert.assertEquals(first, Cauldron.get().submit(new SillyTask("ONCE"), key).getId());
+        String other = UUID.randomUUID().toString();
+        List<Cauldron.SubmitResponse> responses = Cauldron.get().submitMulti(
+                Arrays.asList(new SillyTask("ONCE"), new SillyTask("NEW"), new SillyTask("NEW"), new SillyTask("NONE")),
+                Arrays.asList(key, other, other, null));
+        Assert.assertEquals(first, responses.get(0).getId());
+        Assert.assertEquals(responses.get(1).getId(), responses.get(2).getId());
+        Assert.assertNotEquals(first, responses.get(3).getId());
+    }
+}
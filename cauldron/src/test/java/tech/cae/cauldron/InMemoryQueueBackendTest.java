@@ -0,0 +1,330 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class InMemoryQueueBackendTest {
+
+    private static final List<String> TYPES = Collections.singletonList(SillyTask.class.getName());
+
+    @Test
+    public void testSubmitAndComplete() throws InterruptedException, ExecutionException, TimeoutException, CauldronException {
+        Cauldron cauldron = new Cauldron(new InMemoryQueueBackend());
+        Thread worker = new Thread(() -> {
+            try {
+                CauldronTask task = cauldron.getDistributor().get("node:1");
+                cauldron.progress(task.getId(), Arrays.asList("ignored"), 0.5, 60, "node:1");
+                cauldron.completed(task, CauldronStatus.Completed);
+            } catch (InterruptedException | CauldronException ex) {
+            }
+        });
+        worker.start();
+        String id = cauldron.submit(new SillyTask("IN_MEMORY")).getId();
+        SillyTask done = (SillyTask) cauldron.getCompletion(id).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals("IN_MEMORY", done.thing);
+        Cauldron.TaskMeta meta = cauldron.getTaskMeta(id);
+        Assert.assertEquals(CauldronStatus.Completed, meta.getStatus());
+        Assert.assertEquals("node:1", meta.getWorker());
+        Assert.assertTrue(meta.getRunTime() >= 0L);
+        worker.join(10000);
+    }
+
+    @Test
+    public void testPriorityOrder() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        String low = backend.send(payload("LOW"), new Date(), 2.0, Collections.emptyList(), null);
+        String high = backend.send(payload("HIGH"), new Date(), 0.0, Collections.emptyList(), null);
+        String later = backend.send(payload("LATER"), new Date(), 2.0, Collections.emptyList(), null);
+        Assert.assertEquals(high, backend.claim(TYPES, 60, "node:1").getString("id"));
+        Assert.assertEquals(low, backend.claim(TYPES, 60, "node:1").getString("id"));
+        Assert.assertEquals(later, backend.claim(TYPES, 60, "node:1").getString("id"));
+        Assert.assertNull(backend.claim(TYPES, 60, "node:1"));
+    }
+
+    @Test
+    public void testDependencies() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        String root = backend.send(payload("ROOT"), new Date(), 0.0, Collections.emptyList(), null);
+        String left = backend.send(payload("LEFT"), new Date(), 0.0, Arrays.asList(root), null);
+        String right = backend.send(payload("RIGHT"), new Date(), 0.0, Arrays.asList(root), null);
+        String join = backend.send(payload("JOIN"), new Date(), 0.0, Arrays.asList(left, right), null);
+        Assert.assertEquals("blocked", backend.find(join, null).getString("status"));
+
+        ack(backend, backend.claim(TYPES, 60, "node:1"), "completed");
+        Assert.assertEquals("queued", backend.find(left, null).getString("status"));
+        ack(backend, backend.claim(TYPES, 60, "node:1"), "completed");
+        Assert.assertEquals("blocked", backend.find(join, null).getString("status"));
+        ack(backend, backend.claim(TYPES, 60, "node:1"), "completed");
+        Assert.assertEquals(join, backend.claim(TYPES, 60, "node:1").getString("id"));
+
+        // A task after a finished parent waits only for its other parents
+        String after = backend.send(payload("AFTER"), new Date(), 0.0, Arrays.asList(root), null);
+        Assert.assertEquals("queued", backend.find(after, null).getString("status"));
+    }
+
+    @Test
+    public void testFailureCascade() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        String root = backend.send(payload("ROOT"), new Date(), 0.0, Collections.emptyList(), null);
+        String child = backend.send(payload("CHILD"), new Date(), 0.0, Arrays.asList(root), null);
+        String grandchild = backend.send(payload("GRANDCHILD"), new Date(), 0.0, Arrays.asList(child), null);
+        ack(backend, backend.claim(TYPES, 60, "node:1"), "failed");
+        Assert.assertEquals("cancelled", backend.find(child, null).getString("status"));
+        Assert.assertEquals("cancelled", backend.find(grandchild, null).getString("status"));
+        Assert.assertNull(backend.claim(TYPES, 60, "node:1"));
+        String late = backend.send(payload("LATE"), new Date(), 0.0, Arrays.asList(root), null);
+        Assert.assertEquals("cancelled", backend.find(late, null).getString("status"));
+    }
+
+    @Test
+    public void testLapsedClaim() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        String id = backend.send(payload("LAPSE"), new Date(), 0.0, Collections.emptyList(), null);
+        Assert.assertEquals(id, backend.claim(TYPES, 0, "node:1").getString("id"));
+        Document again = backend.claim(TYPES, 60, "node:2");
+        Assert.assertEquals(id, again.getString("id"));
+        Assert.assertEquals(1, (int) backend.find(id, null).getInteger("attempt"));
+        Assert.assertEquals("node:2", backend.find(id, null).getString("worker"));
+    }
+
+    @Test
+    public void testProgressOnlyWhileRunningForWorker() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        String id = backend.send(payload("PROGRESS"), new Date(), 0.0, Collections.emptyList(), null);
+        backend.progress(id, 0.5, 60, "node:1");
+        Assert.assertEquals("queued", backend.find(id, null).getString("status"));
+        backend.claim(TYPES, 60, "node:1");
+        backend.progress(id, 0.5, 60, "node:2");
+        Assert.assertEquals(0.0, backend.find(id, null).getDouble("progress"), 0.0);
+        backend.progress(id, 0.5, 60, "node:1");
+        Assert.assertEquals(0.5, backend.find(id, null).getDouble("progress"), 0.0);
+        ack(backend, backend.find(id, null).get("payload", Document.class).append("id", id), "completed");
+        backend.progress(id, 0.8, 60, "node:1");
+        Assert.assertEquals("completed", backend.find(id, null).getString("status"));
+        Assert.assertEquals(0.5, backend.find(id, null).getDouble("progress"), 0.0);
+    }
+
+    @Test
+    public void testKeysAndPurge() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        List<String> ids = backend.sendMulti(Arrays.asList(payload("A"), payload("B")), Arrays.asList("key", "key"), new Date(), 0.0);
+        Assert.assertEquals(ids.get(0), ids.get(1));
+        ack(backend, backend.claim(TYPES, 60, "node:1"), "completed");
+        Assert.assertEquals(1, backend.purge(new Date(System.currentTimeMillis() + 1000L)));
+        Assert.assertNull(backend.find(ids.get(0), null));
+        Assert.assertNotEquals(ids.get(0), backend.send(payload("C"), new Date(), 0.0, Collections.emptyList(), "key"));
+    }
+
+    @Test
+    public void testArchive() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        String id = backend.send(payload("ARCHIVED"), new Date(), 0.0, Collections.emptyList(), "archived");
+        ack(backend, backend.claim(TYPES, 60, "node:1"), "completed");
+        Assert.assertEquals(1, backend.archive(new Date(System.currentTimeMillis() + 1000L)));
+        Assert.assertNull(backend.find(id, null));
+        Assert.assertEquals("completed", backend.findAll(Arrays.asList(id), null).get(0).getString("status"));
+        Assert.assertFalse(backend.list(TaskQuery.create(), null).iterator().hasNext());
+        Assert.assertEquals(id, backend.send(payload("AGAIN"), new Date(), 0.0, Collections.emptyList(), "archived"));
+        // Archived parents are still waited on by their status
+        Assert.assertEquals("queued", backend.find(backend.send(payload("CHILD"), new Date(), 0.0, Arrays.asList(id), null), null)
+                .getString("status"));
+        Assert.assertEquals(1, backend.purge(new Date(System.currentTimeMillis() + 1000L)));
+        Assert.assertTrue(backend.findAll(Arrays.asList(id), null).isEmpty());
+    }
+
+    @Test
+    public void testForkAndJoin() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        backend.send(payload("PARENT"), new Date(), 0.0, Collections.emptyList(), null);
+        Document parent = backend.claim(TYPES, 60, "node:1");
+        String join = backend.fork(parent.getString("id"), Arrays.asList(payload("LEFT"), payload("RIGHT")), payload("JOIN"), 0.0);
+        ack(backend, parent, "completed");
+        Document left = backend.claim(TYPES, 60, "node:1");
+        Document right = backend.claim(TYPES, 60, "node:1");
+        ack(backend, left, "failed");
+        Assert.assertEquals("blocked", backend.find(join, null).getString("status"));
+        ack(backend, right, "completed");
+        // A failed child does not cancel the join, which is passed only the completed ones
+        Assert.assertEquals(join, backend.claim(TYPES, 60, "node:1").getString("id"));
+        List<String> joined = new ArrayList<>();
+        backend.joined(join, 10).forEach(child -> joined.add(child.getObjectId("_id").toHexString()));
+        Assert.assertEquals(Arrays.asList(right.getString("id")), joined);
+    }
+
+    @Test
+    public void testAffinity() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        backend.setAffinityWindow(60000L);
+        String parent = backend.send(payload("PARENT"), new Date(), 0.0, Collections.emptyList(), null);
+        String child = backend.send(payload("CHILD"), new Date(), 0.0, Arrays.asList(parent), null);
+        ack(backend, backend.claim(TYPES, 60, "nodeA:1"), "completed");
+        Assert.assertNull(backend.claim(TYPES, 60, "nodeB:1"));
+        Assert.assertEquals(child, backend.claim(TYPES, 60, "nodeA:2").getString("id"));
+    }
+
+    @Test
+    public void testListingStatsAndLogs() throws CauldronException, InterruptedException {
+        Cauldron cauldron = new Cauldron(new InMemoryQueueBackend());
+        String first = cauldron.submit(new SillyTask("LIST_A")).getId();
+        String second = cauldron.submit(new SillyTask("LIST_B")).getId();
+        List<String> listed = new ArrayList<>();
+        cauldron.getTasksMetaData(TaskQuery.create().payload("thing", new Document("$in", Arrays.asList("LIST_A", "LIST_B"))).newestFirst())
+                .forEach(meta -> listed.add(meta.getId()));
+        Assert.assertEquals(Arrays.asList(second, first), listed);
+        Assert.assertEquals(2L, cauldron.getQueueStats(0L).getCount(SillyTask.class.getName(), CauldronStatus.Queued));
+
+        CauldronTask task = cauldron.getDistributor().get("node:1");
+        cauldron.progress(task.getId(), Arrays.asList("one", " ", "two"), 0.5, 60, "node:1");
+        Assert.assertEquals(Arrays.asList("one", "two"), cauldron.getTaskLogs(task.getId()));
+        Assert.assertEquals(Arrays.asList("two"), cauldron.getTaskLogs(task.getId(), 1, 0));
+        cauldron.completed(task, CauldronStatus.Completed);
+        Assert.assertEquals(1L, cauldron.getQueueStats(0L).getCount(SillyTask.class.getName(), CauldronStatus.Completed));
+        Assert.assertEquals(1L, cauldron.getPhaseStats(new Date(0L)).getCount(PhaseStats.Phase.Running, SillyTask.class.getName()));
+
+        cauldron.resubmit(task.getId());
+        Assert.assertEquals(CauldronStatus.Queued, cauldron.getTaskMeta(task.getId()).getStatus());
+        Assert.assertEquals(0, cauldron.getTaskMeta(task.getId()).getAttempt());
+    }
+
+    @Test
+    public void testGraph() throws CauldronException, InterruptedException, ExecutionException, TimeoutException {
+        Cauldron cauldron = new Cauldron(new InMemoryQueueBackend());
+        String failed = cauldron.submit(new SillyTask("GRAPH_FAILED")).getId();
+        cauldron.completed(cauldron.getDistributor().get("node:1"), CauldronStatus.Failed);
+        CauldronDAG leaf = CauldronDAG.create(new SillyTask("GRAPH_LEAF")).after(new SillyTask("GRAPH_ROOT"));
+        CauldronDAG doomed = CauldronDAG.create(new SillyTask("GRAPH_DOOMED")).after(failed);
+        DagHandle handle = CauldronDAG.create(new SillyTask("GRAPH_JOIN")).afterFinished(leaf, doomed).submit(cauldron);
+        Assert.assertEquals(4, handle.getTaskIds().size());
+        Assert.assertEquals(1L, (long) handle.getCounts().get(CauldronStatus.Queued));
+        Assert.assertEquals(2L, (long) handle.getCounts().get(CauldronStatus.Blocked));
+        Assert.assertEquals(1L, (long) handle.getCounts().get(CauldronStatus.Cancelled));
+        Assert.assertEquals(0.25, handle.getProgress(), 1e-9);
+        for (String thing : new String[]{"GRAPH_ROOT", "GRAPH_LEAF", "GRAPH_JOIN"}) {
+            CauldronTask task = cauldron.getDistributor().get("node:1");
+            Assert.assertEquals(thing, ((SillyTask) task).thing);
+            cauldron.completed(task, CauldronStatus.Completed);
+        }
+        Assert.assertSame(handle, handle.getCompletion().get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(3L, (long) handle.getCounts().get(CauldronStatus.Completed));
+        Assert.assertEquals(1.0, handle.getProgress(), 1e-9);
+    }
+
+    @Test
+    public void testTasksRunByClaimingWorker() throws CauldronException, InterruptedException {
+        Cauldron cauldron = new Cauldron(new InMemoryQueueBackend());
+        Distributor distributor = cauldron.getDistributor();
+        int tasks = 200;
+        AtomicInteger done = new AtomicInteger();
+        List<String> mismatches = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String name = "node:" + i;
+            workers.add(new Thread(() -> {
+                try {
+                    while (true) {
+                        CauldronTask task = distributor.get(name);
+                        // The claim names the worker running the task, so its progress is kept
+                        cauldron.progress(task.getId(), Collections.emptyList(), 0.5, 60, name);
+                        Cauldron.TaskMeta meta = cauldron.getTaskMeta(task.getId());
+                        if (!name.equals(meta.getWorker()) || meta.getProgress() != 0.5) {
+                            mismatches.add(task.getId() + " run by " + name + " claimed by " + meta.getWorker());
+                        }
+                        cauldron.completed(task, CauldronStatus.Completed);
+                        done.incrementAndGet();
+                    }
+                } catch (InterruptedException ex) {
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (int i = 0; i < tasks; i++) {
+            cauldron.submit(new SillyTask("HAND_OFF" + i));
+        }
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (done.get() < tasks && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        workers.forEach(Thread::interrupt);
+        for (Thread worker : workers) {
+            worker.join(10000L);
+        }
+        Assert.assertEquals(tasks, done.get());
+        Assert.assertEquals(Collections.emptyList(), mismatches);
+        Assert.assertEquals(0, distributor.getWaitingWorkers());
+        Assert.assertEquals(0, distributor.getReadyTasks());
+    }
+
+    @Test
+    public void testCompletionOfUnknownTask() throws InterruptedException {
+        Cauldron cauldron = new Cauldron(new InMemoryQueueBackend());
+        try {
+            cauldron.getCompletion(new ObjectId().toHexString()).get();
+            Assert.fail("Completed for a task that does not exist");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof CauldronException);
+        }
+    }
+
+    @Test
+    public void testDistributorUnregisteredOnPause() throws CauldronException, JMException {
+        ObjectName pattern = new ObjectName(CauldronMetrics.DOMAIN + ":type=Distributor,*");
+        Set<ObjectName> before = ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null);
+        Distributor distributor = new Cauldron(new InMemoryQueueBackend()).getDistributor();
+        Assert.assertEquals(before.size() + 1, ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).size());
+        distributor.pause();
+        Assert.assertEquals(before, ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null));
+    }
+
+    private static Document payload(String thing) {
+        return new Document("type", SillyTask.class.getName()).append("thing", thing);
+    }
+
+    private static void ack(InMemoryQueueBackend backend, Document claimed, String status) {
+        backend.ack(claimed, status);
+    }
+}
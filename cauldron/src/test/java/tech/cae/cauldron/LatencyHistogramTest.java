@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author peter
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0L, histogram.get50thPercentile());
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100L, histogram.getCount());
+        Assert.assertEquals(50.5, histogram.getMean(), 1e-9);
+        Assert.assertEquals(100L, histogram.getMax());
+        // 50 falls in the bucket [32, 63], 99 in [64, 127] capped at the maximum
+        Assert.assertEquals(63L, histogram.get50thPercentile());
+        Assert.assertEquals(100L, histogram.get99thPercentile());
+    }
+
+    @Test
+    public void testRegistered() throws JMException {
+        CauldronMetrics.get().histogram(CauldronMetrics.RUN_TIME, SillyTask.class.getName()).record(10L);
+        ObjectName name = new ObjectName(CauldronMetrics.DOMAIN + ":type=Histogram,metric=" + CauldronMetrics.RUN_TIME
+                + ",taskType=" + ObjectName.quote(SillyTask.class.getName()));
+        Assert.assertTrue((Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count") >= 1L);
+        Assert.assertNotNull(ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName(CauldronMetrics.DOMAIN + ":type=Metrics"), "EmptyPollRate"));
+    }
+}
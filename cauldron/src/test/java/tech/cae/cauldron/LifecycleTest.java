@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class LifecycleTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws CauldronException {
+        Cauldron cauldron = Cauldron.get();
+        Date since = new Date(System.currentTimeMillis() - 1000L);
+        String run = UUID.randomUUID().toString();
+        DagHandle child = CauldronDAG.create(new SillyTask(run + "_CHILD")).after(new SillyTask(run + "_PARENT")).submit();
+
+        Document claimed = cauldron.getMongoQueue().get(new Document("thing", run + "_PARENT"), 60, 10, 1, "nodeA:1");
+        Assert.assertNotNull(claimed);
+        String parent = claimed.getString("id");
+        Cauldron.TaskMeta meta = cauldron.getTaskMeta(parent);
+        Assert.assertEquals("nodeA:1", meta.getWorker());
+        Assert.assertNotNull(meta.getClaimed());
+        Assert.assertNull(meta.getStarted());
+        Assert.assertTrue(meta.getQueueWait() >= 0L);
+        Assert.assertEquals(-1L, meta.getRunTime());
+
+        cauldron.progress(parent, Arrays.asList(), 0.5, 60, "nodeA:1");
+        cauldron.completed(cauldron.deserialize(claimed), CauldronStatus.Completed);
+        meta = cauldron.getTaskMeta(parent);
+        Assert.assertNotNull(meta.getStarted());
+        Assert.assertTrue(meta.getStartDelay() >= 0L);
+        Assert.assertTrue(meta.getRunTime() >= 0L);
+        Assert.assertEquals(-1L, meta.getBlockedTime());
+
+        Cauldron.TaskMeta childMeta = cauldron.getTaskMeta(child.getId());
+        Assert.assertEquals(CauldronStatus.Queued, childMeta.getStatus());
+        Assert.assertNotNull(childMeta.getUnblocked());
+        Assert.assertTrue(childMeta.getBlockedTime() >= 0L);
+
+        PhaseStats stats = cauldron.getPhaseStats(since);
+        Assert.assertTrue(stats.getCount(PhaseStats.Phase.Running, SillyTask.class.getName()) >= 1L);
+        Assert.assertTrue(stats.getPercentile(PhaseStats.Phase.Queued, 50.0) >= 1L);
+    }
+}
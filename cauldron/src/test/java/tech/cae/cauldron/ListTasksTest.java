@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+
+/**
+ *
+ * @author peter
+ */
+public class ListTasksTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() {
+        List<SillyTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            tasks.add(new SillyTask("LIST_" + i));
+        }
+        Cauldron.get().submitMulti(tasks);
+        TaskQuery query = TaskQuery.create()
+                .type(SillyTask.class)
+                .status(CauldronStatus.Queued)
+                .payload("thing", new Document("$regex", "^LIST_"))
+                .limit(10)
+                .batchSize(4);
+        List<String> seen = new ArrayList<>();
+        Cauldron.TaskMeta last = null;
+        do {
+            int count = 0;
+            for (Cauldron.TaskMeta meta : Cauldron.get().getTasksMetaData(query)) {
+                Assert.assertFalse(seen.contains(meta.getId()));
+                if (last != null) {
+                    Assert.assertFalse(meta.getCreated().before(last.getCreated()));
+                }
+                seen.add(meta.getId());
+                last = meta;
+                count++;
+            }
+            if (count < 10) {
+                break;
+            }
+            query.after(last);
+        } while (true);
+        Assert.assertEquals(25, seen.size());
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author peter
+ */
+public class LogQueueBackendTest {
+
+    private static final List<String> TYPES = Collections.singletonList(SillyTask.class.getName());
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecovery() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        String root, child, queued, running;
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            root = backend.send(payload("ROOT"), new Date(), 0.0, Collections.emptyList(), null);
+            child = backend.send(payload("CHILD"), new Date(), 0.0, Arrays.asList(root), null);
+            queued = backend.send(payload("QUEUED"), new Date(), 1.0, Collections.emptyList(), "key");
+            Document claimed = backend.claim(TYPES, 60, "node:1");
+            Assert.assertEquals(root, claimed.getString("id"));
+            backend.ack(claimed.append("result", "done"), "completed");
+            running = backend.claim(TYPES, 60, "node:2").getString("id");
+            Assert.assertEquals(child, running);
+            backend.progress(running, 0.5, 60, "node:2");
+        }
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            Assert.assertEquals("completed", backend.find(root, null).getString("status"));
+            Assert.assertEquals("done", backend.find(root, null).get("payload", Document.class).getString("result"));
+            Document message = backend.find(running, null);
+            Assert.assertEquals("running", message.getString("status"));
+            Assert.assertEquals("node:2", message.getString("worker"));
+            Assert.assertEquals(0.5, message.getDouble("progress"), 0.0);
+            Assert.assertEquals("queued", backend.find(queued, null).getString("status"));
+            // The key is still taken, and the running task is not claimed again while its claim holds
+            Assert.assertEquals(queued, backend.send(payload("AGAIN"), new Date(), 0.0, Collections.emptyList(), "key"));
+            Assert.assertEquals(queued, backend.claim(TYPES, 60, "node:1").getString("id"));
+            Assert.assertNull(backend.claim(TYPES, 60, "node:1"));
+        }
+    }
+
+    @Test
+    public void testLapsedClaimAfterRestart() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        String id;
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            id = backend.send(payload("LAPSE"), new Date(), 0.0, Collections.emptyList(), null);
+            backend.claim(TYPES, 0, "node:1");
+        }
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            Assert.assertEquals(id, backend.claim(TYPES, 60, "node:2").getString("id"));
+            Assert.assertEquals(1, (int) backend.find(id, null).getInteger("attempt"));
+        }
+    }
+
+    @Test
+    public void testRetryAfterRestart() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        String id;
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            id = backend.send(payload("RETRY"), new Date(), 0.0, Collections.emptyList(), null);
+            Document claimed = backend.claim(TYPES, 60, "node:1");
+            Assert.assertTrue(backend.retry(claimed.append("tried", true), new Date(System.currentTimeMillis() + 60000L)));
+            Assert.assertFalse(backend.retry(claimed, new Date()));
+        }
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            Document message = backend.find(id, null);
+            Assert.assertEquals("queued", message.getString("status"));
+            Assert.assertEquals(1, (int) message.getInteger("attempt"));
+            Assert.assertTrue(message.get("payload", Document.class).getBoolean("tried"));
+            // Still backing off
+            Assert.assertNull(backend.claim(TYPES, 60, "node:1"));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        List<String> ids = new ArrayList<>();
+        String blocked, cancelled;
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            for (int i = 0; i < 100; i++) {
+                ids.add(backend.send(payload("TASK" + i), new Date(), i, Collections.emptyList(), null));
+            }
+            blocked = backend.send(payload("BLOCKED"), new Date(), 0.0, Arrays.asList(ids.get(99)), null);
+            cancelled = backend.send(payload("CANCELLED"), new Date(), 0.0, Arrays.asList(ids.get(0)), null);
+            backend.ack(backend.claim(TYPES, 60, "node:1"), "failed");
+            Assert.assertTrue(folder.getRoot().listFiles().length > 2);
+            backend.compact();
+            Assert.assertEquals(2, folder.getRoot().listFiles().length);
+            backend.ack(backend.claim(TYPES, 60, "node:1"), "completed");
+        }
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            Assert.assertEquals("failed", backend.find(ids.get(0), null).getString("status"));
+            Assert.assertEquals("cancelled", backend.find(cancelled, null).getString("status"));
+            Assert.assertEquals("completed", backend.find(ids.get(1), null).getString("status"));
+            Assert.assertEquals("blocked", backend.find(blocked, null).getString("status"));
+            for (int i = 2; i < 100; i++) {
+                Assert.assertEquals(ids.get(i), backend.claim(TYPES, 60, "node:1").getString("id"));
+            }
+            Assert.assertNull(backend.claim(TYPES, 60, "node:1"));
+            backend.ack(new Document(payload("TASK99")).append("id", ids.get(99)), "completed");
+            Assert.assertEquals(blocked, backend.claim(TYPES, 60, "node:1").getString("id"));
+        }
+    }
+
+    @Test
+    public void testForkLogsAndArchiveAfterRestart() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        String parent, join, archived;
+        for (int restart = 0; restart < 2; restart++) {
+            try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+                archived = backend.send(payload("ARCHIVED"), new Date(), 0.0, Collections.emptyList(), "archived");
+                backend.ack(backend.claim(TYPES, 60, "node:1"), "completed");
+                parent = backend.send(payload("PARENT"), new Date(), 0.0, Collections.emptyList(), null);
+                Document claimed = backend.claim(TYPES, 60, "node:1");
+                join = backend.fork(parent, Arrays.asList(payload("CHILD")), payload("JOIN"), 0.0);
+                backend.appendLog(parent, Arrays.asList("forked"));
+                backend.ack(claimed, "completed");
+                Assert.assertEquals(2, backend.archive(new Date(System.currentTimeMillis() + 1000L)));
+                if (restart == 1) {
+                    // Replayed from a snapshot rather than the records
+                    backend.compact();
+                }
+            }
+            try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+                Assert.assertNull(backend.find(archived, null));
+                Assert.assertEquals(archived, backend.send(payload("AGAIN"), new Date(), 0.0, Collections.emptyList(), "archived"));
+                Assert.assertEquals(Arrays.asList("forked"), backend.readLog(parent, 0, 0));
+                Assert.assertEquals("blocked", backend.find(join, null).getString("status"));
+                Document child = backend.claim(TYPES, 60, "node:1");
+                backend.ack(child, "completed");
+                Assert.assertEquals(join, backend.claim(TYPES, 60, "node:1").getString("id"));
+                Assert.assertEquals(child.getString("id"), backend.joined(join, 10).iterator().next().getObjectId("_id").toHexString());
+            }
+            for (File file : folder.getRoot().listFiles()) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+    }
+
+    @Test
+    public void testStagedAfterRestart() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        String group = new ObjectId().toHexString();
+        List<String> ids;
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            Document root = MongoQueueCore.message(payload("ROOT"), new Date(), 0.0, Collections.emptyList(), Collections.emptyList());
+            Document leaf = MongoQueueCore.message(payload("LEAF"), new Date(), 0.0,
+                    Arrays.asList(root.getObjectId("_id").toHexString()), Collections.emptyList());
+            root.append(MongoQueueCore.GROUP, new ObjectId(group));
+            leaf.append(MongoQueueCore.GROUP, new ObjectId(group));
+            ids = backend.sendStaged(Arrays.asList(root, leaf));
+        }
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            List<String> statuses = new ArrayList<>();
+            backend.findGroup(group, null).forEach(message -> statuses.add(message.getString("status")));
+            Collections.sort(statuses);
+            Assert.assertEquals(Arrays.asList("blocked", "queued"), statuses);
+            Assert.assertEquals(2L, ((Number) backend.groupProgress(group).get("count")).longValue());
+            backend.ack(backend.claim(TYPES, 60, "node:1"), "completed");
+            Assert.assertEquals(ids.get(1), backend.claim(TYPES, 60, "node:1").getString("id"));
+            Assert.assertEquals(1.0, ((Number) backend.groupProgress(group).get("progress")).doubleValue(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testConcurrentSendAndClaimAfterRestart() throws IOException, InterruptedException {
+        Path directory = folder.getRoot().toPath();
+        int threads = 4;
+        int tasks = 250;
+        List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            AtomicInteger acked = new AtomicInteger();
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int thread = i;
+                workers.add(new Thread(() -> {
+                    for (int j = 0; j < tasks; j++) {
+                        ids.add(backend.send(payload("CONCURRENT" + thread + "_" + j), new Date(), 0.0, Collections.emptyList(), null));
+                    }
+                }));
+                workers.add(new Thread(() -> {
+                    // Claim each task as soon as it is sent, so claims race the records of their sends
+                    while (acked.get() < threads * tasks) {
+                        Document claimed = backend.claim(TYPES, 60, "node:" + thread);
+                        if (claimed != null) {
+                            backend.ack(claimed, "completed");
+                            acked.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            workers.forEach(Thread::start);
+            for (Thread worker : workers) {
+                worker.join(60000L);
+            }
+            Assert.assertEquals(threads * tasks, acked.get());
+        }
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            for (String id : ids) {
+                Assert.assertEquals("completed", backend.find(id, null).getString("status"));
+            }
+            Assert.assertNull(backend.claim(TYPES, 60, "node:1"));
+        }
+    }
+
+    @Test
+    public void testWaitForDiskInterruptedOrClosed() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE);
+        Thread.currentThread().interrupt();
+        try {
+            backend.send(payload("INTERRUPTED"), new Date(), 0.0, Collections.emptyList(), null);
+            Assert.fail("Returned before the record was on disk");
+        } catch (UncheckedIOException ex) {
+            Assert.assertTrue(ex.getCause() instanceof InterruptedIOException);
+            Assert.assertTrue(Thread.interrupted());
+        }
+        backend.close();
+        try {
+            backend.send(payload("CLOSED"), new Date(), 0.0, Collections.emptyList(), null);
+            Assert.fail("Returned after the log was closed");
+        } catch (IllegalStateException ex) {
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        String kept;
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            kept = backend.send(payload("KEPT"), new Date(), 0.0, Collections.emptyList(), null);
+            backend.send(payload("TORN"), new Date(), 0.0, Collections.emptyList(), null);
+        }
+        // Corrupt the last byte of the second record
+        File segment = folder.getRoot().listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            int first = file.readInt();
+            file.seek(8 + first);
+            int second = file.readInt();
+            file.seek(8 + first + 8 + second - 2);
+            file.writeByte(0x7f);
+        }
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            Assert.assertEquals(kept, backend.claim(TYPES, 60, "node:1").getString("id"));
+            Assert.assertNull(backend.claim(TYPES, 60, "node:1"));
+            // Appends continue after the last good record
+            String after = backend.send(payload("AFTER"), new Date(), 0.0, Collections.emptyList(), null);
+            Assert.assertEquals(after, backend.claim(TYPES, 60, "node:1").getString("id"));
+        }
+        try (LogQueueBackend backend = new LogQueueBackend(directory, SEGMENT_SIZE)) {
+            Assert.assertEquals("running", backend.find(kept, null).getString("status"));
+        }
+    }
+
+    private static Document payload(String thing) {
+        return new Document("type", SillyTask.class.getName()).append("thing", thing);
+    }
+}
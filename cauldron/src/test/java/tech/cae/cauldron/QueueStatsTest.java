@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+
+/**
+ *
+ * @author peter
+ */
+public class QueueStatsTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() {
+        long before = Cauldron.get().getQueueStats(0).getCount(AddingTask.class.getName(), CauldronStatus.Queued);
+        List<AddingTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            tasks.add(new AddingTask());
+        }
+        Cauldron.get().submitMulti(tasks);
+        QueueStats stats = Cauldron.get().getQueueStats(0);
+        Assert.assertEquals(before + 20, stats.getCount(AddingTask.class.getName(), CauldronStatus.Queued));
+        Assert.assertTrue(stats.getWaitPercentile(50) > 0);
+        Assert.assertTrue(stats.getWaitPercentile(95) >= stats.getWaitPercentile(50));
+        Assert.assertSame(stats, Cauldron.get().getQueueStats());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class RetentionTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws CauldronException, InterruptedException {
+        String key = UUID.randomUUID().toString();
+        String id = Cauldron.get().submit(new SillyTask("ARCHIVE_ME"), key).getId();
+        CauldronTask task;
+        do {
+            task = Cauldron.get().deserialize(Cauldron.get().getMongoQueue().get(
+                    new Document("type", new Document("$in", Arrays.asList(SillyTask.class.getName()))), 60, 10, 1, "retention"));
+            Cauldron.get().completed(task, CauldronStatus.Completed);
+        } while (!id.equals(task.getId()));
+        Cauldron.get().setRetentionPolicy(RetentionPolicy.archive(Duration.ZERO).interval(Duration.ofMillis(100)));
+        try {
+            boolean archived = false;
+            for (int i = 0; i < 100 && !archived; i++) {
+                Thread.sleep(100);
+                archived = Cauldron.get().getMongoQueue().find(id, null) == null;
+            }
+            Assert.assertTrue(archived);
+            Assert.assertEquals(CauldronStatus.Completed, Cauldron.get().getTaskMeta(id).getStatus());
+            Assert.assertEquals(id, Cauldron.get().getTask(id).getId());
+            Assert.assertNotNull(Cauldron.get().getCompletion(id).getNow(null));
+            // Its deduplication key is still taken
+            Assert.assertEquals(id, Cauldron.get().submit(new SillyTask("ARCHIVE_ME_AGAIN"), key).getId());
+            Assert.assertEquals(Arrays.asList(id), Cauldron.get().getMongoQueue().sendMulti(
+                    Arrays.asList(new Document("type", SillyTask.class.getName())), Arrays.asList(key), new Date(), 0.0));
+        } finally {
+            Cauldron.get().setRetentionPolicy(null);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.CauldronStatus;
+import tech.cae.cauldron.api.CauldronTask;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class RetryPolicyTest {
+
+    private static final List<String> TYPES = Collections.singletonList(SillyTask.class.getName());
+
+    @Test
+    public void testBackoff() {
+        RetryPolicy policy = RetryPolicy.attempts(3).backoff(Duration.ofMillis(100), Duration.ofMillis(300)).jitter(0.0);
+        Assert.assertEquals(100L, policy.getBackoff(0));
+        Assert.assertEquals(200L, policy.getBackoff(1));
+        Assert.assertEquals(300L, policy.getBackoff(2));
+        Assert.assertEquals(300L, policy.getBackoff(40));
+        Assert.assertTrue(policy.canRetry(1));
+        Assert.assertFalse(policy.canRetry(2));
+        policy.jitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long backoff = policy.getBackoff(0);
+            Assert.assertTrue(backoff >= 50L && backoff <= 100L);
+        }
+    }
+
+    @Test
+    public void testRetryable() {
+        RetryPolicy policy = RetryPolicy.attempts(3).retryOn(IOException.class).abortOn(FileNotFoundException.class);
+        Assert.assertTrue(policy.isRetryable(null));
+        Assert.assertTrue(policy.isRetryable(new IOException()));
+        Assert.assertTrue(policy.isRetryable(new RuntimeException(new IOException())));
+        Assert.assertFalse(policy.isRetryable(new FileNotFoundException()));
+        Assert.assertFalse(policy.isRetryable(new IllegalStateException()));
+        Assert.assertTrue(RetryPolicy.attempts(3).isRetryable(new IllegalStateException()));
+    }
+
+    @Test
+    public void testFailedWithBackoff() throws CauldronException, InterruptedException {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        Cauldron cauldron = new Cauldron(backend);
+        cauldron.setRetryPolicy(SillyTask.class, RetryPolicy.attempts(2)
+                .backoff(Duration.ofMillis(200), Duration.ofMillis(200)).jitter(0.0));
+        String id = cauldron.submit(new SillyTask("RETRY")).getId();
+        String child = cauldron.submit(new SillyTask("CHILD"), 0, Arrays.asList(id)).getId();
+
+        CauldronTask task = cauldron.deserialize(backend.claim(TYPES, 60, "node:1"));
+        Assert.assertTrue(cauldron.failed(task, new IOException("flaky")));
+        Cauldron.TaskMeta meta = cauldron.getTaskMeta(id);
+        Assert.assertEquals(CauldronStatus.Queued, meta.getStatus());
+        Assert.assertEquals(1, meta.getAttempt());
+        // Not before its backoff
+        Assert.assertNull(backend.claim(TYPES, 60, "node:1"));
+        Thread.sleep(300);
+
+        task = cauldron.deserialize(backend.claim(TYPES, 60, "node:1"));
+        Assert.assertEquals(id, task.getId());
+        Assert.assertFalse(cauldron.failed(task, new IOException("flaky")));
+        Assert.assertEquals(CauldronStatus.Failed, cauldron.getTaskMeta(id).getStatus());
+        Assert.assertEquals(CauldronStatus.Cancelled, cauldron.getTaskMeta(child).getStatus());
+    }
+
+    @Test
+    public void testDistributorWakesAfterBackoff() throws Exception {
+        Cauldron cauldron = new Cauldron(new InMemoryQueueBackend());
+        cauldron.setRetryPolicy(SillyTask.class, RetryPolicy.attempts(2)
+                .backoff(Duration.ofMillis(300), Duration.ofMillis(300)).jitter(0.0));
+        String id = cauldron.submit(new SillyTask("WAKE")).getId();
+        Distributor distributor = cauldron.getDistributor();
+        try {
+            CauldronTask task = distributor.get("node:1");
+            Assert.assertEquals(id, task.getId());
+            Assert.assertTrue(cauldron.failed(task, new IOException("flaky")));
+            // Nothing changes when the backoff ends, so the distributor has to look again by itself
+            CompletableFuture<CauldronTask> retried = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return distributor.get("node:1");
+                } catch (InterruptedException ex) {
+                    throw new CompletionException(ex);
+                }
+            });
+            Assert.assertEquals(id, retried.get(10, TimeUnit.SECONDS).getId());
+        } finally {
+            distributor.pause();
+        }
+    }
+
+    @Test
+    public void testNotRetryable() throws CauldronException {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        Cauldron cauldron = new Cauldron(backend);
+        cauldron.setRetryPolicy(RetryPolicy.attempts(5).abortOn(IllegalArgumentException.class));
+        String id = cauldron.submit(new SillyTask("POISON")).getId();
+        CauldronTask task = cauldron.deserialize(backend.claim(TYPES, 60, "node:1"));
+        Assert.assertFalse(cauldron.failed(task, new IllegalArgumentException("bad input")));
+        Assert.assertEquals(CauldronStatus.Failed, cauldron.getTaskMeta(id).getStatus());
+    }
+
+    @Test
+    public void testLapsedClaims() {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        Cauldron cauldron = new Cauldron(backend);
+        cauldron.setRetryPolicy(RetryPolicy.attempts(2).backoff(Duration.ZERO, Duration.ZERO));
+        String id = backend.send(payload("LAPSE"), new Date(), 0.0, Collections.emptyList(), null);
+        String child = backend.send(payload("CHILD"), new Date(), 0.0, Arrays.asList(id), null);
+        Assert.assertEquals(id, backend.claim(TYPES, 0, "node:1").getString("id"));
+        // Retried once, then failed when its claim lapses again
+        Assert.assertEquals(id, backend.claim(TYPES, 0, "node:1").getString("id"));
+        Assert.assertEquals(1, (int) backend.find(id, null).getInteger("attempt"));
+        Assert.assertNull(backend.claim(TYPES, 0, "node:1"));
+        Assert.assertEquals("failed", backend.find(id, null).getString("status"));
+        Assert.assertEquals("cancelled", backend.find(child, null).getString("status"));
+    }
+
+    @Test
+    public void testNoPolicy() throws CauldronException {
+        InMemoryQueueBackend backend = new InMemoryQueueBackend();
+        Cauldron cauldron = new Cauldron(backend);
+        String id = cauldron.submit(new SillyTask("ONCE")).getId();
+        CauldronTask task = cauldron.deserialize(backend.claim(TYPES, 60, "node:1"));
+        Assert.assertFalse(cauldron.failed(task, new IOException()));
+        Assert.assertEquals(CauldronStatus.Failed, cauldron.getTaskMeta(id).getStatus());
+    }
+
+    private static Document payload(String thing) {
+        return new Document("type", SillyTask.class.getName()).append("thing", thing);
+    }
+}
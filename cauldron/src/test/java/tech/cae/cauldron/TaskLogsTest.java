@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author peter
+ */
+public class TaskLogsTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() {
+        String thing = "LOGS_" + UUID.randomUUID();
+        Cauldron.get().submit(new SillyTask(thing));
+        // Progress is only recorded while the task runs for the worker
+        String id = Cauldron.get().getMongoQueue().get(new Document("thing", thing), 60, 10, 1, "test").getString("id");
+        Cauldron.get().progress(id, Arrays.asList("one", "two", " "), 0.1, 60, "test");
+        Cauldron.get().progress(id, Arrays.asList("three"), 0.2, 60, "test");
+        Assert.assertEquals(Arrays.asList("one", "two", "three"), Cauldron.get().getTaskLogs(id));
+        List<String> page = Cauldron.get().getTaskLogs(id, 1, 1);
+        Assert.assertEquals(Arrays.asList("two"), page);
+        Assert.assertEquals(0.2, Cauldron.get().getTaskMeta(id).getProgress(), 1e-9);
+    }
+}
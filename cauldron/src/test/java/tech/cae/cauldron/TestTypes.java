@@ -38,7 +38,7 @@ public class TestTypes extends CauldronTaskTypeProvider {
 
     @Override
     public Collection<Class<? extends CauldronTask>> getTaskTypes() {
-        return Arrays.asList(AddingTask.class, MyTask.class, SillyTask.class);
+        return Arrays.asList(AddingTask.class, CountingJoinTask.class, MyTask.class, SillyTask.class);
     }
 
 }
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2021 CAE Tech Limited.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tech.cae.cauldron;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.cae.cauldron.api.exceptions.CauldronException;
+
+/**
+ *
+ * @author peter
+ */
+public class WorkerRegistryTest extends AbstractCauldronTest {
+
+    @Test
+    public void test() throws CauldronException {
+        Cauldron cauldron = Cauldron.get();
+        WorkerRegistry registry = cauldron.getWorkerRegistry();
+        String run = UUID.randomUUID().toString();
+        String live = run + "_LIVE";
+        String dead = run + "_DEAD";
+        registry.register(live, 2, Arrays.asList(SillyTask.class.getName()));
+        try {
+            Assert.assertTrue(registry.getWorkers().stream()
+                    .anyMatch(worker -> worker.getId().equals(live) && worker.getCapacity() == 2));
+
+            String liveTask = cauldron.submit(new SillyTask(run + "_A")).getId();
+            String deadTask = cauldron.submit(new SillyTask(run + "_B")).getId();
+            Assert.assertNotNull(cauldron.getMongoQueue().get(new Document("thing", run + "_A"), 60, 10, 1, live + ":1"));
+            Assert.assertNotNull(cauldron.getMongoQueue().get(new Document("thing", run + "_B"), 60, 10, 1, dead + ":1"));
+
+            // A node whose last heartbeat is long past
+            registry.getCollection().insertOne(new Document("_id", dead)
+                    .append("capacity", 1)
+                    .append("heartbeat", new Date(System.currentTimeMillis() - WorkerRegistry.DEFAULT_LAPSE - 1000L)));
+
+            Assert.assertEquals(1L, registry.reap());
+            Assert.assertEquals("queued", cauldron.getMongoQueue().find(deadTask, null).getString("status"));
+            Assert.assertEquals(1, cauldron.getTaskMeta(deadTask).getAttempt());
+            Assert.assertEquals("running", cauldron.getMongoQueue().find(liveTask, null).getString("status"));
+            Assert.assertTrue(registry.getWorkers().stream().noneMatch(worker -> worker.getId().equals(dead)));
+            Assert.assertEquals(0L, registry.reap());
+        } finally {
+            registry.unregister(live);
+        }
+    }
+}